@@ -0,0 +1,69 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * Inserting links one at a time, as DatabaseHandler.putItem does, against
+ * DatabaseHandler.applyBatch. Every putItem is a transaction of its own,
+ * and so a sync of the journal, where the batch has one for all links.
+ * Each measurement starts from an empty database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ApplyBatchBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int links;
+
+	private JdbcStorage db;
+	private List<LinkItem> items;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		items = TestData.newLinks(links);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		db.close();
+	}
+
+	@Benchmark
+	public int perItem() {
+		int result = 0;
+		for (LinkItem item : items) {
+			if (LinkWrites.writeItem(db, item)) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	@Benchmark
+	public int applyBatch() {
+		return LinkWrites.applyBatch(db, items, null);
+	}
+}
@@ -0,0 +1,91 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcCursor;
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * Reading the visible links into LinkItems through LinkItem(Cursor), as
+ * the list and the outbox do, against reading the columns only. The
+ * difference is the cost of the objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CursorHydrationBenchmark {
+
+	private static final String QUERY = "SELECT _id, sha, url, timestamp,"
+			+ " deleted, synced, rev FROM Link WHERE "
+			+ LinkItem.SELECTION_VISIBLE + " ORDER BY " + LinkItem.SORT_PAGED;
+
+	@Param({ "1000", "10000", "100000" })
+	public int rows;
+
+	private JdbcStorage db;
+
+	@Setup
+	public void setUp() {
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		TestData.addSynced(db, rows);
+	}
+
+	@TearDown
+	public void tearDown() {
+		db.close();
+	}
+
+	@Benchmark
+	public List<LinkItem> hydrate() {
+		final List<LinkItem> result = new ArrayList<LinkItem>(rows);
+		final JdbcCursor cursor = new JdbcCursor(db, QUERY, null);
+		try {
+			while (cursor.moveToNext()) {
+				result.add(new LinkItem(cursor));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	@Benchmark
+	public void columnsOnly(final Blackhole bh) {
+		final JdbcCursor cursor = new JdbcCursor(db, QUERY, null);
+		try {
+			while (cursor.moveToNext()) {
+				bh.consume(cursor.getLong(0));
+				bh.consume(cursor.getString(1));
+				bh.consume(cursor.getString(2));
+				bh.consume(cursor.getLong(3));
+				bh.consume(cursor.getLong(4));
+				bh.consume(cursor.getLong(5));
+				bh.consume(cursor.getLong(6));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+}
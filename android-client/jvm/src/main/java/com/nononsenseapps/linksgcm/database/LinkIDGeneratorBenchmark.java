@@ -0,0 +1,69 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LinkIDGenerator.generateID, against how ids were made before: a new
+ * Random per id, and 8 hex chars appended to a StringBuilder one String at
+ * a time. Run with -prof gc to see the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkIDGeneratorBenchmark {
+
+	// The hex chars as Strings, as they were
+	private static final String[] HEX_STRINGS = { "0", "1", "2", "3", "4",
+			"5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f" };
+
+	@Benchmark
+	public String generateID() {
+		return LinkIDGenerator.generateID();
+	}
+
+	/**
+	 * The shared SecureRandom from several threads at once, as when adds
+	 * and a sync make ids together.
+	 */
+	@Benchmark
+	@Threads(4)
+	public String generateIDContended() {
+		return LinkIDGenerator.generateID();
+	}
+
+	@Benchmark
+	public String previous() {
+		final Random random = new Random();
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			sb.append(HEX_STRINGS[random.nextInt(16)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A SecureRandom per id, to show what sharing one saves.
+	 */
+	@Benchmark
+	public byte[] newSecureRandom() {
+		final byte[] bytes = new byte[LinkIDGenerator.ID_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,121 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcCursor;
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * The queries of LinkPager on 100k links: the first page, a page in the
+ * middle after a key and by offset, and the count. With index false,
+ * link_visible_idx is dropped to show what it saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VisibleListBenchmark {
+
+	private static final int PAGE_SIZE = 50;
+	private static final String PAGE = "SELECT _id, sha, url, timestamp,"
+			+ " deleted, synced, rev FROM Link WHERE %s ORDER BY "
+			+ LinkItem.SORT_PAGED + " LIMIT %s";
+
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "true", "false" })
+	public boolean index;
+
+	private JdbcStorage db;
+	private String[] middleKey;
+
+	@Setup
+	public void setUp() {
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		TestData.addSynced(db, rows);
+		if (!index) {
+			db.execSQL("DROP INDEX link_visible_idx");
+		}
+
+		// The last link before the middle page
+		final JdbcCursor cursor = new JdbcCursor(db, String.format(PAGE,
+				LinkItem.SELECTION_VISIBLE, (rows / 2 - 1) + ",1"), null);
+		try {
+			cursor.moveToNext();
+			final String timestamp = Long.toString(cursor.getLong(3));
+			middleKey = new String[] { timestamp, timestamp,
+					Long.toString(cursor.getLong(0)) };
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		db.close();
+	}
+
+	@Benchmark
+	public void firstPage(final Blackhole bh) {
+		read(String.format(PAGE, LinkItem.SELECTION_VISIBLE, PAGE_SIZE), null,
+				bh);
+	}
+
+	@Benchmark
+	public void middlePageAfterKey(final Blackhole bh) {
+		read(String.format(PAGE, LinkItem.SELECTION_VISIBLE_AFTER, PAGE_SIZE),
+				middleKey, bh);
+	}
+
+	@Benchmark
+	public void middlePageByOffset(final Blackhole bh) {
+		read(String.format(PAGE, LinkItem.SELECTION_VISIBLE, (rows / 2) + ","
+				+ PAGE_SIZE), null, bh);
+	}
+
+	@Benchmark
+	public long count() {
+		final JdbcCursor cursor = new JdbcCursor(db,
+				"SELECT COUNT(*) FROM Link WHERE " + LinkItem.SELECTION_VISIBLE,
+				null);
+		try {
+			cursor.moveToNext();
+			return cursor.getLong(0);
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private void read(final String sql, final String[] args,
+			final Blackhole bh) {
+		final JdbcCursor cursor = new JdbcCursor(db, sql, args);
+		try {
+			while (cursor.moveToNext()) {
+				bh.consume(new LinkItem(cursor));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+}
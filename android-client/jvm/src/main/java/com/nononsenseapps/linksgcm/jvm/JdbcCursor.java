@@ -0,0 +1,330 @@
+package com.nononsenseapps.linksgcm.jvm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage.StorageException;
+
+/**
+ * A Cursor over a query on JdbcStorage, for the client code which reads
+ * cursors, like LinkItem(Cursor). Forward only: moveToNext and the getters
+ * work, everything which needs the row count or a position doesn't.
+ */
+public class JdbcCursor implements Cursor {
+
+	private final PreparedStatement stmt;
+	private final ResultSet rs;
+	private final String[] columnNames;
+	private int position = -1;
+	private boolean closed = false;
+
+	/**
+	 * @param args
+	 *            bound as strings, like SQLiteDatabase.rawQuery does
+	 */
+	public JdbcCursor(final JdbcStorage db, final String sql,
+			final String[] args) {
+		try {
+			stmt = db.getConnection().prepareStatement(sql);
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					stmt.setString(i + 1, args[i]);
+				}
+			}
+			rs = stmt.executeQuery();
+			final ResultSetMetaData meta = rs.getMetaData();
+			columnNames = new String[meta.getColumnCount()];
+			for (int i = 0; i < columnNames.length; i++) {
+				columnNames[i] = meta.getColumnLabel(i + 1);
+			}
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public boolean moveToNext() {
+		try {
+			if (rs.next()) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public int getPosition() {
+		return position;
+	}
+
+	@Override
+	public boolean isBeforeFirst() {
+		return position < 0;
+	}
+
+	@Override
+	public int getColumnIndex(final String columnName) {
+		for (int i = 0; i < columnNames.length; i++) {
+			if (columnNames[i].equalsIgnoreCase(columnName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int getColumnIndexOrThrow(final String columnName) {
+		final int index = getColumnIndex(columnName);
+		if (index < 0) {
+			throw new IllegalArgumentException("column '" + columnName
+					+ "' does not exist");
+		}
+		return index;
+	}
+
+	@Override
+	public String getColumnName(final int columnIndex) {
+		return columnNames[columnIndex];
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames.clone();
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	@Override
+	public byte[] getBlob(final int columnIndex) {
+		try {
+			return rs.getBytes(columnIndex + 1);
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public String getString(final int columnIndex) {
+		try {
+			return rs.getString(columnIndex + 1);
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public short getShort(final int columnIndex) {
+		return (short) getLong(columnIndex);
+	}
+
+	@Override
+	public int getInt(final int columnIndex) {
+		return (int) getLong(columnIndex);
+	}
+
+	@Override
+	public long getLong(final int columnIndex) {
+		try {
+			return rs.getLong(columnIndex + 1);
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public float getFloat(final int columnIndex) {
+		return (float) getDouble(columnIndex);
+	}
+
+	@Override
+	public double getDouble(final int columnIndex) {
+		try {
+			return rs.getDouble(columnIndex + 1);
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public int getType(final int columnIndex) {
+		try {
+			rs.getObject(columnIndex + 1);
+			if (rs.wasNull()) {
+				return FIELD_TYPE_NULL;
+			}
+			switch (rs.getMetaData().getColumnType(columnIndex + 1)) {
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return FIELD_TYPE_INTEGER;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return FIELD_TYPE_FLOAT;
+			case Types.BLOB:
+				return FIELD_TYPE_BLOB;
+			default:
+				return FIELD_TYPE_STRING;
+			}
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public boolean isNull(final int columnIndex) {
+		try {
+			rs.getObject(columnIndex + 1);
+			return rs.wasNull();
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			rs.close();
+			stmt.close();
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void deactivate() {
+		close();
+	}
+
+	@Override
+	public boolean getWantsAllOnMoveCalls() {
+		return false;
+	}
+
+	@Override
+	public Bundle getExtras() {
+		return null;
+	}
+
+	@Override
+	public Bundle respond(final Bundle extras) {
+		return null;
+	}
+
+	// Not needed off the device
+
+	@Override
+	public int getCount() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean move(final int offset) {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean moveToPosition(final int position) {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean moveToFirst() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean moveToLast() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean moveToPrevious() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean isFirst() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean isLast() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public boolean isAfterLast() {
+		throw new UnsupportedOperationException("forward only");
+	}
+
+	@Override
+	public void copyStringToBuffer(final int columnIndex,
+			final CharArrayBuffer buffer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean requery() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void registerContentObserver(final ContentObserver observer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unregisterContentObserver(final ContentObserver observer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void registerDataSetObserver(final DataSetObserver observer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unregisterDataSetObserver(final DataSetObserver observer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setNotificationUri(final ContentResolver cr, final Uri uri) {
+		throw new UnsupportedOperationException();
+	}
+}
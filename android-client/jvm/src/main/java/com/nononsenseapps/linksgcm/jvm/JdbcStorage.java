@@ -0,0 +1,298 @@
+package com.nononsenseapps.linksgcm.jvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nononsenseapps.linksgcm.database.Schema;
+import com.nononsenseapps.linksgcm.database.Storage;
+
+/**
+ * Storage on a desktop SQLite, through the xerial JDBC driver. Behaves like
+ * the app's SQLiteDatabase where the client code depends on it:
+ * transactions are exclusive and nest, executeInsert returns -1 when a
+ * conflict clause ignored the row, and errors are unchecked.
+ *
+ * Not thread safe, like a connection. Open one per thread.
+ */
+public class JdbcStorage implements Storage, AutoCloseable {
+
+	private final Connection connection;
+	private final PreparedStatement lastInsertRowid;
+	// Whether each open transaction was marked successful, outermost first
+	private final List<Boolean> transactions = new ArrayList<Boolean>();
+	private boolean failed = false;
+
+	public JdbcStorage(final String file) {
+		try {
+			connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+			lastInsertRowid = connection
+					.prepareStatement("SELECT last_insert_rowid()");
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * A new database with the current schema, in a temporary file so that
+	 * other connections can open it.
+	 */
+	public static String createDatabase() {
+		try {
+			final File file = File.createTempFile("links", ".db");
+			file.deleteOnExit();
+			try (JdbcStorage db = new JdbcStorage(file.getPath())) {
+				db.beginTransaction();
+				try {
+					Schema.create(db);
+					db.setTransactionSuccessful();
+				}
+				finally {
+					db.endTransaction();
+				}
+			}
+			return file.getPath();
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Reads and writes no longer wait for each other. The app turns it on
+	 * with the db_write_ahead_logging resource.
+	 */
+	public void enableWriteAheadLogging() {
+		execSQL("PRAGMA journal_mode=WAL");
+	}
+
+	@Override
+	public void execSQL(final String sql) {
+		try (java.sql.Statement stmt = connection.createStatement()) {
+			stmt.execute(sql);
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public Storage.Statement compileStatement(final String sql) {
+		try {
+			return new JdbcStatement(connection.prepareStatement(sql));
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public Rows query(final String sql, final String[] args) {
+		try {
+			final PreparedStatement stmt = connection.prepareStatement(sql);
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					stmt.setString(i + 1, args[i]);
+				}
+			}
+			return new ResultRows(stmt, stmt.executeQuery());
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	public void beginTransaction() {
+		if (transactions.isEmpty()) {
+			execSQL("BEGIN EXCLUSIVE");
+			failed = false;
+		}
+		transactions.add(Boolean.FALSE);
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		transactions.set(transactions.size() - 1, Boolean.TRUE);
+	}
+
+	@Override
+	public void endTransaction() {
+		// Any level which isn't successful rolls back all of it
+		if (!transactions.remove(transactions.size() - 1)) {
+			failed = true;
+		}
+		if (transactions.isEmpty()) {
+			execSQL(failed ? "ROLLBACK" : "COMMIT");
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			lastInsertRowid.close();
+			connection.close();
+		}
+		catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * What SQLiteException is on the device.
+	 */
+	public static class StorageException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		StorageException(final Exception cause) {
+			super(cause);
+		}
+	}
+
+	private class JdbcStatement implements Storage.Statement {
+		private final PreparedStatement stmt;
+
+		JdbcStatement(final PreparedStatement stmt) {
+			this.stmt = stmt;
+		}
+
+		@Override
+		public void bindLong(final int index, final long value) {
+			try {
+				stmt.setLong(index, value);
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public void bindString(final int index, final String value) {
+			try {
+				stmt.setString(index, value);
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public void bindNull(final int index) {
+			try {
+				stmt.setNull(index, Types.NULL);
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public void clearBindings() {
+			try {
+				stmt.clearParameters();
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public long executeInsert() {
+			try {
+				if (stmt.executeUpdate() == 0) {
+					return -1;
+				}
+				try (ResultSet rs = lastInsertRowid.executeQuery()) {
+					rs.next();
+					return rs.getLong(1);
+				}
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public int executeUpdateDelete() {
+			try {
+				return stmt.executeUpdate();
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				stmt.close();
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+	}
+
+	private static class ResultRows implements Rows {
+		private final PreparedStatement stmt;
+		private final ResultSet rs;
+
+		ResultRows(final PreparedStatement stmt, final ResultSet rs) {
+			this.stmt = stmt;
+			this.rs = rs;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			try {
+				return rs.next();
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public long getLong(final int column) {
+			try {
+				return rs.getLong(column + 1);
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public String getString(final int column) {
+			try {
+				return rs.getString(column + 1);
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				rs.close();
+				stmt.close();
+			}
+			catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package com.nononsenseapps.linksgcm.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.nononsenseapps.linksgcm.database.LinkIDGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for server-app, with what the sync uses of it.
+ * GET /links lists the links in revision order, paged with pageSize and
+ * revMin or pageToken. POST /links/batch stores an upload, the latest
+ * change winning, and returns the links as stored. Gzipped request bodies
+ * are accepted and responses are gzipped if the client asks for it, like
+ * server-app behind GzipMiddleware.
+ *
+ * There is a single user, and no horizon: deletions are never purged.
+ */
+public class LinksTestServer implements AutoCloseable {
+
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	private static final Gson gson = new Gson();
+
+	/**
+	 * A link as it is sent, see to_dict in server-app.
+	 */
+	static class Link {
+		String sha;
+		String url;
+		boolean deleted;
+		Long timestampMs;
+		Long rev;
+	}
+
+	static class Links {
+		Long latestTimestampMs;
+		Long latestRev;
+		String nextPageToken;
+		Boolean hasMore;
+		List<Link> links;
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// Links by revision, and the revision of every sha
+	private final TreeMap<Long, Link> byRev = new TreeMap<Long, Link>();
+	private final Map<String, Long> revs = new HashMap<String, Long>();
+	private final Map<String, String> shaByUrl = new HashMap<String, String>();
+	private long lastRev = 0;
+	private final Set<String> connections = new HashSet<String>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger gzippedRequests = new AtomicInteger();
+	private final AtomicInteger gzippedResponses = new AtomicInteger();
+	private final AtomicLong responseBytes = new AtomicLong();
+
+	/**
+	 * Listens on a free port of the loopback interface, see getApiUrl.
+	 */
+	public LinksTestServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/links", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newFixedThreadPool(4);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Use as apiUrl of a Transport.
+	 */
+	public String getApiUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Number of requests served.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Number of requests with a gzipped body.
+	 */
+	public int getGzippedRequests() {
+		return gzippedRequests.get();
+	}
+
+	/**
+	 * Number of responses sent gzipped.
+	 */
+	public int getGzippedResponses() {
+		return gzippedResponses.get();
+	}
+
+	/**
+	 * Bytes of the response bodies as sent, gzipped or not.
+	 */
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	/**
+	 * Number of connections the requests came on, by client port.
+	 */
+	public synchronized int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * Number of links stored, deleted ones included.
+	 */
+	public synchronized int size() {
+		return byRev.size();
+	}
+
+	/**
+	 * Stores count new links, as if added from another device.
+	 */
+	public synchronized void addLinks(final int count) {
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			final Link link = newLink(i, now);
+			put(link);
+		}
+	}
+
+	/**
+	 * A GET /links response with count links, as the server sends it. For
+	 * parsing without a server.
+	 */
+	public static byte[] listResponse(final int count) {
+		final long now = System.currentTimeMillis();
+		final Links page = new Links();
+		page.links = new ArrayList<Link>(count);
+		for (int i = 0; i < count; i++) {
+			final Link link = newLink(i, now);
+			link.rev = (long) (i + 1);
+			page.links.add(link);
+		}
+		page.latestTimestampMs = now;
+		page.latestRev = (long) count;
+		page.nextPageToken = Integer.toString(count);
+		page.hasMore = false;
+		try {
+			return gson.toJson(page).getBytes("UTF-8");
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Link newLink(final int i, final long now) {
+		final Link link = new Link();
+		link.sha = LinkIDGenerator.generateID();
+		link.url = "http://example.com/" + link.sha + "/" + i;
+		link.timestampMs = now - i;
+		return link;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void serve(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		synchronized (this) {
+			connections.add(exchange.getRemoteAddress().toString());
+		}
+
+		final String path = exchange.getRequestURI().getPath();
+		final Object result;
+		if ("GET".equals(exchange.getRequestMethod())
+				&& "/links".equals(path)) {
+			result = list(query(exchange));
+		}
+		else if ("POST".equals(exchange.getRequestMethod())
+				&& "/links/batch".equals(path)) {
+			result = batch(readBody(exchange));
+		}
+		else {
+			drain(exchange.getRequestBody());
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		if (result == null) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+		writeBody(exchange, gson.toJson(result).getBytes("UTF-8"));
+	}
+
+	private synchronized Links list(final Map<String, String> query) {
+		long revMin = 0;
+		int pageSize = MAX_PAGE_SIZE;
+		try {
+			if (query.get("revMin") != null) {
+				revMin = Long.parseLong(query.get("revMin"));
+			}
+			else if (query.get("pageToken") != null) {
+				revMin = Long.parseLong(query.get("pageToken"));
+			}
+			if (query.get("pageSize") != null) {
+				pageSize = Math.min(MAX_PAGE_SIZE,
+						Integer.parseInt(query.get("pageSize")));
+			}
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		final boolean showDeleted = "true".equals(query.get("showDeleted"));
+
+		final Links result = new Links();
+		result.links = new ArrayList<Link>();
+		result.hasMore = false;
+		long latestRev = revMin;
+		for (Link link : byRev.tailMap(revMin, false).values()) {
+			if (result.links.size() == pageSize) {
+				result.hasMore = true;
+				break;
+			}
+			latestRev = link.rev;
+			if (link.deleted && !showDeleted) {
+				continue;
+			}
+			result.links.add(link);
+			if (result.latestTimestampMs == null
+					|| link.timestampMs > result.latestTimestampMs) {
+				result.latestTimestampMs = link.timestampMs;
+			}
+		}
+		result.latestRev = latestRev;
+		result.nextPageToken = Long.toString(latestRev);
+		return result;
+	}
+
+	private synchronized Links batch(final String body) {
+		final Links batch = gson.fromJson(body, Links.class);
+		if (batch == null || batch.links == null) {
+			return null;
+		}
+		final Links result = new Links();
+		result.links = new ArrayList<Link>();
+		for (Link link : batch.links) {
+			String sha = link.sha;
+			if (sha == null || !revs.containsKey(sha)) {
+				// Added elsewhere already, the stored sha wins
+				final String stored = link.url == null ? null : shaByUrl
+						.get(link.url);
+				if (stored != null) {
+					sha = stored;
+				}
+			}
+			final Long oldRev = sha == null ? null : revs.get(sha);
+			final Link old = oldRev == null ? null : byRev.get(oldRev);
+			if (old == null && link.deleted) {
+				continue;
+			}
+
+			final Link stored = new Link();
+			stored.sha = sha == null ? LinkIDGenerator.generateID() : sha;
+			stored.deleted = link.deleted;
+			stored.url = link.url != null ? link.url : old.url;
+			stored.timestampMs = link.timestampMs != null ? link.timestampMs
+					: System.currentTimeMillis();
+			put(stored);
+			result.links.add(stored);
+		}
+		return result;
+	}
+
+	private void put(final Link link) {
+		final Long oldRev = revs.get(link.sha);
+		if (oldRev != null) {
+			final Link old = byRev.remove(oldRev);
+			shaByUrl.remove(old.url);
+		}
+		link.rev = ++lastRev;
+		byRev.put(link.rev, link);
+		revs.put(link.sha, link.rev);
+		if (!link.deleted) {
+			shaByUrl.put(link.url, link.sha);
+		}
+	}
+
+	private static Map<String, String> query(final HttpExchange exchange)
+			throws IOException {
+		final Map<String, String> result = new HashMap<String, String>();
+		final String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				final int eq = pair.indexOf('=');
+				if (eq > 0) {
+					result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+							URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+				}
+			}
+		}
+		drain(exchange.getRequestBody());
+		return result;
+	}
+
+	private String readBody(final HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst(
+				"Content-Encoding"))) {
+			gzippedRequests.incrementAndGet();
+			in = new GZIPInputStream(in);
+		}
+		final StringBuilder result = new StringBuilder();
+		final InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+		final char[] buffer = new char[8192];
+		int read;
+		while ((read = reader.read(buffer)) >= 0) {
+			result.append(buffer, 0, read);
+		}
+		// The rest of a gzipped body, for the next request on the
+		// connection
+		drain(exchange.getRequestBody());
+		return result.toString();
+	}
+
+	private void writeBody(final HttpExchange exchange, final byte[] json)
+			throws IOException {
+		byte[] body = json;
+		final String accept = exchange.getRequestHeaders().getFirst(
+				"Accept-Encoding");
+		if (accept != null && accept.contains("gzip")) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			gzip.write(json);
+			gzip.close();
+			body = bytes.toByteArray();
+			gzippedResponses.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(200, body.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+		responseBytes.addAndGet(body.length);
+	}
+
+	private static void drain(final InputStream in) throws IOException {
+		final byte[] buffer = new byte[8192];
+		while (in.read(buffer) >= 0) {
+			// Discard
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.nononsenseapps.linksgcm.jvm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nononsenseapps.linksgcm.database.LinkIDGenerator;
+import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.database.LinkOutbox;
+import com.nononsenseapps.linksgcm.database.LinkWrites;
+import com.nononsenseapps.linksgcm.database.Storage;
+
+/**
+ * Links for tests and benchmarks.
+ */
+public class TestData {
+
+	/**
+	 * New links, not yet in any database. Timestamps are a millisecond
+	 * apart, counting back from now.
+	 */
+	public static List<LinkItem> newLinks(final int count) {
+		final long now = System.currentTimeMillis();
+		final List<LinkItem> result = new ArrayList<LinkItem>(count);
+		for (int i = 0; i < count; i++) {
+			final LinkItem link = new LinkItem();
+			link.sha = LinkIDGenerator.generateID();
+			link.url = "http://example.com/" + link.sha + "/" + i;
+			link.timestamp = now - i;
+			result.add(link);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds links the way the app does when the user adds them: unsynced,
+	 * and waiting in the outbox. ItemProvider needs the device, so the
+	 * rows are written here.
+	 */
+	public static List<LinkItem> addLocal(final Storage db, final int count) {
+		final List<LinkItem> links = newLinks(count);
+		final Storage.Statement enqueue = db
+				.compileStatement("INSERT INTO LinkOutbox (sha, op) VALUES (?, ?)");
+		db.beginTransaction();
+		try {
+			LinkWrites.applyBatch(db, links, null);
+			for (LinkItem link : links) {
+				enqueue.bindString(1, link.sha);
+				enqueue.bindLong(2, LinkOutbox.OP_ADD);
+				enqueue.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+			enqueue.close();
+		}
+		return links;
+	}
+
+	/**
+	 * Adds links as a sync leaves them: synced, with revisions 1 to count.
+	 */
+	public static List<LinkItem> addSynced(final Storage db, final int count) {
+		final List<LinkItem> links = newLinks(count);
+		for (int i = 0; i < count; i++) {
+			links.get(i).synced = 1;
+			links.get(i).rev = i + 1;
+		}
+		LinkWrites.applyBatch(db, links, null);
+		return links;
+	}
+
+	/**
+	 * Number of rows in the table matching the where clause, or all of
+	 * them if it is null.
+	 */
+	public static long count(final Storage db, final String table,
+			final String where) {
+		final Storage.Rows rows = db.query("SELECT COUNT(*) FROM " + table
+				+ (where == null ? "" : " WHERE " + where), null);
+		try {
+			rows.moveToNext();
+			return rows.getLong(0);
+		}
+		finally {
+			rows.close();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.database.LinkOutbox;
+import com.nononsenseapps.linksgcm.database.LinkWrites;
+import com.nononsenseapps.linksgcm.database.Storage;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkBatch;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkItems;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
+
+/**
+ * What SyncAdapter.onPerformSync does, on a Storage and a Transport instead
+ * of the device. The outbox is uploaded in batches on a thread of its own
+ * while the changes are downloaded by revision, and all writes go through
+ * a DbWriter, with the same sizes as SyncHelper.
+ *
+ * Left out: the account and its token, GCM, the preferences (the revision
+ * is kept here), resyncs and the sync trace.
+ */
+public class JvmSync {
+
+	// SyncHelper's, which can't be loaded off the device
+	public static final int UPLOAD_BATCH_SIZE = 100;
+	public static final int DOWNLOAD_CHUNK_SIZE = 200;
+	public static final int DOWNLOAD_PAGE_SIZE = 500;
+	// SyncAdapter's
+	private static final int WRITE_QUEUE_SIZE = 4;
+
+	private final Storage db;
+	private final Transport transport;
+	private long lastRev = 0;
+	private int uploaded = 0;
+	private int downloaded = 0;
+
+	public JvmSync(final Storage db, final Transport transport) {
+		this.db = db;
+		this.transport = transport;
+	}
+
+	/**
+	 * Latest revision downloaded so far.
+	 */
+	public long getLastRev() {
+		return lastRev;
+	}
+
+	/**
+	 * Links uploaded by the last sync.
+	 */
+	public int getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Links downloaded by the last sync, before merging.
+	 */
+	public int getDownloaded() {
+		return downloaded;
+	}
+
+	/**
+	 * Syncs once, uploading the outbox and downloading what changed since
+	 * the last time.
+	 */
+	public void sync() {
+		uploaded = 0;
+		downloaded = 0;
+		final DbWriter writer = new DbWriter(WRITE_QUEUE_SIZE);
+		final List<LinkOutbox.Entry> pending = LinkWrites.takeOutbox(db);
+		ExecutorService uploader = null;
+		writer.start();
+		try {
+			Future<?> upload = null;
+			if (!pending.isEmpty()) {
+				uploader = Executors.newSingleThreadExecutor();
+				upload = uploader.submit(new Runnable() {
+					@Override
+					public void run() {
+						upload(pending, writer);
+					}
+				});
+			}
+
+			download(writer);
+
+			if (upload != null) {
+				try {
+					upload.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DbWriter.CancelledException();
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			writer.finish();
+		}
+		finally {
+			// Stops the upload if the download failed
+			if (uploader != null) {
+				uploader.shutdownNow();
+			}
+			writer.close();
+		}
+	}
+
+	private void upload(final List<LinkOutbox.Entry> pending,
+			final DbWriter writer) {
+		final LinksServer server = transport.getServer();
+		for (int start = 0; start < pending.size(); start += UPLOAD_BATCH_SIZE) {
+			final List<LinkOutbox.Entry> chunk = pending.subList(start,
+					Math.min(start + UPLOAD_BATCH_SIZE, pending.size()));
+			final List<LinkMSG> msgs = new ArrayList<LinkMSG>(chunk.size());
+			for (LinkOutbox.Entry entry : chunk) {
+				msgs.add(new LinkMSG(entry.link));
+			}
+
+			final LinkItems result = server.batchLinks("token",
+					new LinkBatch(msgs), null);
+			final List<LinkItem> stored = new ArrayList<LinkItem>();
+			if (result != null && result.links != null) {
+				for (LinkMSG msg : result.links) {
+					stored.add(msg.toDBItem());
+				}
+			}
+			uploaded += chunk.size();
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					LinkWrites.acknowledge(db, chunk);
+					LinkWrites.mergeRemote(db, stored);
+				}
+			});
+		}
+	}
+
+	private void download(final DbWriter writer) {
+		final LinksStream stream = transport.newStream();
+		final Applier applier = new Applier(writer);
+		while (true) {
+			final LinkItems page = stream.listLinks("token",
+					lastRev > 0 ? "true" : "false", null, null,
+					DOWNLOAD_PAGE_SIZE, lastRev, applier);
+			applier.flush();
+			if (page.latestRev != null) {
+				lastRev = page.latestRev;
+			}
+			if (!page.hasMore) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queues the downloaded links for merging a chunk at a time, like
+	 * SyncAdapter.DownloadApplier.
+	 */
+	private class Applier implements LinksStream.LinkHandler {
+		private final DbWriter writer;
+		private List<LinkItem> links = new ArrayList<LinkItem>();
+
+		Applier(final DbWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void onLink(final LinkMSG msg) {
+			downloaded++;
+			links.add(msg.toDBItem());
+			if (links.size() >= DOWNLOAD_CHUNK_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (links.isEmpty()) {
+				return;
+			}
+			final List<LinkItem> chunk = links;
+			links = new ArrayList<LinkItem>();
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					LinkWrites.mergeRemote(db, chunk);
+				}
+			});
+		}
+	}
+}
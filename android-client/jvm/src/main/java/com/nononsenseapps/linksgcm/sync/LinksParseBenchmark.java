@@ -0,0 +1,83 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.nononsenseapps.linksgcm.jvm.LinksTestServer;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkItems;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
+
+/**
+ * Parsing a GET /links response into LinkItems: streamed with
+ * LinksStream.parse, as downloads do, against Gson reading the whole
+ * response, as LinksServer.listLinks does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LinksParseBenchmark {
+
+	private static final Gson gson = new Gson();
+
+	@Param({ "1000", "10000", "100000" })
+	public int links;
+
+	private byte[] response;
+
+	@Setup
+	public void setUp() {
+		response = LinksTestServer.listResponse(links);
+	}
+
+	@Benchmark
+	public LinkItems stream(final Blackhole bh) throws IOException {
+		final JsonReader reader = new JsonReader(new InputStreamReader(
+				new ByteArrayInputStream(response), "UTF-8"));
+		try {
+			return LinksStream.parse(reader, new LinksStream.LinkHandler() {
+				@Override
+				public void onLink(final LinkMSG link) {
+					bh.consume(link.toDBItem());
+				}
+			});
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	@Benchmark
+	public void whole(final Blackhole bh) throws IOException {
+		final InputStreamReader reader = new InputStreamReader(
+				new ByteArrayInputStream(response), "UTF-8");
+		try {
+			final LinkItems page = gson.fromJson(reader, LinkItems.class);
+			for (LinkMSG link : page.links) {
+				bh.consume(link.toDBItem());
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+}
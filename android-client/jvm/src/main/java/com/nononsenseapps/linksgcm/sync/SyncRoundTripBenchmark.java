@@ -0,0 +1,79 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import retrofit.client.Client;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.LinksTestServer;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * A first sync of a device, over HTTP to an in-process server: the local
+ * links are uploaded while everything on the server is downloaded and
+ * merged. See JvmSync for what of onPerformSync this covers.
+ *
+ * Each sync starts from a new database and server, so it is timed once
+ * per invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SyncRoundTripBenchmark {
+
+	// Links added on the device since
+	private static final int LOCAL_LINKS = 250;
+
+	@Param({ "1000", "10000" })
+	public int remoteLinks;
+
+	// Shared, it keeps the connections alive like the app's
+	private Client httpClient;
+	private LinksTestServer server;
+	private JdbcStorage db;
+
+	@Setup(Level.Trial)
+	public void setUpClient() {
+		httpClient = Transport.newHttpClient();
+	}
+
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		server = new LinksTestServer();
+		server.addLinks(remoteLinks);
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		TestData.addLocal(db, LOCAL_LINKS);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		db.close();
+		server.close();
+	}
+
+	@Benchmark
+	public JvmSync sync() {
+		final JvmSync sync = new JvmSync(db, new Transport(
+				server.getApiUrl(), httpClient));
+		sync.sync();
+		return sync;
+	}
+}
@@ -0,0 +1,131 @@
+package com.nononsenseapps.linksgcm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class LinkIDGeneratorTest {
+
+	private static final int COLLISION_IDS = 10000000;
+
+	@Test
+	public void idsAreLowercaseHex() {
+		for (int i = 0; i < 10000; i++) {
+			final String id = LinkIDGenerator.generateID();
+			assertEquals(2 * LinkIDGenerator.ID_BYTES, id.length());
+			assertTrue(id, id.matches("[0-9a-f]+"));
+		}
+	}
+
+	/**
+	 * 10M ids, without a collision. With 120 bits, one is expected after
+	 * about 2^60.
+	 */
+	@Test
+	public void noCollisions() {
+		// As two longs each, 14 and 16 hex chars. Strings would need
+		// gigabytes.
+		final long[] high = new long[COLLISION_IDS];
+		final long[] low = new long[COLLISION_IDS];
+		for (int i = 0; i < COLLISION_IDS; i++) {
+			final String id = LinkIDGenerator.generateID();
+			high[i] = Long.parseLong(id.substring(0, 14), 16);
+			low[i] = Long.parseUnsignedLong(id.substring(14), 16);
+		}
+
+		// The high halves collide now and then, compare the whole id
+		// for those
+		final long[] sorted = high.clone();
+		Arrays.sort(sorted);
+		final Set<Long> shared = new HashSet<Long>();
+		for (int i = 1; i < sorted.length; i++) {
+			if (sorted[i] == sorted[i - 1]) {
+				shared.add(sorted[i]);
+			}
+		}
+		final Map<Long, Set<Long>> lows = new HashMap<Long, Set<Long>>();
+		for (int i = 0; i < COLLISION_IDS; i++) {
+			if (shared.contains(high[i])) {
+				if (!lows.containsKey(high[i])) {
+					lows.put(high[i], new HashSet<Long>());
+				}
+				assertTrue("collision", lows.get(high[i]).add(low[i]));
+			}
+		}
+	}
+
+	/**
+	 * Ids say nothing about when they were made, unlike the timestamp.
+	 * Every position is any hex char with the same chance, and an id is
+	 * as often before the previous one as after it.
+	 */
+	@Test
+	public void idsAreUnordered() {
+		final int count = 200000;
+		final int[][] chars = new int[2 * LinkIDGenerator.ID_BYTES][16];
+		int increasing = 0;
+		String previous = LinkIDGenerator.generateID();
+		for (int i = 0; i < count; i++) {
+			final String id = LinkIDGenerator.generateID();
+			for (int p = 0; p < id.length(); p++) {
+				chars[p][Character.digit(id.charAt(p), 16)]++;
+			}
+			if (id.compareTo(previous) > 0) {
+				increasing++;
+			}
+			previous = id;
+		}
+
+		assertEquals(0.5, increasing / (double) count, 0.01);
+		for (int[] position : chars) {
+			for (int n : position) {
+				// 12500 expected, more than 10 standard deviations off
+				// is a bug
+				assertEquals(count / 16.0, n, 1100);
+			}
+		}
+	}
+
+	@Test
+	public void threadsDontShareIds() throws Exception {
+		final int threads = 8;
+		final int perThread = 50000;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+			for (int t = 0; t < threads; t++) {
+				results.add(executor.submit(new Callable<String[]>() {
+					@Override
+					public String[] call() {
+						final String[] ids = new String[perThread];
+						for (int i = 0; i < perThread; i++) {
+							ids[i] = LinkIDGenerator.generateID();
+						}
+						return ids;
+					}
+				}));
+			}
+			final Set<String> all = new HashSet<String>();
+			for (Future<String[]> result : results) {
+				all.addAll(Arrays.asList(result.get()));
+			}
+			assertEquals(threads * perThread, all.size());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
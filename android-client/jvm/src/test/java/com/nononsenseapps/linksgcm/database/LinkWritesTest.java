@@ -0,0 +1,124 @@
+package com.nononsenseapps.linksgcm.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * mergeRemote when a remote link has the url of another local one.
+ */
+public class LinkWritesTest {
+
+	private JdbcStorage db;
+
+	@Before
+	public void setUp() {
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+	}
+
+	@Test
+	public void remoteLinkReplacesSyncedLinkWithSameUrl() {
+		final LinkItem local = TestData.addSynced(db, 1).get(0);
+
+		assertEquals(1, merge(remote(local.url)));
+
+		assertEquals(0, count("sha = '" + local.sha + "'"));
+		assertEquals(1, count("sha = 'remote' AND synced = 1"));
+	}
+
+	@Test
+	public void unsyncedLinkWithSameUrlIsKept() {
+		final LinkItem local = TestData.addLocal(db, 1).get(0);
+
+		assertEquals(0, merge(remote(local.url)));
+
+		assertEquals(1, count("sha = '" + local.sha + "' AND synced = 0"));
+		assertEquals(0, count("sha = 'remote'"));
+		assertEquals(1, TestData.count(db, "LinkOutbox", null));
+	}
+
+	@Test
+	public void linkWithQueuedChangeIsKept() {
+		final LinkItem local = TestData.addSynced(db, 1).get(0);
+		db.execSQL("INSERT INTO LinkOutbox (sha, op) VALUES ('" + local.sha
+				+ "', " + LinkOutbox.OP_UPDATE + ")");
+
+		assertEquals(0, merge(remote(local.url)));
+
+		assertEquals(1, count("sha = '" + local.sha + "'"));
+		assertEquals(0, count("sha = 'remote'"));
+	}
+
+	@Test
+	public void deletedLinkWithSameUrlIsKept() {
+		final LinkItem local = TestData.addSynced(db, 1).get(0);
+		db.execSQL("UPDATE Link SET deleted = 1");
+
+		assertEquals(0, merge(remote(local.url)));
+
+		assertEquals(1, count("sha = '" + local.sha + "' AND deleted = 1"));
+	}
+
+	/**
+	 * As a sync does with the answer to an upload: the server stored the
+	 * link under its own sha.
+	 */
+	@Test
+	public void serversLinkReplacesUploadedLink() {
+		final LinkItem local = TestData.addLocal(db, 1).get(0);
+		final List<LinkOutbox.Entry> sent = LinkWrites.takeOutbox(db);
+		assertEquals(1, sent.size());
+
+		LinkWrites.acknowledge(db, sent);
+		assertEquals(1, merge(remote(local.url)));
+
+		assertEquals(0, count("sha = '" + local.sha + "'"));
+		assertEquals(1, count("sha = 'remote' AND synced = 1"));
+		assertEquals(0, TestData.count(db, "LinkOutbox", null));
+	}
+
+	@Test
+	public void linkWithoutUrlIsSkipped() {
+		TestData.addSynced(db, 1);
+		final List<LinkItem> links = new ArrayList<LinkItem>();
+		links.add(remote(null));
+		links.add(remote("http://other"));
+		links.get(1).sha = "other";
+
+		assertEquals(1, LinkWrites.mergeRemote(db, links));
+
+		assertEquals(0, count("sha = 'remote'"));
+		assertEquals(1, count("sha = 'other'"));
+	}
+
+	private static LinkItem remote(final String url) {
+		final LinkItem link = new LinkItem();
+		link.sha = "remote";
+		link.url = url;
+		link.timestamp = 1000;
+		link.rev = 5;
+		return link;
+	}
+
+	private int merge(final LinkItem link) {
+		return LinkWrites.mergeRemote(db, Collections.singletonList(link));
+	}
+
+	private long count(final String where) {
+		return TestData.count(db, "Link", where);
+	}
+}
@@ -0,0 +1,145 @@
+package com.nononsenseapps.linksgcm.database;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * The queries of the list, the sync and the outbox are answered from an
+ * index, without sorting or scanning Link. Plans can differ between SQLite
+ * versions, this runs the one of sqlite-jdbc and not the one on the device.
+ */
+public class QueryPlanTest {
+
+	private static final String FIELDS = "_id, sha, url, timestamp, deleted,"
+			+ " synced, rev";
+	private static final String PAGE = "SELECT " + FIELDS + " FROM Link"
+			+ " WHERE %s ORDER BY " + LinkItem.SORT_PAGED + " LIMIT %s";
+
+	private JdbcStorage db;
+
+	@Before
+	public void setUp() {
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		TestData.addSynced(db, 1000);
+		TestData.addLocal(db, 100);
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+	}
+
+	@Test
+	public void firstPage() {
+		assertCovered(String.format(PAGE, LinkItem.SELECTION_VISIBLE, "50"));
+	}
+
+	@Test
+	public void pageAfterKey() {
+		final String plan = assertCovered(String.format(PAGE,
+				LinkItem.SELECTION_VISIBLE_AFTER, "50"));
+		// Searched from the key, not read from the start
+		assertTrue(plan, plan.contains("timestamp<?"));
+	}
+
+	@Test
+	public void pageByOffset() {
+		assertCovered(String.format(PAGE, LinkItem.SELECTION_VISIBLE, "500,50"));
+	}
+
+	@Test
+	public void ids() {
+		assertCovered("SELECT _id FROM Link WHERE " + LinkItem.SELECTION_VISIBLE
+				+ " ORDER BY " + LinkItem.SORT_PAGED);
+	}
+
+	@Test
+	public void count() {
+		assertCovered("SELECT COUNT(*) FROM Link WHERE "
+				+ LinkItem.SELECTION_VISIBLE);
+	}
+
+	@Test
+	public void mergeState() {
+		assertSearched(LinkItem.MERGE_STATE_QUERY, "Link", "sha=?");
+	}
+
+	@Test
+	public void mergeDeleteUrl() {
+		assertSearched(LinkItem.MERGE_DELETE_URL_STATEMENT, "Link", "url=?");
+	}
+
+	@Test
+	public void sending() {
+		final String plan = assertSearched(LinkOutbox.SENDING_QUERY, "Link",
+				"sha=?");
+		// The outbox is scanned, it is short. In the order of its rowid.
+		assertFalse(plan, plan.contains("TEMP B-TREE"));
+	}
+
+	@Test
+	public void outboxBySha() {
+		assertSearched("SELECT _id, op, sending FROM LinkOutbox WHERE sha = ?",
+				"LinkOutbox", "sha=?");
+	}
+
+	@Test
+	public void search() {
+		assertSearched(LinkItem.SEARCH_QUERY, "Link", "rowid=?");
+	}
+
+	/**
+	 * Asserts the query is read from link_visible_idx alone, in the order
+	 * asked for.
+	 */
+	private String assertCovered(final String sql) {
+		final String plan = plan(sql);
+		assertTrue(plan,
+				plan.contains("USING COVERING INDEX link_visible_idx (deleted=?"));
+		assertFalse(plan, plan.contains("TEMP B-TREE"));
+		return plan;
+	}
+
+	/**
+	 * Asserts the table is searched with an index on the given terms, and
+	 * never scanned.
+	 */
+	private String assertSearched(final String sql, final String table,
+			final String terms) {
+		final String plan = plan(sql);
+		assertTrue(plan, Pattern.compile("(?m)^SEARCH " + table
+				+ " USING .*\\(.*\\Q" + terms + "\\E").matcher(plan).find());
+		assertFalse(plan, Pattern.compile("(?m)^SCAN " + table + "\\b")
+				.matcher(plan).find());
+		return plan;
+	}
+
+	private String plan(final String sql) {
+		final List<String> lines = new ArrayList<String>();
+		final Storage.Rows rows = db.query("EXPLAIN QUERY PLAN " + sql, null);
+		try {
+			while (rows.moveToNext()) {
+				lines.add(rows.getString(3));
+			}
+		}
+		finally {
+			rows.close();
+		}
+		final StringBuilder result = new StringBuilder();
+		for (String line : lines) {
+			result.append(line).append('\n');
+		}
+		return result.toString();
+	}
+}
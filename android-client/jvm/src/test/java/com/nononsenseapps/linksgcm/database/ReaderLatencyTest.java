@@ -0,0 +1,175 @@
+package com.nononsenseapps.linksgcm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * Reads of the list while a sync writes 10k links, each on its own
+ * connection as with write-ahead logging on the device. DatabaseHandler
+ * and its locks need the device, this covers what SQLite does underneath.
+ */
+public class ReaderLatencyTest {
+
+	private static final int SYNCED = 1000;
+	private static final int WRITTEN = 10000;
+	private static final int CHUNK = 500;
+	private static final String FIRST_PAGE = "SELECT _id, sha, url, timestamp,"
+			+ " deleted, synced, rev FROM Link WHERE "
+			+ LinkItem.SELECTION_VISIBLE + " ORDER BY " + LinkItem.SORT_PAGED
+			+ " LIMIT 50";
+
+	private String file;
+	private JdbcStorage writer;
+	private JdbcStorage reader;
+	private final AtomicReference<Throwable> writeError =
+			new AtomicReference<Throwable>();
+
+	@Before
+	public void setUp() {
+		file = JdbcStorage.createDatabase();
+		writer = new JdbcStorage(file);
+		TestData.addSynced(writer, SYNCED);
+	}
+
+	@After
+	public void tearDown() {
+		writer.close();
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void readsDontWaitForTheWriter() throws Exception {
+		writer.enableWriteAheadLogging();
+		reader = new JdbcStorage(file);
+
+		final CountDownLatch written = new CountDownLatch(1);
+		final CountDownLatch readsDone = new CountDownLatch(1);
+		final Thread thread = write(written, readsDone);
+
+		final List<Long> latencies = new ArrayList<Long>();
+		// While the links are written, and once all are, before the commit
+		int afterWritten = 0;
+		while (afterWritten < 50) {
+			if (written.getCount() == 0) {
+				afterWritten++;
+			}
+			final long start = System.nanoTime();
+			readFirstPage();
+			// The sync isn't seen until it commits
+			assertEquals(SYNCED, TestData.count(reader, "Link", null));
+			latencies.add(System.nanoTime() - start);
+			if (!thread.isAlive()) {
+				fail("writer stopped");
+			}
+		}
+		readsDone.countDown();
+		thread.join();
+		assertNull(writeError.get());
+		assertEquals(SYNCED + WRITTEN, TestData.count(reader, "Link", null));
+
+		Collections.sort(latencies);
+		final long median = latencies.get(latencies.size() / 2);
+		final long p99 = latencies.get(latencies.size() * 99 / 100);
+		final long max = latencies.get(latencies.size() - 1);
+		System.out.printf("%d reads during the write: median %.2f ms,"
+				+ " 99th %.2f ms, max %.2f ms%n", latencies.size(),
+				median / 1e6, p99 / 1e6, max / 1e6);
+		// Generous for slow machines. Waiting for the writer would take
+		// until the readsDone timeout.
+		assertTrue("max " + max / 1e6 + " ms",
+				max < TimeUnit.MILLISECONDS.toNanos(1000));
+	}
+
+	/**
+	 * Without write-ahead logging the exclusive transaction of the sync
+	 * locks readers out. Why the app turns it on.
+	 */
+	@Test
+	public void rollbackJournalBlocksReads() throws Exception {
+		reader = new JdbcStorage(file);
+		reader.execSQL("PRAGMA busy_timeout = 100");
+
+		final CountDownLatch written = new CountDownLatch(1);
+		final CountDownLatch readsDone = new CountDownLatch(1);
+		final Thread thread = write(written, readsDone);
+		try {
+			assertTrue(written.await(60, TimeUnit.SECONDS));
+			readFirstPage();
+			fail("read while the writer held the database");
+		}
+		catch (JdbcStorage.StorageException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("SQLITE_BUSY"));
+		}
+		finally {
+			readsDone.countDown();
+			thread.join();
+		}
+		assertNull(writeError.get());
+	}
+
+	/**
+	 * Writes WRITTEN links in one transaction, as a sync applies pages,
+	 * and commits once readsDone is counted down.
+	 */
+	private Thread write(final CountDownLatch written,
+			final CountDownLatch readsDone) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writer.beginTransaction();
+				try {
+					final List<LinkItem> links = TestData.newLinks(WRITTEN);
+					for (int i = 0; i < WRITTEN; i += CHUNK) {
+						LinkWrites.applyBatch(writer,
+								links.subList(i, i + CHUNK), null);
+					}
+					written.countDown();
+					if (!readsDone.await(60, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("reads never finished");
+					}
+					writer.setTransactionSuccessful();
+				}
+				catch (Throwable e) {
+					writeError.set(e);
+				}
+				finally {
+					writer.endTransaction();
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private void readFirstPage() {
+		final Storage.Rows rows = reader.query(FIRST_PAGE, null);
+		try {
+			int count = 0;
+			while (rows.moveToNext()) {
+				count++;
+			}
+			assertEquals(50, count);
+		}
+		finally {
+			rows.close();
+		}
+	}
+}
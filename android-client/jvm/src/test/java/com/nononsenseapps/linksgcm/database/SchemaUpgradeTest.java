@@ -0,0 +1,126 @@
+package com.nononsenseapps.linksgcm.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * Upgrades databases of old versions, created with the statements of their
+ * time, and checks that they end up like new ones with the links kept.
+ */
+public class SchemaUpgradeTest {
+
+	// As the statements were in the versions, don't change them
+	private static final String V1_CREATE_LINK = "CREATE TABLE Link"
+			+ "  (_id INTEGER PRIMARY KEY,"
+			+ "  sha TEXT NOT NULL,"
+			+ "  url TEXT NOT NULL,"
+			+ "  timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
+			+ "  deleted INTEGER NOT NULL DEFAULT 0,"
+			+ "  synced INTEGER NOT NULL DEFAULT 0,"
+			+ "  UNIQUE (url) ON CONFLICT IGNORE,"
+			+ "  UNIQUE (sha) ON CONFLICT IGNORE)";
+	private static final String V2_CREATE_VISIBLE_INDEX = "CREATE INDEX IF NOT EXISTS link_visible_idx"
+			+ "  ON Link (deleted, timestamp, sha, url, synced)";
+	private static final String V2_CREATE_PENDING_INDEX = "CREATE INDEX IF NOT EXISTS link_pending_idx"
+			+ "  ON Link (synced) WHERE synced = 0";
+	private static final String V3_CREATE_VISIBLE_INDEX = "CREATE INDEX IF NOT EXISTS link_visible_idx"
+			+ "  ON Link (deleted, timestamp, _id, sha, url, synced)";
+
+	private JdbcStorage db;
+
+	@Before
+	public void setUp() throws Exception {
+		final File file = File.createTempFile("links", ".db");
+		file.deleteOnExit();
+		db = new JdbcStorage(file.getPath());
+		db.execSQL(V1_CREATE_LINK);
+		db.execSQL("INSERT INTO Link (sha, url, timestamp, deleted, synced)"
+				+ " VALUES ('a', 'http://www.example.com/a', '2013-08-01 12:00:00', 0, 1)");
+		db.execSQL("INSERT INTO Link (sha, url, timestamp, deleted, synced)"
+				+ " VALUES ('b', 'http://example.com/b', '2013-08-02 12:00:00', 0, 0)");
+		db.execSQL("INSERT INTO Link (sha, url, timestamp, deleted, synced)"
+				+ " VALUES ('c', 'http://example.com/c', '2013-08-03 12:00:00', 1, 0)");
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+	}
+
+	@Test
+	public void fromVersion1() {
+		upgrade(1);
+	}
+
+	@Test
+	public void fromVersion2() {
+		db.execSQL(V2_CREATE_VISIBLE_INDEX);
+		db.execSQL(V2_CREATE_PENDING_INDEX);
+		upgrade(2);
+	}
+
+	@Test
+	public void fromVersion3() {
+		db.execSQL(V3_CREATE_VISIBLE_INDEX);
+		db.execSQL(V2_CREATE_PENDING_INDEX);
+		upgrade(3);
+	}
+
+	private void upgrade(final int version) {
+		db.beginTransaction();
+		try {
+			Schema.upgrade(db, version);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+
+		assertEquals(3, TestData.count(db, "Link", null));
+		// 2013-08-01 12:00:00 UTC
+		assertEquals(1, TestData.count(db, "Link",
+				"sha = 'a' AND timestamp = 1375358400000 AND synced = 1"));
+		// The unsynced and the deleted link are waiting for upload
+		assertEquals(2, TestData.count(db, "LinkOutbox",
+				"sha IN ('b', 'c')"));
+		// Only the visible links are searchable, without scheme and www
+		assertEquals(1, TestData.count(db, "LinkFts",
+				"LinkFts MATCH 'example.com/a'"));
+		assertEquals(2, TestData.count(db, "LinkFts", null));
+
+		final String fresh = JdbcStorage.createDatabase();
+		final JdbcStorage expected = new JdbcStorage(fresh);
+		try {
+			assertEquals(schemaOf(expected), schemaOf(db));
+		}
+		finally {
+			expected.close();
+		}
+	}
+
+	private static List<String> schemaOf(final Storage db) {
+		final List<String> result = new ArrayList<String>();
+		final Storage.Rows rows = db.query("SELECT type, name, sql"
+				+ " FROM sqlite_master ORDER BY type, name", null);
+		try {
+			while (rows.moveToNext()) {
+				result.add(rows.getString(0) + " " + rows.getString(1) + ": "
+						+ rows.getString(2));
+			}
+		}
+		finally {
+			rows.close();
+		}
+		return result;
+	}
+}
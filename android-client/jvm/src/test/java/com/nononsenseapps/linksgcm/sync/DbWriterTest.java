@@ -0,0 +1,137 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A failed write reaches the threads of the sync, whatever it threw.
+ */
+public class DbWriterTest {
+
+	private DbWriter writer;
+
+	@Before
+	public void setUp() {
+		writer = new DbWriter(1);
+		writer.start();
+	}
+
+	@After
+	public void tearDown() {
+		writer.close();
+	}
+
+	@Test
+	public void writesRunInOrder() {
+		final StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			final int n = i;
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					order.append(n);
+				}
+			});
+		}
+		writer.finish();
+		assertEquals("0123456789", order.toString());
+	}
+
+	@Test
+	public void exceptionIsThrownByFinish() {
+		final RuntimeException failure = new IllegalStateException("write");
+		writer.execute(throwing(failure, null));
+		try {
+			writer.finish();
+			fail("finished after a failed write");
+		}
+		catch (IllegalStateException e) {
+			assertSame(failure, e);
+		}
+	}
+
+	/**
+	 * With the queue full behind the failed write, as when the sync
+	 * downloads faster than it writes.
+	 */
+	@Test(timeout = 10000)
+	public void errorReleasesWaitingProducers() throws Exception {
+		final Error failure = new OutOfMemoryError("write");
+		final CountDownLatch fail = new CountDownLatch(1);
+		writer.execute(throwing(failure, fail));
+		final AtomicInteger writes = new AtomicInteger();
+		final Runnable write = new Runnable() {
+			@Override
+			public void run() {
+				writes.incrementAndGet();
+			}
+		};
+		// Fills the queue, the first write is running
+		writer.execute(write);
+
+		fail.countDown();
+		try {
+			writer.finish();
+			fail("finished after a failed write");
+		}
+		catch (OutOfMemoryError e) {
+			assertSame(failure, e);
+		}
+		// Later writes are refused, the queued one was dropped
+		try {
+			writer.execute(write);
+			fail("queued after a failed write");
+		}
+		catch (OutOfMemoryError e) {
+			assertSame(failure, e);
+		}
+		assertEquals(0, writes.get());
+	}
+
+	/**
+	 * As an upload still running when the download of its sync failed.
+	 */
+	@Test
+	public void writesAfterCloseAreRefused() {
+		writer.close();
+		try {
+			writer.execute(throwing(new IllegalStateException("ran"), null));
+			fail("queued after close");
+		}
+		catch (DbWriter.CancelledException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * A write which throws once the latch, if any, is counted down.
+	 */
+	private static Runnable throwing(final Throwable failure,
+			final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (latch != null) {
+					try {
+						latch.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				throw (RuntimeException) failure;
+			}
+		};
+	}
+}
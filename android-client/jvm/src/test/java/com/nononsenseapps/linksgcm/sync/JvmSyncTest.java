@@ -0,0 +1,62 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.LinksTestServer;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+public class JvmSyncTest {
+
+	private LinksTestServer server;
+	private JdbcStorage db;
+	private JvmSync sync;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LinksTestServer();
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		sync = new JvmSync(db, new Transport(server.getApiUrl(),
+				Transport.newHttpClient()));
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+		server.close();
+	}
+
+	@Test
+	public void firstSyncUploadsAndDownloadsEverything() {
+		server.addLinks(1234);
+		TestData.addLocal(db, 321);
+
+		sync.sync();
+
+		assertEquals(321, sync.getUploaded());
+		assertEquals(1234 + 321, server.size());
+		assertEquals(1234 + 321, TestData.count(db, "Link", "synced = 1"));
+		assertEquals(0, TestData.count(db, "Link", "synced = 0"));
+		assertEquals(0, TestData.count(db, "LinkOutbox", null));
+	}
+
+	@Test
+	public void laterSyncsOnlyDownloadChanges() {
+		server.addLinks(700);
+		sync.sync();
+		assertEquals(700, sync.getDownloaded());
+
+		server.addLinks(5);
+		sync.sync();
+		assertEquals(5, sync.getDownloaded());
+		assertEquals(705, TestData.count(db, "Link", null));
+
+		sync.sync();
+		assertEquals(0, sync.getDownloaded());
+		assertEquals(server.size(), sync.getLastRev());
+	}
+}
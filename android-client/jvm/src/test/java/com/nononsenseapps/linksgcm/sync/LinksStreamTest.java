@@ -0,0 +1,143 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import retrofit.RetrofitError;
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+import retrofit.mime.TypedInput;
+
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkItems;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
+
+/**
+ * Responses which aren't a page of links end in a RetrofitError, or an empty
+ * page, and release the connection.
+ */
+public class LinksStreamTest {
+
+	private final List<LinkMSG> received = new ArrayList<LinkMSG>();
+	private final LinksStream.LinkHandler handler = new LinksStream.LinkHandler() {
+		@Override
+		public void onLink(final LinkMSG link) {
+			received.add(link);
+		}
+	};
+
+	@Test
+	public void errorBodyIsReadAndClosed() {
+		final Body body = new Body("{\"error\": \"no\"}");
+		try {
+			list(new Response(500, "Server Error",
+					Collections.<Header> emptyList(), body));
+			fail("listed links of an error");
+		}
+		catch (RetrofitError e) {
+			assertEquals(500, e.getResponse().getStatus());
+			assertArrayEquals(body.bytes, ((TypedByteArray) e.getResponse()
+					.getBody()).getBytes());
+		}
+		assertTrue(body.closed);
+	}
+
+	@Test
+	public void noContentIsAnEmptyPage() {
+		final LinkItems page = list(new Response(204, "No Content",
+				Collections.<Header> emptyList(), null));
+
+		assertFalse(page.hasMore);
+		assertNull(page.latestRev);
+		assertTrue(received.isEmpty());
+	}
+
+	@Test
+	public void malformedRevisionIsAnError() {
+		final Body body = new Body("{\"links\": [], \"latestRev\": \"12x\"}");
+		try {
+			list(new Response(200, "OK", Collections.<Header> emptyList(),
+					body));
+			fail("parsed a malformed revision");
+		}
+		catch (RetrofitError e) {
+			assertFalse(e.isNetworkError());
+			assertTrue(e.getCause() instanceof NumberFormatException);
+		}
+		assertTrue(body.closed);
+	}
+
+	@Test
+	public void pageIsParsed() {
+		final LinkItems page = list(new Response(200, "OK",
+				Collections.<Header> emptyList(), new Body("{\"links\": [{"
+						+ "\"sha\": \"a\", \"url\": \"http://a\", \"rev\": 3,"
+						+ " \"deleted\": false}], \"latestRev\": \"3\","
+						+ " \"hasMore\": true}")));
+
+		assertEquals(Long.valueOf(3), page.latestRev);
+		assertTrue(page.hasMore);
+		assertEquals(1, received.size());
+		assertEquals("a", received.get(0).sha);
+	}
+
+	private LinkItems list(final Response response) {
+		final LinksStream stream = new LinksStream("http://links",
+				new Client() {
+					@Override
+					public Response execute(final Request request) {
+						return response;
+					}
+				});
+		return stream.listLinks("token", "true", null, null, null, 0L,
+				handler);
+	}
+
+	/**
+	 * A response body which remembers whether it was closed.
+	 */
+	private static class Body implements TypedInput {
+		final byte[] bytes;
+		boolean closed = false;
+
+		Body(final String json) {
+			bytes = json.getBytes();
+		}
+
+		@Override
+		public String mimeType() {
+			return "application/json";
+		}
+
+		@Override
+		public long length() {
+			return bytes.length;
+		}
+
+		@Override
+		public InputStream in() throws IOException {
+			return new ByteArrayInputStream(bytes) {
+				@Override
+				public void close() throws IOException {
+					closed = true;
+					super.close();
+				}
+			};
+		}
+	}
+}
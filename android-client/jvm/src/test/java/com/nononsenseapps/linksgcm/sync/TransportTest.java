@@ -0,0 +1,94 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import retrofit.client.Client;
+
+import com.nononsenseapps.linksgcm.jvm.JdbcStorage;
+import com.nononsenseapps.linksgcm.jvm.LinksTestServer;
+import com.nononsenseapps.linksgcm.jvm.TestData;
+
+/**
+ * Requests of a sync share the connections of the HTTP client, and their
+ * bodies are gzipped both ways.
+ */
+public class TransportTest {
+
+	private LinksTestServer server;
+	private JdbcStorage db;
+	private Client httpClient;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LinksTestServer();
+		db = new JdbcStorage(JdbcStorage.createDatabase());
+		httpClient = Transport.newHttpClient();
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+		server.close();
+	}
+
+	@Test
+	public void downloadUsesOneConnection() {
+		server.addLinks(5 * JvmSync.DOWNLOAD_PAGE_SIZE + 100);
+		final Transport transport = new Transport(server.getApiUrl(),
+				httpClient);
+
+		new JvmSync(db, transport).sync();
+
+		assertEquals(6, server.getRequests());
+		assertEquals(6, transport.getMeter().getRequests());
+		assertEquals(1, server.getConnections());
+		assertEquals(6, server.getGzippedResponses());
+		// As compressed on the wire
+		assertEquals(server.getResponseBytes(), transport.getMeter()
+				.getBytesReceived());
+	}
+
+	/**
+	 * Uploads go alongside the download, each needs a connection of its
+	 * own. No more than that.
+	 */
+	@Test
+	public void uploadAndDownloadShareConnections() {
+		server.addLinks(2 * JvmSync.DOWNLOAD_PAGE_SIZE + 100);
+		TestData.addLocal(db, 3 * JvmSync.UPLOAD_BATCH_SIZE + 50);
+		final Transport transport = new Transport(server.getApiUrl(),
+				httpClient);
+
+		new JvmSync(db, transport).sync();
+
+		assertTrue(server.getRequests() >= 3 + 4);
+		assertTrue("connections " + server.getConnections(),
+				server.getConnections() <= 2);
+		assertEquals(4, server.getGzippedRequests());
+	}
+
+	/**
+	 * As when a sync follows another, or a registration is sent while the
+	 * app syncs.
+	 */
+	@Test
+	public void transportsShareTheClientsConnections() {
+		server.addLinks(JvmSync.DOWNLOAD_PAGE_SIZE + 100);
+		final Transport first = new Transport(server.getApiUrl(), httpClient);
+		new JvmSync(db, first).sync();
+		assertSame(first.getServer(), first.getServer());
+
+		// Downloads everything again, a JvmSync doesn't keep the revision
+		final Transport second = new Transport(server.getApiUrl(), httpClient);
+		new JvmSync(db, second).sync();
+
+		assertEquals(4, server.getRequests());
+		assertEquals(1, server.getConnections());
+	}
+}
@@ -1,5 +1,8 @@
 package com.nononsenseapps.linksgcm;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.nononsenseapps.linksgcm.database.LinkItem;
 
 import android.app.IntentService;
@@ -14,7 +17,9 @@ import android.content.Context;
 public class AddLinkService extends IntentService {
 
 	private static final String ACTION_ADD = "com.nononsenseapps.linksgcm.action.ADD";
+	private static final String ACTION_ADD_MANY = "com.nononsenseapps.linksgcm.action.ADD_MANY";
 	private static final String EXTRA_LINK = "com.nononsenseapps.linksgcm.extra.LINK";
+	private static final String EXTRA_LINKS = "com.nononsenseapps.linksgcm.extra.LINKS";
 
 	/**
 	 * Starts this service to perform action Foo with the given parameters. If
@@ -28,6 +33,18 @@ public class AddLinkService extends IntentService {
 		context.startService(intent);
 	}
 
+	/**
+	 * Adds several links at once, in a single transaction. Meant for imports.
+	 * 
+	 * @see IntentService
+	 */
+	public static void addLinks(Context context, ArrayList<String> uris) {
+		Intent intent = new Intent(context, AddLinkService.class);
+		intent.setAction(ACTION_ADD_MANY).putStringArrayListExtra(EXTRA_LINKS,
+				uris);
+		context.startService(intent);
+	}
+
 	public AddLinkService() {
 		super("AddLinkService");
 	}
@@ -39,6 +56,9 @@ public class AddLinkService extends IntentService {
 			if (ACTION_ADD.equals(action)) {
 				addLink(intent.getStringExtra(EXTRA_LINK));
 			}
+			else if (ACTION_ADD_MANY.equals(action)) {
+				addLinks(intent.getStringArrayListExtra(EXTRA_LINKS));
+			}
 		}
 	}
 
@@ -50,4 +70,21 @@ public class AddLinkService extends IntentService {
 		values.put(LinkItem.COL_URL, uri);
 		getContentResolver().insert(LinkItem.URI(), values);
 	}
+
+	private void addLinks(final List<String> uris) {
+		if (uris == null) {
+			return;
+		}
+		final List<ContentValues> values = new ArrayList<ContentValues>(
+				uris.size());
+		for (String uri : uris) {
+			if (uri != null && !uri.isEmpty()) {
+				final ContentValues value = new ContentValues();
+				value.put(LinkItem.COL_URL, uri);
+				values.add(value);
+			}
+		}
+		getContentResolver().bulkInsert(LinkItem.URI(),
+				values.toArray(new ContentValues[values.size()]));
+	}
 }
@@ -0,0 +1,107 @@
+package com.nononsenseapps.linksgcm;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.database.LinkPager;
+
+/**
+ * Shows the links of a {@link LinkPager}. Only the pages around the visible
+ * rows are kept in memory.
+ */
+public class LinkAdapter extends BaseAdapter implements LinkPager.Listener {
+
+	private final LayoutInflater inflater;
+	private final LinkPager pager;
+	// Only used on the main thread
+	private final DateFormat dateFormat;
+	private final Date date = new Date();
+
+	public LinkAdapter(final Context context) {
+		this.inflater = LayoutInflater.from(context);
+		this.pager = new LinkPager(context.getContentResolver(), this);
+		this.dateFormat = android.text.format.DateFormat
+				.getMediumDateFormat(context);
+	}
+
+	/**
+	 * Stop listening for changes. The adapter can't be used after this.
+	 */
+	public void close() {
+		pager.close();
+	}
+
+	/**
+	 * Show only links matching the query. Null or empty shows all.
+	 */
+	public void setQuery(final String query) {
+		pager.setQuery(query);
+	}
+
+	@Override
+	public void onChanged() {
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public void onPageLoaded() {
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public int getCount() {
+		return pager.getCount();
+	}
+
+	@Override
+	public LinkItem getItem(int position) {
+		return pager.getItem(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		// Known before the row is, checked items depend on it
+		return pager.getItemId(position);
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		final View view;
+		if (convertView == null) {
+			view = inflater.inflate(R.layout.list_item, parent, false);
+		}
+		else {
+			view = convertView;
+		}
+
+		final LinkItem item = getItem(position);
+		final TextView text1 = (TextView) view.findViewById(android.R.id.text1);
+		final TextView text2 = (TextView) view.findViewById(android.R.id.text2);
+		if (item != null) {
+			text1.setText(item.url);
+			date.setTime(item.timestamp);
+			text2.setText(dateFormat.format(date));
+		}
+		else {
+			// Still loading, or removed since the count was taken. Either
+			// way the pager tells us when to show it again.
+			text1.setText(null);
+			text2.setText(null);
+		}
+
+		return view;
+	}
+}
@@ -1,5 +1,6 @@
 package com.nononsenseapps.linksgcm;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 
@@ -8,15 +9,16 @@ import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.DialogFragment;
 import android.app.Fragment;
-import android.app.LoaderManager.LoaderCallbacks;
 import android.content.ActivityNotFoundException;
-import android.content.CursorLoader;
+import android.content.ContentProviderOperation;
 import android.content.Intent;
-import android.content.Loader;
-import android.database.Cursor;
+import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -28,12 +30,13 @@ import android.widget.AbsListView;
 import android.widget.AbsListView.MultiChoiceModeListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.CursorAdapter;
 import android.widget.ListAdapter;
-import android.widget.SimpleCursorAdapter;
+import android.widget.SearchView;
+import android.widget.SearchView.OnQueryTextListener;
 import android.widget.Toast;
 
 import com.google.android.gms.auth.GoogleAuthUtil;
+import com.nononsenseapps.linksgcm.database.ItemProvider;
 import com.nononsenseapps.linksgcm.database.LinkItem;
 import com.nononsenseapps.linksgcm.sync.AccountDialog;
 import com.nononsenseapps.linksgcm.sync.GetTokenTask;
@@ -50,6 +53,14 @@ import com.nononsenseapps.linksgcm.sync.SyncHelper;
  */
 public class LinkFragment extends Fragment {
 
+	private static final String TAG = "LinkFragment";
+
+	/**
+	 * Search waits this long after the last key press, so typing doesn't
+	 * run a query per character.
+	 */
+	private static final long SEARCH_DELAY_MS = 150;
+
 	/**
 	 * The fragment's ListView/GridView.
 	 */
@@ -59,7 +70,16 @@ public class LinkFragment extends Fragment {
 	 * The Adapter which will be used to populate the ListView/GridView with
 	 * Views.
 	 */
-	private CursorAdapter mAdapter;
+	private LinkAdapter mAdapter;
+
+	private final Handler mHandler = new Handler();
+	private String mPendingQuery = null;
+	private final Runnable mSearchRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mAdapter.setQuery(mPendingQuery);
+		}
+	};
 
 	/**
 	 * Mandatory empty constructor for the fragment manager to instantiate the
@@ -72,15 +92,38 @@ public class LinkFragment extends Fragment {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setHasOptionsMenu(true);
-		mAdapter = new SimpleCursorAdapter(getActivity(),
-				R.layout.list_item, null,
-				new String[] { LinkItem.COL_URL, LinkItem.COL_TIMESTAMP },
-				new int[] { android.R.id.text1, android.R.id.text2 }, 0);
+		// Only loads the pages of links being shown
+		mAdapter = new LinkAdapter(getActivity());
+	}
+
+	@Override
+	public void onDestroy() {
+		mHandler.removeCallbacks(mSearchRunnable);
+		mAdapter.close();
+		super.onDestroy();
 	}
 
 	@Override
 	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
 		inflater.inflate(R.menu.link_fragment, menu);
+
+		final SearchView searchView = (SearchView) menu.findItem(
+				R.id.action_search).getActionView();
+		searchView.setOnQueryTextListener(new OnQueryTextListener() {
+
+			@Override
+			public boolean onQueryTextSubmit(String query) {
+				search(query, 0);
+				return true;
+			}
+
+			@Override
+			public boolean onQueryTextChange(String newText) {
+				search(newText, SEARCH_DELAY_MS);
+				return true;
+			}
+		});
+
 		super.onCreateOptionsMenu(menu, inflater);
 	}
 
@@ -100,8 +143,10 @@ public class LinkFragment extends Fragment {
 			@Override
 			public void onItemClick(AdapterView<?> arg0, View arg1,
 					int position, long id) {
-				final LinkItem linkItem = new LinkItem((Cursor) mAdapter
-						.getItem(position));
+				final LinkItem linkItem = mAdapter.getItem(position);
+				if (linkItem == null) {
+					return;
+				}
 				try {
 				Intent i = new Intent(Intent.ACTION_VIEW);
 				i.setData(Uri.parse(linkItem.url));
@@ -122,9 +167,9 @@ public class LinkFragment extends Fragment {
 				// Here you can do something when items are
 				// selected/de-selected,
 				// such as update the title in the CAB
-				if (checked) {
-					links.put(id,
-							new LinkItem((Cursor) mAdapter.getItem(position)));
+				final LinkItem linkItem = mAdapter.getItem(position);
+				if (checked && linkItem != null) {
+					links.put(id, linkItem);
 				}
 				else {
 					links.remove(id);
@@ -168,33 +213,36 @@ public class LinkFragment extends Fragment {
 			}
 		});
 
-		// Load content
-		getLoaderManager().initLoader(0, null, new LoaderCallbacks<Cursor>() {
-
-			@Override
-			public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-				return new CursorLoader(getActivity(), LinkItem.URI(),
-						LinkItem.FIELDS, LinkItem.COL_DELETED + " IS 0", null,
-						LinkItem.COL_TIMESTAMP + " DESC");
-			}
-
-			@Override
-			public void onLoadFinished(Loader<Cursor> arg0, Cursor c) {
-				mAdapter.swapCursor(c);
-			}
-
-			@Override
-			public void onLoaderReset(Loader<Cursor> arg0) {
-				mAdapter.swapCursor(null);
-			}
-		});
-
 		return view;
 	}
 
+	/**
+	 * Replaces any search not yet started.
+	 */
+	void search(final String query, final long delay) {
+		mPendingQuery = query;
+		mHandler.removeCallbacks(mSearchRunnable);
+		mHandler.postDelayed(mSearchRunnable, delay);
+	}
+
+	/**
+	 * Deletes all items in a single transaction.
+	 */
 	void deleteItems(Collection<LinkItem> items) {
+		final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(
+				items.size());
 		for (LinkItem item : items) {
-			getActivity().getContentResolver().delete(item.getUri(), null, null);
+			ops.add(ContentProviderOperation.newDelete(item.getUri()).build());
+		}
+		try {
+			getActivity().getContentResolver().applyBatch(
+					ItemProvider.AUTHORITY, ops);
+		}
+		catch (RemoteException e) {
+			Log.e(TAG, "Could not delete links: " + e.getMessage());
+		}
+		catch (OperationApplicationException e) {
+			Log.e(TAG, "Could not delete links: " + e.getMessage());
 		}
 	}
 
@@ -1,6 +1,5 @@
 package com.nononsenseapps.linksgcm.database;
 
-import android.content.Context;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -28,17 +27,8 @@ public abstract class DBItem {
 
     public Uri getBaseUri() {
         return Uri.withAppendedPath(
-            Uri.parse(ItemProvider.SCHEME
-                      + ItemProvider.AUTHORITY), getTableName());
-    }
-
-    public void notifyProvider(final Context context) {
-        try {
-            context.getContentResolver().notifyChange(getUri(), null, false);
-        }
-        catch (UnsupportedOperationException e) {
-           // Catch this for test suite. Mock provider cant notify
-        }
+            Uri.parse(LinksContract.SCHEME
+                      + LinksContract.AUTHORITY), getTableName());
     }
 
 }
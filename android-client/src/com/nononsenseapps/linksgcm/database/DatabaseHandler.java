@@ -1,27 +1,41 @@
 package com.nononsenseapps.linksgcm.database;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import com.nononsenseapps.linksgcm.R;
 
 /**
  * Database handler, SQLite wrapper and ORM layer.
  * 
+ * Writes through the handler are serialized. If write-ahead logging is
+ * enabled with the db_write_ahead_logging resource, reads run concurrently
+ * with each other and with the writer. Otherwise reads wait for writes to
+ * finish as well.
  */
 public class DatabaseHandler extends SQLiteOpenHelper {
 
-	// All Static variables
-	// Database Version
-	private static final int DATABASE_VERSION = 1;
+	// Database Version, see Schema
+	private static final int DATABASE_VERSION = Schema.VERSION;
 
 	// Database Name
 	private static final String DATABASE_NAME = "SampleDB";
 	private final Context context;
+	private final boolean writeAheadLogging;
+	private final ReentrantLock writeLock = new ReentrantLock();
 
 	private static DatabaseHandler instance = null;
 
@@ -35,6 +49,19 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		super(context.getApplicationContext(), DATABASE_NAME, null,
 				DATABASE_VERSION);
 		this.context = context.getApplicationContext();
+		this.writeAheadLogging = this.context.getResources().getBoolean(
+				R.bool.db_write_ahead_logging);
+		if (writeAheadLogging
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
+	}
+
+	/**
+	 * True if reads don't wait for writes.
+	 */
+	public boolean isWriteAheadLoggingEnabled() {
+		return writeAheadLogging;
 	}
 
 	@Override
@@ -48,79 +75,153 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 			db.execSQL("PRAGMA foreign_keys=ON;");
 
 			// Create temporary triggers
-			DatabaseTriggers.createTemp(db);
+			DatabaseTriggers.createTemp(new SQLiteStorage(db));
+
+			// Jelly bean and later enable this in the constructor
+			if (writeAheadLogging
+					&& Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				db.enableWriteAheadLogging();
+			}
 		}
 	}
 
 	@Override
 	public synchronized void onCreate(SQLiteDatabase db) {
-
-		db.execSQL("DROP TABLE IF EXISTS " + LinkItem.TABLE_NAME);
-		db.execSQL(LinkItem.CREATE_TABLE);
-
-		// Create Triggers
-		DatabaseTriggers.create(db);
+		Schema.create(new SQLiteStorage(db));
 	}
 
 	// Upgrading database
 	@Override
 	public synchronized void onUpgrade(SQLiteDatabase db, int oldVersion,
 			int newVersion) {
-		// Try to drop and recreate. You should do something clever here
-		onCreate(db);
+		Schema.upgrade(new SQLiteStorage(db), oldVersion);
 	}
 
 	// Convenience methods
-	public synchronized boolean putItem(final LinkItem item) {
-		boolean success = false;
-		int result = 0;
-		final SQLiteDatabase db = this.getWritableDatabase();
-		final ContentValues values = item.getContent();
+	public boolean putItem(final LinkItem item) {
+		final boolean success;
+		writeLock.lock();
+		try {
+			success = LinkWrites.writeItem(getWritableStorage(), item);
+		}
+		finally {
+			writeLock.unlock();
+		}
+		if (success) {
+			notifyChange(item);
+		}
+		return success;
+	}
 
-		if (item.getId() > -1) {
-			result += db.update(item.getTableName(), values, DBItem.COL_ID
-					+ " IS ?", new String[] { String.valueOf(item.getId()) });
+	public int deleteItem(LinkItem item) {
+		final int result;
+		writeLock.lock();
+		try {
+			result = removeItem(this.getWritableDatabase(), item);
 		}
-		// Update failed or wasn't possible, insert instead
-		else {
-			final long id = db.insert(item.getTableName(), null, values);
-			if (id > 0) {
-				item.setId(id);
-				result++;
-			}
+		finally {
+			writeLock.unlock();
 		}
 
 		if (result > 0) {
-			success = true;
-		}
-		if (success) {
-			item.notifyProvider(context);
+			notifyChange(item);
 		}
-		return success;
+
+		return result;
 	}
 
-	public synchronized int deleteItem(LinkItem item) {
-		final SQLiteDatabase db = this.getWritableDatabase();
-		final int result = db.delete(item.getTableName(), LinkItem.COL_ID
-				+ " IS ? OR " + LinkItem.COL_SHA + " IS ?",
-				new String[] { Long.toString(item._id), item.sha });
+	/**
+	 * Writes and deletes a batch of items in a single transaction. Listeners
+	 * are notified once for the whole table instead of once per row.
+	 * 
+	 * Statements are compiled once per batch and values are bound directly,
+	 * which is a lot cheaper than putItem and deleteItem for many rows.
+	 * 
+	 * @return the number of rows written or deleted
+	 */
+	public int applyBatch(final List<LinkItem> upserts,
+			final List<LinkItem> deletes) {
+		final int result;
+		writeLock.lock();
+		try {
+			result = LinkWrites.applyBatch(getWritableStorage(), upserts,
+					deletes);
+		}
+		finally {
+			writeLock.unlock();
+		}
 
 		if (result > 0) {
-			item.notifyProvider(context);
+			NotificationBatcher.getInstance(context).notifyChange(
+					LinkItem.URI(), false);
+		}
+		return result;
+	}
+
+	/**
+	 * Applies links received from the server in a single transaction, and
+	 * notifies listeners once. Rows with local changes not yet uploaded are
+	 * left alone, the server merges them when they are. A link which is
+	 * not newer than the local row is skipped, so a link received twice is
+	 * written once. If another local link has the same url, the remote
+	 * one replaces it, as the server would have done the same.
+	 * 
+	 * @param links
+	 *            links as sent by the server. Deleted ones are removed.
+	 * @return the number of links applied
+	 */
+	public int mergeRemote(final List<LinkItem> links) {
+		final int result;
+		writeLock.lock();
+		try {
+			result = LinkWrites.mergeRemote(getWritableStorage(), links);
+		}
+		finally {
+			writeLock.unlock();
 		}
 
+		if (result > 0) {
+			NotificationBatcher.getInstance(context).notifyChange(
+					LinkItem.URI(), false);
+		}
 		return result;
 	}
 
-	public synchronized Cursor getLinkItemCursor(final long id) {
-		final SQLiteDatabase db = this.getReadableDatabase();
-		final Cursor cursor = db.query(LinkItem.TABLE_NAME, LinkItem.FIELDS,
-				LinkItem.COL_ID + " IS ?", new String[] { String.valueOf(id) },
-				null, null, null, null);
-		return cursor;
+	/**
+	 * Notify listeners that the item changed. Notifications are coalesced
+	 * by {@link NotificationBatcher} and never request an upload sync.
+	 */
+	private void notifyChange(final DBItem item) {
+		NotificationBatcher.getInstance(context).notifyChange(item.getUri(),
+				false);
+	}
+
+	private Storage getWritableStorage() {
+		return new SQLiteStorage(getWritableDatabase());
+	}
+
+	private static int removeItem(final SQLiteDatabase db, final LinkItem item) {
+		return db.delete(item.getTableName(), LinkItem.COL_ID + " IS ? OR "
+				+ LinkItem.COL_SHA + " IS ?",
+				new String[] { Long.toString(item._id), item.sha });
 	}
 
-	public synchronized LinkItem getLinkItem(final long id) {
+	public Cursor getLinkItemCursor(final long id) {
+		lockRead();
+		try {
+			final SQLiteDatabase db = this.getReadableDatabase();
+			final Cursor cursor = db.query(LinkItem.TABLE_NAME,
+					LinkItem.FIELDS, LinkItem.COL_ID + " IS ?",
+					new String[] { String.valueOf(id) }, null, null, null,
+					null);
+			return cursor;
+		}
+		finally {
+			unlockRead();
+		}
+	}
+
+	public LinkItem getLinkItem(final long id) {
 		final Cursor cursor = getLinkItemCursor(id);
 		final LinkItem result;
 		if (cursor.moveToFirst()) {
@@ -134,29 +235,334 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		return result;
 	}
 
-	public synchronized Cursor getAllLinkItemsCursor(final String selection,
+	public Cursor getAllLinkItemsCursor(final String selection,
 			final String[] args, final String sortOrder) {
-		final SQLiteDatabase db = this.getReadableDatabase();
+		return getAllLinkItemsCursor(LinkItem.FIELDS, selection, args,
+				sortOrder, null);
+	}
+
+	/**
+	 * @param projection
+	 *            null means LinkItem.FIELDS
+	 * @param limit
+	 *            SQL limit clause, "count" or "offset,count". Null for no
+	 *            limit.
+	 */
+	public Cursor getAllLinkItemsCursor(final String[] projection,
+			final String selection, final String[] args,
+			final String sortOrder, final String limit) {
+		lockRead();
+		try {
+			final SQLiteDatabase db = this.getReadableDatabase();
+
+			final Cursor cursor = db.query(LinkItem.TABLE_NAME,
+					projection == null ? LinkItem.FIELDS : projection,
+					selection, args, null, null, sortOrder, limit);
+
+			return cursor;
+		}
+		finally {
+			unlockRead();
+		}
+	}
+
+	/**
+	 * Takes everything waiting in the outbox for an upload, in the order
+	 * the changes were made. Pass the entries to acknowledge once the
+	 * server has them. If the upload fails, they are sent again with the
+	 * next one.
+	 */
+	public List<LinkOutbox.Entry> getOutbox() {
+		writeLock.lock();
+		try {
+			return LinkWrites.takeOutbox(getWritableStorage());
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * The server has the uploaded entries. They are removed from the
+	 * outbox, and their links are marked as synced, or removed if they
+	 * were deleted. A link changed again during the upload stays pending.
+	 * 
+	 * @return the number of links marked or removed
+	 */
+	public int acknowledge(final List<LinkOutbox.Entry> entries) {
+		final int result;
+		writeLock.lock();
+		try {
+			result = LinkWrites.acknowledge(getWritableStorage(), entries);
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		if (result > 0) {
+			NotificationBatcher.getInstance(context).notifyChange(
+					LinkItem.URI(), false);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes synced links which the server didn't list in a full download.
+	 * Links with local changes are kept, as are links newer than the
+	 * download.
+	 * 
+	 * @param seen
+	 *            shas of the links that were downloaded
+	 * @param maxRev
+	 *            latest revision of the download
+	 * @return the number of links removed
+	 */
+	public int removeUnseen(final Set<String> seen, final long maxRev) {
+		int result = 0;
+		writeLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			final SQLiteStatement delete = db
+					.compileStatement("DELETE FROM Link WHERE _id = ?");
+			db.beginTransaction();
+			try {
+				final Cursor c = db.query(LinkItem.TABLE_NAME, new String[] {
+						LinkItem.COL_ID, LinkItem.COL_SHA },
+						LinkItem.COL_SYNCED + " = 1 AND "
+								+ LinkItem.COL_DELETED + " = 0 AND "
+								+ LinkItem.COL_REV + " <= ?",
+						new String[] { Long.toString(maxRev) }, null, null,
+						null);
+				try {
+					while (c.moveToNext()) {
+						if (!seen.contains(c.getString(1))) {
+							delete.bindLong(1, c.getLong(0));
+							result += delete.executeUpdateDelete();
+						}
+					}
+				}
+				finally {
+					c.close();
+				}
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+				delete.close();
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		if (result > 0) {
+			NotificationBatcher.getInstance(context).notifyChange(
+					LinkItem.URI(), false);
+		}
+		return result;
+	}
+
+	/**
+	 * The shas of all links with changes not yet uploaded.
+	 */
+	public Set<String> getPendingShas() {
+		final Set<String> result = new HashSet<String>();
+		lockRead();
+		try {
+			final Cursor cursor = this.getReadableDatabase().query(true,
+					LinkOutbox.TABLE_NAME,
+					new String[] { LinkOutbox.COL_SHA }, null, null, null,
+					null, null, null);
+			while (cursor.moveToNext()) {
+				result.add(cursor.getString(0));
+			}
+			cursor.close();
+		}
+		finally {
+			unlockRead();
+		}
+		return result;
+	}
+
+	/**
+	 * Records the trace of a sync. The oldest one is removed if there are
+	 * more than SyncLog.MAX_ROWS.
+	 */
+	public void addSyncTrace(final ContentValues values) {
+		writeLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				SyncLog.add(db, values);
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		NotificationBatcher.getInstance(context).notifyChange(SyncLog.URI(),
+				false);
+	}
+
+	/**
+	 * @param projection
+	 *            null means SyncLog.FIELDS
+	 * @param sortOrder
+	 *            null means latest first
+	 */
+	public Cursor getSyncLogCursor(final String[] projection,
+			final String selection, final String[] args,
+			final String sortOrder, final String limit) {
+		lockRead();
+		try {
+			return this.getReadableDatabase().query(SyncLog.TABLE_NAME,
+					projection == null ? SyncLog.FIELDS : projection,
+					selection, args, null, null,
+					sortOrder == null ? SyncLog.SORT_LATEST : sortOrder,
+					limit);
+		}
+		finally {
+			unlockRead();
+		}
+	}
 
-		final Cursor cursor = db.query(LinkItem.TABLE_NAME, LinkItem.FIELDS,
-				selection, args, null, null, sortOrder, null);
+	/**
+	 * Visible links matching a full-text query, best matches first.
+	 * 
+	 * @param query
+	 *            free text. Every word is matched as a prefix of a word in
+	 *            the url.
+	 * @param limit
+	 *            max number of results
+	 */
+	public Cursor searchLinkItemsCursor(final String query, final int limit) {
+		final String match = toMatchQuery(query);
+		if (match == null) {
+			return new MatrixCursor(LinkItem.FIELDS);
+		}
 
-		return cursor;
+		lockRead();
+		try {
+			final SQLiteDatabase db = this.getReadableDatabase();
+			return db.rawQuery(LinkItem.SEARCH_QUERY, new String[] { match,
+					Integer.toString(limit) });
+		}
+		finally {
+			unlockRead();
+		}
 	}
 
-	public synchronized List<LinkItem> getAllLinkItems(final String selection,
+	/**
+	 * "goo ne" becomes "goo* ne*". Only letters and digits are kept, so
+	 * user input can't form FTS operators. Single letters are matched as
+	 * whole words, as a prefix that short would match nearly everything.
+	 * Returns null if nothing searchable is left.
+	 */
+	static String toMatchQuery(final String query) {
+		if (query == null) {
+			return null;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (String word : query.toLowerCase(Locale.US).split(
+				"[^\\p{L}\\p{N}]+")) {
+			if (word.isEmpty()) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(word);
+			if (word.length() > 1) {
+				sb.append('*');
+			}
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	public List<LinkItem> getAllLinkItems(final String selection,
 			final String[] args, final String sortOrder) {
 		final List<LinkItem> result = new ArrayList<LinkItem>();
+		forEachLinkItem(selection, args, sortOrder, new LinkVisitor() {
+			@Override
+			public boolean visit(final LinkRow row) {
+				result.add(row.toLinkItem());
+				return true;
+			}
+		});
+		return result;
+	}
 
-		final Cursor cursor = getAllLinkItemsCursor(selection, args, sortOrder);
+	/**
+	 * Called for every row of a scan.
+	 */
+	public interface LinkVisitor {
+		/**
+		 * @param row
+		 *            only valid during the call, it is reused for the next
+		 *            row
+		 * @return false to stop the scan
+		 */
+		boolean visit(LinkRow row);
+	}
 
-		while (cursor.moveToNext()) {
-			LinkItem q = new LinkItem(cursor);
-			result.add(q);
+	/**
+	 * Shows every matching link to the visitor, in order. The same LinkRow
+	 * is used for all rows, so nothing is allocated per row.
+	 */
+	public void forEachLinkItem(final String selection, final String[] args,
+			final String sortOrder, final LinkVisitor visitor) {
+		final LinkRow row = new LinkRow();
+		lockRead();
+		try {
+			final Cursor cursor = getAllLinkItemsCursor(selection, args,
+					sortOrder);
+			try {
+				while (cursor.moveToNext()) {
+					if (!visitor.visit(row.load(cursor))) {
+						break;
+					}
+				}
+			}
+			finally {
+				cursor.close();
+			}
 		}
+		finally {
+			unlockRead();
+		}
+	}
 
-		cursor.close();
-		return result;
+	/**
+	 * Takes the lock of the single writer, for writes made outside of this
+	 * class by ItemProvider. Take it before beginning a transaction, and
+	 * release it with unlockWrite.
+	 */
+	void lockWrite() {
+		writeLock.lock();
+	}
+
+	void unlockWrite() {
+		writeLock.unlock();
+	}
+
+	/**
+	 * Without write-ahead logging, reads have to wait for the writer.
+	 */
+	private void lockRead() {
+		if (!writeAheadLogging) {
+			writeLock.lock();
+		}
+	}
+
+	private void unlockRead() {
+		if (!writeAheadLogging) {
+			writeLock.unlock();
+		}
 	}
 
 }
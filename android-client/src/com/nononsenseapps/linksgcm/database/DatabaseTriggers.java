@@ -1,24 +1,52 @@
 package com.nononsenseapps.linksgcm.database;
 
-import android.database.sqlite.SQLiteDatabase;
-
 public class DatabaseTriggers {
 
     /**
      * Create permanent triggers. They are dropped first,
      * if they already exist.
      */
-    public static void create(final SQLiteDatabase db) {
-        
+    public static void create(final Storage db) {
+        // Keep LinkFts in sync with the visible links
+        db.execSQL("DROP TRIGGER IF EXISTS link_fts_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS link_fts_update");
+        db.execSQL("DROP TRIGGER IF EXISTS link_fts_delete");
+        db.execSQL(LINK_FTS_INSERT);
+        db.execSQL(LINK_FTS_UPDATE);
+        db.execSQL(LINK_FTS_DELETE);
     }
 
     /**
      * Create temporary triggers. Nothing is done if they
      * already exist.
      */
-    public static void createTemp(final SQLiteDatabase db) {
+    public static void createTemp(final Storage db) {
         
     }
 
-    
-}
\ No newline at end of file
+    static final String LINK_FTS_INSERT =
+"CREATE TRIGGER link_fts_insert AFTER INSERT ON Link"
++"  WHEN new.deleted = 0"
++"  BEGIN"
++"    INSERT INTO LinkFts (docid, url)"
++"      VALUES (new._id, " + LinkItem.ftsText("new.url") + ");"
++"  END";
+
+    // Syncs rewrite every column, only touch the index on actual changes
+    static final String LINK_FTS_UPDATE =
+"CREATE TRIGGER link_fts_update AFTER UPDATE OF url, deleted ON Link"
++"  WHEN old.url IS NOT new.url OR old.deleted IS NOT new.deleted"
++"  BEGIN"
++"    DELETE FROM LinkFts WHERE docid = old._id;"
++"    INSERT INTO LinkFts (docid, url)"
++"      SELECT new._id, " + LinkItem.ftsText("new.url")
++"      WHERE new.deleted = 0;"
++"  END";
+
+    static final String LINK_FTS_DELETE =
+"CREATE TRIGGER link_fts_delete AFTER DELETE ON Link"
++"  WHEN old.deleted = 0"
++"  BEGIN"
++"    DELETE FROM LinkFts WHERE docid = old._id;"
++"  END";
+}
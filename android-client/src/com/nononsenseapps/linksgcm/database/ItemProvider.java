@@ -1,22 +1,34 @@
 package com.nononsenseapps.linksgcm.database;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
 public class ItemProvider extends ContentProvider {
-	public static final String AUTHORITY = "com.nononsenseapps.linksgcm.database.AUTHORITY";
-	public static final String SCHEME = "content://";
+	// See LinksContract
+	public static final String AUTHORITY = LinksContract.AUTHORITY;
+	public static final String SCHEME = LinksContract.SCHEME;
+	public static final String QUERY_LIMIT = LinksContract.QUERY_LIMIT;
+	public static final String QUERY_SEARCH = LinksContract.QUERY_SEARCH;
+	/**
+	 * Results of a search if no limit is given.
+	 */
+	static final int SEARCH_LIMIT = 100;
 
 	private static final UriMatcher sURIMatcher = new UriMatcher(
 			UriMatcher.NO_MATCH);
 	static {
 		LinkItem.addMatcherUris(sURIMatcher);
+		SyncLog.addMatcherUris(sURIMatcher);
 	}
 
 	@Override
@@ -26,52 +38,157 @@ public class ItemProvider extends ContentProvider {
 
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		// Setup some common parsing and stuff
-		final String table;
+		// Deleting only sets the flag. The sync removes the row later, or
+		// the outbox right away if the link was never uploaded.
 		final ContentValues values = new ContentValues();
-		final ArrayList<String> args = new ArrayList<String>();
-		if (selectionArgs != null) {
-			for (String arg : selectionArgs) {
-				args.add(arg);
+		values.put(LinkItem.COL_DELETED, 1);
+
+		final int result = updateLinks(uri, values, selection, selectionArgs,
+				LinkOutbox.OP_DELETE);
+
+		if (result > 0) {
+			// Support upload sync
+			NotificationBatcher.getInstance(getContext())
+					.notifyChange(uri, true);
+		}
+		return result;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		final DatabaseHandler handler = DatabaseHandler
+				.getInstance(getContext());
+		final Uri result;
+		handler.lockWrite();
+		try {
+			final SQLiteDatabase db = handler.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				result = insertLink(db, uri, values);
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
 			}
 		}
-		final StringBuilder sb = new StringBuilder();
-		if (selection != null && !selection.isEmpty()) {
-			sb.append("(").append(selection).append(")");
+		finally {
+			handler.unlockWrite();
 		}
 
-		// Configure table and args depending on uri
-		switch (sURIMatcher.match(uri)) {
-		case LinkItem.BASEITEMCODE:
-			table = LinkItem.TABLE_NAME;
-			if (selection != null && !selection.isEmpty()) {
-				sb.append(" AND ");
-			}
-			sb.append(LinkItem.COL_ID + " IS ?");
-			args.add(uri.getLastPathSegment());
-			values.put(LinkItem.COL_DELETED, 1);
-			break;
-		default:
-			throw new IllegalArgumentException("Unknown URI " + uri);
+		if (result != null) {
+			// Support upload sync
+			NotificationBatcher.getInstance(getContext())
+					.notifyChange(uri, true);
 		}
 
-		// Write to DB
-		final SQLiteDatabase db = DatabaseHandler.getInstance(getContext())
-				.getWritableDatabase();
-		final String[] argArray = new String[args.size()];
-		final int result = db.update(table, values, sb.toString(),
-				args.toArray(argArray));
+		return result;
+	}
+
+	/**
+	 * Inserts all values in a single transaction, with a single
+	 * notification.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		int result = 0;
+		final DatabaseHandler handler = DatabaseHandler
+				.getInstance(getContext());
+		handler.lockWrite();
+		try {
+			final SQLiteDatabase db = handler.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (ContentValues value : values) {
+					if (insertLink(db, uri, value) != null) {
+						result++;
+					}
+				}
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			handler.unlockWrite();
+		}
 
 		if (result > 0) {
 			// Support upload sync
-			getContext().getContentResolver().notifyChange(uri, null, true);
+			NotificationBatcher.getInstance(getContext())
+					.notifyChange(uri, true);
 		}
 		return result;
 	}
 
+	/**
+	 * Applies all operations in a single transaction. Notifications from the
+	 * individual operations are sent together once all are done.
+	 */
 	@Override
-	public Uri insert(Uri uri, ContentValues values) {
-		final Uri result;
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		final NotificationBatcher batcher = NotificationBatcher
+				.getInstance(getContext());
+		final DatabaseHandler handler = DatabaseHandler
+				.getInstance(getContext());
+		batcher.beginBatch();
+		try {
+			// The operations take the lock again, it is reentrant
+			handler.lockWrite();
+			try {
+				final SQLiteDatabase db = handler.getWritableDatabase();
+				db.beginTransaction();
+				try {
+					final ContentProviderResult[] results = super
+							.applyBatch(operations);
+					db.setTransactionSuccessful();
+					return results;
+				}
+				finally {
+					db.endTransaction();
+				}
+			}
+			finally {
+				handler.unlockWrite();
+			}
+		}
+		finally {
+			batcher.endBatch();
+		}
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection,
+			String[] selectionArgs) {
+		// Changes made here are the user's, so upload them unless told
+		// otherwise. A copy, the caller's values are left as they are.
+		final ContentValues changes = new ContentValues(values);
+		if (!changes.containsKey(LinkItem.COL_SYNCED)) {
+			changes.put(LinkItem.COL_SYNCED, 0);
+		}
+		final Long synced = changes.getAsLong(LinkItem.COL_SYNCED);
+
+		final int result = updateLinks(uri, changes, selection, selectionArgs,
+				synced == null || synced == 0 ? LinkOutbox.OP_UPDATE : 0);
+
+		if (result > 0) {
+			// Support upload sync
+			NotificationBatcher.getInstance(getContext())
+					.notifyChange(uri, true);
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts without notifying, and queues the upload. Call in a
+	 * transaction, with the write lock held. Returns the uri of the new
+	 * item, or null.
+	 */
+	private Uri insertLink(final SQLiteDatabase db, final Uri uri,
+			final ContentValues initialValues) {
+		final ContentValues values = new ContentValues(initialValues);
 		final String table;
 		final DBItem item; // Just used for getting final URI
 
@@ -90,28 +207,117 @@ public class ItemProvider extends ContentProvider {
 		}
 
 		// Write to DB
-		final SQLiteDatabase db = DatabaseHandler.getInstance(getContext())
-				.getWritableDatabase();
 		final long id = db.insert(table, null, values);
 
 		if (id > 0) {
 			item.setId(id);
-			result = item.getUri();
-			// Support upload sync
-			getContext().getContentResolver().notifyChange(uri, null, true);
+			LinkOutbox.enqueue(db, values.getAsString(LinkItem.COL_SHA),
+					LinkOutbox.OP_ADD);
+			return item.getUri();
+		}
+		return null;
+	}
+
+	/**
+	 * Updates the links matched by the uri and selection, without notifying.
+	 * 
+	 * @param op
+	 *            outbox operation queued for every updated link, in the same
+	 *            transaction. 0 to queue nothing.
+	 */
+	private int updateLinks(final Uri uri, final ContentValues values,
+			final String selection, final String[] selectionArgs,
+			final int op) {
+		// Setup some common parsing and stuff
+		final String table;
+		final ArrayList<String> args = new ArrayList<String>();
+		if (selectionArgs != null) {
+			for (String arg : selectionArgs) {
+				args.add(arg);
+			}
 		}
-		else {
-			result = null;
+		final StringBuilder sb = new StringBuilder();
+		if (selection != null && !selection.isEmpty()) {
+			sb.append("(").append(selection).append(")");
 		}
 
-		return result;
+		// Configure table and args depending on uri
+		switch (sURIMatcher.match(uri)) {
+		case LinkItem.BASEITEMCODE:
+			table = LinkItem.TABLE_NAME;
+			if (selection != null && !selection.isEmpty()) {
+				sb.append(" AND ");
+			}
+			sb.append(LinkItem.COL_ID + " IS ?");
+			args.add(uri.getLastPathSegment());
+			break;
+		case LinkItem.BASEURICODE:
+			table = LinkItem.TABLE_NAME;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		// Write to DB
+		final String where = sb.length() > 0 ? sb.toString() : null;
+		final String[] argArray = args.toArray(new String[args.size()]);
+		final DatabaseHandler handler = DatabaseHandler
+				.getInstance(getContext());
+		handler.lockWrite();
+		try {
+			final SQLiteDatabase db = handler.getWritableDatabase();
+			if (op == 0) {
+				return db.update(table, values, where, argArray);
+			}
+
+			db.beginTransaction();
+			try {
+				final List<String> shas = new ArrayList<String>();
+				final Cursor c = db.query(table,
+						new String[] { LinkItem.COL_SHA }, where, argArray,
+						null, null, null);
+				try {
+					while (c.moveToNext()) {
+						shas.add(c.getString(0));
+					}
+				}
+				finally {
+					c.close();
+				}
+
+				final int result = db.update(table, values, where, argArray);
+				for (String sha : shas) {
+					LinkOutbox.enqueue(db, sha, op);
+				}
+				db.setTransactionSuccessful();
+				return result;
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			handler.unlockWrite();
+		}
 	}
 
-	@Override
-	public int update(Uri uri, ContentValues values, String selection,
-			String[] selectionArgs) {
-		// TODO: Implement this to handle requests to update one or more rows.
-		throw new UnsupportedOperationException("Not yet implemented");
+	/**
+	 * The limit of a search, SEARCH_LIMIT if it is missing or not a
+	 * positive number.
+	 */
+	static int searchLimit(final String limit) {
+		if (limit != null) {
+			try {
+				final int result = Integer.parseInt(limit);
+				if (result > 0) {
+					return result;
+				}
+			}
+			catch (NumberFormatException e) {
+				// Use the default
+			}
+		}
+		return SEARCH_LIMIT;
 	}
 
 	@Override
@@ -121,7 +327,10 @@ public class ItemProvider extends ContentProvider {
 		case LinkItem.BASEITEMCODE:
 			return LinkItem.TYPE_ITEM;
 		case LinkItem.BASEURICODE:
+		case LinkItem.SEARCHCODE:
 			return LinkItem.TYPE_DIR;
+		case SyncLog.BASEURICODE:
+			return SyncLog.TYPE_DIR;
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -143,7 +352,23 @@ public class ItemProvider extends ContentProvider {
 			result.setNotificationUri(getContext().getContentResolver(), uri);
 			break;
 		case LinkItem.BASEURICODE:
-			result = handler.getAllLinkItemsCursor(selection, args, sortOrder);
+			result = handler.getAllLinkItemsCursor(projection, selection,
+					args, sortOrder, uri.getQueryParameter(QUERY_LIMIT));
+			result.setNotificationUri(getContext().getContentResolver(), uri);
+			break;
+		case LinkItem.SEARCHCODE:
+			// Projection, selection and sort order are fixed
+			result = handler.searchLinkItemsCursor(
+					uri.getQueryParameter(QUERY_SEARCH),
+					searchLimit(uri.getQueryParameter(QUERY_LIMIT)));
+			// Results change with the links
+			result.setNotificationUri(getContext().getContentResolver(),
+					LinkItem.URI());
+			break;
+		case SyncLog.BASEURICODE:
+			// Read only, written by the sync adapter
+			result = handler.getSyncLogCursor(projection, selection, args,
+					sortOrder, uri.getQueryParameter(QUERY_LIMIT));
 			result.setNotificationUri(getContext().getContentResolver(), uri);
 			break;
 
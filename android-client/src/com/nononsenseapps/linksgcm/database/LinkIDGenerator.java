@@ -1,21 +1,47 @@
 package com.nononsenseapps.linksgcm.database;
 
-import java.util.Random;
+import java.security.SecureRandom;
 
+/**
+ * Generates the sha of new links. Same format as the server: 15 random bytes
+ * as 30 lowercase hex chars, so collisions are not a concern even though
+ * the unique constraint on sha silently drops them.
+ */
 public class LinkIDGenerator {
 
-	// All hex strings
-	static final String[] chars = { "0", "1", "2", "3", "4", "5", "6", "7",
-			"8", "9", "a", "b", "c", "d", "e", "f" };
+	// Number of random bytes, 120 bits
+	static final int ID_BYTES = 15;
+
+	// All hex chars
+	static final char[] chars = { '0', '1', '2', '3', '4', '5', '6', '7',
+			'8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	// Thread safe, and seeding it once is the expensive part
+	private static final SecureRandom random = new SecureRandom();
+
+	// Reused per thread, only the returned String is allocated
+	private static final ThreadLocal<byte[]> bytesBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[ID_BYTES];
+		}
+	};
+	private static final ThreadLocal<char[]> charsBuffer = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[2 * ID_BYTES];
+		}
+	};
 
 	public static String generateID() {
-		Random r = new Random();
-		StringBuilder sb = new StringBuilder();
+		final byte[] bytes = bytesBuffer.get();
+		final char[] hex = charsBuffer.get();
+		random.nextBytes(bytes);
 
-		// Generate 8 hexchars, e.g. a random 32-bit number
-		for (int i = 0; i < 8; i++) {
-			sb.append(chars[r.nextInt(16)]);
+		for (int i = 0; i < ID_BYTES; i++) {
+			hex[2 * i] = chars[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = chars[bytes[i] & 0xf];
 		}
-		return sb.toString();
+		return new String(hex);
 	}
 }
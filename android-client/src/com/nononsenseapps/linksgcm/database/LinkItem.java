@@ -1,5 +1,10 @@
 package com.nononsenseapps.linksgcm.database;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
@@ -14,8 +19,8 @@ public class LinkItem extends DBItem {
 
     public static Uri URI() {
         return Uri.withAppendedPath(
-            Uri.parse(ItemProvider.SCHEME
-                      + ItemProvider.AUTHORITY), TABLE_NAME);
+            Uri.parse(LinksContract.SCHEME
+                      + LinksContract.AUTHORITY), TABLE_NAME);
     }
 
     // Column names
@@ -25,23 +30,54 @@ public class LinkItem extends DBItem {
     public static final String COL_TIMESTAMP = "timestamp";
     public static final String COL_DELETED = "deleted";
     public static final String COL_SYNCED = "synced";
+    public static final String COL_REV = "rev";
 
     // For database projection so order is consistent
-    public static final String[] FIELDS = { COL__ID, COL_SHA, COL_URL, COL_TIMESTAMP, COL_DELETED, COL_SYNCED };
+    public static final String[] FIELDS = { COL__ID, COL_SHA, COL_URL, COL_TIMESTAMP, COL_DELETED, COL_SYNCED, COL_REV };
 
     public long _id = -1;
     public String sha;
     public String url;
-    public String timestamp = null;
+    // Milliseconds since the epoch. 0 if not known, the database then sets
+    // it to now for new rows and leaves it for existing ones.
+    public long timestamp = 0;
     public long deleted = 0;
     public long synced = 0;
+    // Server revision the row is based on. 0 if not known, either because
+    // the link was never synced or because the server doesn't have them.
+    public long rev = 0;
+
+    // Selection matching the index below. Use = rather than IS, older
+    // SQLite versions can't use an index for IS.
+    public static final String SELECTION_VISIBLE = COL_DELETED + " = 0";
+    public static final String SORT_VISIBLE = COL_TIMESTAMP + " DESC";
+    // Total order used for paging
+    public static final String SORT_PAGED = COL_TIMESTAMP + " DESC, "
+        + COL_ID + " DESC";
+    // The visible links after a (timestamp, _id) key in SORT_PAGED order.
+    // Same as (timestamp, _id) < (?, ?), written so the index is searched
+    // from the key instead of from the start. The timestamp is bound twice.
+    public static final String SELECTION_VISIBLE_AFTER = "("
+        + SELECTION_VISIBLE + ") AND " + COL_TIMESTAMP + " <= ? AND ("
+        + COL_TIMESTAMP + " < ? OR " + COL_ID + " < ?)";
 
     public static final int BASEURICODE = 0x3b109c7;
     public static final int BASEITEMCODE = 0x87a22b7;
+    public static final int SEARCHCODE = 0x5c1e4d3;
 
     public static void addMatcherUris(UriMatcher sURIMatcher) {
-        sURIMatcher.addURI(ItemProvider.AUTHORITY, TABLE_NAME, BASEURICODE);
-        sURIMatcher.addURI(ItemProvider.AUTHORITY, TABLE_NAME + "/#", BASEITEMCODE);
+        sURIMatcher.addURI(LinksContract.AUTHORITY, TABLE_NAME, BASEURICODE);
+        sURIMatcher.addURI(LinksContract.AUTHORITY, TABLE_NAME + "/#", BASEITEMCODE);
+        sURIMatcher.addURI(LinksContract.AUTHORITY, TABLE_NAME + "/search", SEARCHCODE);
+    }
+
+    /**
+     * Visible links matching the query, best matches first. Every word is
+     * matched as a prefix.
+     */
+    public static Uri SEARCH_URI(final String query) {
+        return URI().buildUpon().appendPath("search")
+            .appendQueryParameter(LinksContract.QUERY_SEARCH, query).build();
     }
 
     public static final String TYPE_DIR = "vnd.android.cursor.dir/vnd.example." + TABLE_NAME;
@@ -57,9 +93,10 @@ public class LinkItem extends DBItem {
         this._id = cursor.getLong(0);
         this.sha = cursor.getString(1);
         this.url = cursor.getString(2);
-        this.timestamp = cursor.getString(3);
+        this.timestamp = cursor.getLong(3);
         this.deleted = cursor.getLong(4);
         this.synced = cursor.getLong(5);
+        this.rev = cursor.getLong(6);
     }
 
     public ContentValues getContent() {
@@ -67,13 +104,74 @@ public class LinkItem extends DBItem {
         
         values.put(COL_SHA, sha);
         values.put(COL_URL, url);
-        if (timestamp != null) values.put(COL_TIMESTAMP, timestamp);
+        if (timestamp != 0) values.put(COL_TIMESTAMP, timestamp);
         values.put(COL_DELETED, deleted);
         values.put(COL_SYNCED, synced);
+        values.put(COL_REV, rev);
 
         return values;
     }
 
+    /**
+     * Binds the columns to a statement compiled from INSERT_STATEMENT or
+     * UPDATE_STATEMENT, without going through ContentValues. The id for
+     * UPDATE_STATEMENT is bound separately.
+     */
+    public void bindTo(final Storage.Statement stmt) {
+        stmt.clearBindings();
+        bindString(stmt, 1, sha);
+        bindString(stmt, 2, url);
+        if (timestamp == 0) {
+            stmt.bindNull(3);
+        }
+        else {
+            stmt.bindLong(3, timestamp);
+        }
+        stmt.bindLong(4, deleted);
+        stmt.bindLong(5, synced);
+        stmt.bindLong(6, rev);
+    }
+
+    private static void bindString(final Storage.Statement stmt, final int index,
+            final String value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        }
+        else {
+            stmt.bindString(index, value);
+        }
+    }
+
+    /**
+     * A timestamp as servers without timestampMs send it,
+     * 'YYYY-MM-DD HH:MM:SS' in UTC with optional fractions of a second,
+     * in milliseconds since the epoch. 0 if it can't be parsed.
+     */
+    public static long parseTimestamp(final String timestamp) {
+        if (timestamp == null || timestamp.length() < 19) {
+            return 0;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            long result = format.parse(timestamp.substring(0, 19)).getTime();
+            // Fraction, like .123456
+            if (timestamp.length() > 20 && timestamp.charAt(19) == '.') {
+                final String fraction = (timestamp.substring(20) + "00")
+                    .substring(0, 3);
+                result += Integer.parseInt(fraction);
+            }
+            return result;
+        }
+        catch (ParseException e) {
+            return 0;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public String getTableName() {
         return TABLE_NAME;
     }
@@ -90,15 +188,109 @@ public class LinkItem extends DBItem {
         _id = id;
     }
 
+    // The current time in milliseconds since the epoch, in SQL
+    static final String NOW_MS =
+"CAST(ROUND((julianday('now') - 2440587.5) * 86400000) AS INTEGER)";
+
     public static final String CREATE_TABLE =
 "CREATE TABLE Link"
 +"  (_id INTEGER PRIMARY KEY,"
 +"  sha TEXT NOT NULL,"
 +"  url TEXT NOT NULL,"
-+"  timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
++"  timestamp INTEGER NOT NULL DEFAULT (" + NOW_MS + "),"
 +"  deleted INTEGER NOT NULL DEFAULT 0,"
 +"  synced INTEGER NOT NULL DEFAULT 0,"
++"  rev INTEGER NOT NULL DEFAULT 0,"
 +""
 +"  UNIQUE (url) ON CONFLICT IGNORE,"
 +"  UNIQUE (sha) ON CONFLICT IGNORE)";
+
+    // Covers the visible list (SELECTION_VISIBLE, SORT_VISIBLE or SORT_PAGED)
+    // so it is read straight from the index.
+    public static final String CREATE_VISIBLE_INDEX =
+"CREATE INDEX IF NOT EXISTS link_visible_idx"
++"  ON Link (deleted, timestamp, _id, sha, url, synced, rev)";
+
+    public static final String ADD_REV_COLUMN =
+"ALTER TABLE Link ADD COLUMN rev INTEGER NOT NULL DEFAULT 0";
+
+    // Timestamps were 'YYYY-MM-DD HH:MM:SS' text in UTC before. The table
+    // is created anew for the integer default, and the rows are copied
+    // with their _id, which is also the docid in LinkFts.
+    public static final String RENAME_TO_OLD =
+"ALTER TABLE Link RENAME TO LinkOld";
+
+    public static final String COPY_FROM_OLD =
+"INSERT INTO Link (_id, sha, url, timestamp, deleted, synced, rev)"
++"  SELECT _id, sha, url,"
++"  COALESCE(CAST(ROUND((julianday(timestamp) - 2440587.5) * 86400000) AS INTEGER), 0),"
++"  deleted, synced, rev FROM LinkOld";
+
+    public static final String DROP_OLD =
+"DROP TABLE LinkOld";
+
+    // Statements for bulk writes, see bindTo
+    // A null timestamp means now for inserts and no change for updates
+    public static final String INSERT_STATEMENT =
+"INSERT INTO Link (sha, url, timestamp, deleted, synced, rev)"
++"  VALUES (?, ?, COALESCE(?, " + NOW_MS + "), ?, ?, ?)";
+
+    public static final String UPDATE_STATEMENT =
+"UPDATE Link SET sha = ?, url = ?, timestamp = COALESCE(?, timestamp),"
++"  deleted = ?, synced = ?, rev = ?"
++"  WHERE _id IS ?";
+
+    public static final String DELETE_STATEMENT =
+"DELETE FROM Link WHERE _id IS ? OR sha IS ?";
+
+    // Statements for merging remote links, see LinkWrites.mergeRemote
+    public static final String MERGE_STATE_QUERY =
+"SELECT rev, synced = 0 OR deleted = 1 FROM Link WHERE sha = ?";
+
+    public static final String MERGE_UPDATE_STATEMENT =
+"UPDATE Link SET url = ?, timestamp = COALESCE(?, timestamp),"
++"  deleted = 0, synced = 1, rev = ?"
++"  WHERE sha = ?";
+
+    // The remote link wins if another link has the same url, unless that
+    // one has changes waiting for upload. Then it stays, and the remote
+    // link is ignored by the unique url. Once the upload is acknowledged,
+    // the link the server answers with replaces it.
+    public static final String MERGE_DELETE_URL_STATEMENT =
+"DELETE FROM Link WHERE url = ? AND sha != ?"
++"  AND synced = 1 AND deleted = 0"
++"  AND NOT EXISTS (SELECT 1 FROM LinkOutbox WHERE LinkOutbox.sha = Link.sha)";
+
+    // Full-text index of the visible links. The docid is the _id of the
+    // link. Kept up to date by the triggers in DatabaseTriggers.
+    public static final String FTS_TABLE_NAME = "LinkFts";
+
+    public static final String CREATE_FTS_TABLE =
+"CREATE VIRTUAL TABLE LinkFts USING fts4(url)";
+
+    // What is indexed for a url. The scheme and www are in nearly every
+    // link, so they are left out to keep the index small and prefix
+    // queries fast.
+    static String ftsText(final String column) {
+        return "replace(replace(replace(" + column
+            + ", 'https://', ''), 'http://', ''), 'www.', '')";
+    }
+
+    public static final String POPULATE_FTS_TABLE =
+"INSERT INTO LinkFts (docid, url)"
++"  SELECT _id, " + ftsText("url") + " FROM Link WHERE deleted = 0";
+
+    // Ranks the newest candidate matches by the number of matched terms.
+    // The candidates are bounded so that a query matching nearly every link
+    // doesn't have to compute offsets for and sort all of them.
+    public static final int SEARCH_CANDIDATES = 500;
+
+    public static final String SEARCH_QUERY =
+"SELECT Link._id, Link.sha, Link.url, Link.timestamp, Link.deleted, Link.synced,"
++"  Link.rev"
++"  FROM (SELECT docid, length(offsets(LinkFts)) AS rank FROM LinkFts"
++"        WHERE LinkFts MATCH ? ORDER BY docid DESC LIMIT " + SEARCH_CANDIDATES + ")"
++"  AS matches JOIN Link ON Link._id = matches.docid"
++"  ORDER BY matches.rank DESC, Link.timestamp DESC"
++"  LIMIT ?";
 }
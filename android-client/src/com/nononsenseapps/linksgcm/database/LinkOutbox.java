@@ -0,0 +1,127 @@
+package com.nononsenseapps.linksgcm.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Local changes waiting to be uploaded, in the order they were made. Written
+ * by ItemProvider in the same transaction as the change itself, and drained
+ * by the sync.
+ *
+ * There is at most one waiting operation per link. A later change is merged
+ * into it, and a link which is added and deleted before being uploaded is
+ * removed without the server ever hearing of it.
+ *
+ * Operations being uploaded are marked as sending. A change made during the
+ * upload is queued anew, so it isn't lost when the upload is acknowledged.
+ */
+public class LinkOutbox {
+	public static final String TABLE_NAME = "LinkOutbox";
+
+	public static final String COL__ID = "_id";
+	public static final String COL_SHA = "sha";
+	public static final String COL_OP = "op";
+	public static final String COL_SENDING = "sending";
+
+	public static final int OP_ADD = 1;
+	public static final int OP_UPDATE = 2;
+	public static final int OP_DELETE = 3;
+
+	/**
+	 * A link to upload, and the operation it came from.
+	 */
+	public static class Entry {
+		public final long id;
+		public final LinkItem link;
+
+		Entry(final long id, final LinkItem link) {
+			this.id = id;
+			this.link = link;
+		}
+	}
+
+	// AUTOINCREMENT so ids, and with them the order, are never reused
+	public static final String CREATE_TABLE =
+			"CREATE TABLE LinkOutbox"
+			+ "  (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+			+ "  sha TEXT NOT NULL,"
+			+ "  op INTEGER NOT NULL,"
+			+ "  sending INTEGER NOT NULL DEFAULT 0)";
+
+	public static final String CREATE_SHA_INDEX =
+			"CREATE INDEX IF NOT EXISTS link_outbox_sha_idx"
+			+ "  ON LinkOutbox (sha)";
+
+	// Changes made before there was an outbox. Whether they are adds is
+	// not known, so they are never cancelled.
+	public static final String POPULATE_TABLE =
+			"INSERT INTO LinkOutbox (sha, op)"
+			+ "  SELECT sha, CASE WHEN deleted = 1 THEN " + OP_DELETE
+			+ "  ELSE " + OP_UPDATE + " END"
+			+ "  FROM Link WHERE synced = 0 OR deleted = 1 ORDER BY _id";
+
+	// The operations of an upload, with the links as they are now
+	static final String SENDING_QUERY =
+			"SELECT LinkOutbox._id, Link._id, Link.sha, Link.url,"
+			+ "  Link.timestamp, Link.deleted, Link.synced, Link.rev"
+			+ "  FROM LinkOutbox JOIN Link ON Link.sha = LinkOutbox.sha"
+			+ "  WHERE LinkOutbox.sending = 1 ORDER BY LinkOutbox._id";
+
+	/**
+	 * Queues an operation on the link, merging it with the one already
+	 * waiting. Call in the transaction making the change.
+	 */
+	static void enqueue(final SQLiteDatabase db, final String sha,
+			final int op) {
+		long queuedId = -1;
+		int queuedOp = 0;
+		boolean sending = false;
+		final Cursor c = db.query(TABLE_NAME, new String[] { COL__ID, COL_OP,
+				COL_SENDING }, COL_SHA + " = ?", new String[] { sha }, null,
+				null, null);
+		try {
+			while (c.moveToNext()) {
+				if (c.getLong(2) != 0) {
+					sending = true;
+				}
+				else {
+					queuedId = c.getLong(0);
+					queuedOp = c.getInt(1);
+				}
+			}
+		}
+		finally {
+			c.close();
+		}
+
+		if (queuedId < 0) {
+			db.execSQL("INSERT INTO LinkOutbox (sha, op) VALUES (?, ?)",
+					new Object[] { sha, op });
+		}
+		else if (op == OP_DELETE && queuedOp == OP_ADD && !sending) {
+			// The server never saw it, so there is nothing to tell
+			db.execSQL("DELETE FROM LinkOutbox WHERE _id = ?",
+					new Object[] { queuedId });
+			db.execSQL("DELETE FROM Link WHERE sha = ?", new Object[] { sha });
+		}
+		else if (op == OP_DELETE) {
+			db.execSQL("UPDATE LinkOutbox SET op = ? WHERE _id = ?",
+					new Object[] { OP_DELETE, queuedId });
+		}
+		// An update of a waiting add or delete is part of it
+	}
+
+	/**
+	 * Marks everything waiting as sending. Operations left sending by an
+	 * upload which never finished are sent again, unless a later one for
+	 * the same link replaces them.
+	 */
+	static void markSending(final Storage db) {
+		db.execSQL("DELETE FROM LinkOutbox WHERE sending = 1 AND sha IN"
+				+ " (SELECT sha FROM LinkOutbox WHERE sending = 0)");
+		db.execSQL("UPDATE LinkOutbox SET sending = 1 WHERE sending = 0");
+		// Links which were removed by a sync since
+		db.execSQL("DELETE FROM LinkOutbox WHERE sha NOT IN"
+				+ " (SELECT sha FROM Link)");
+	}
+}
@@ -0,0 +1,374 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+/**
+ * Paged data source for the visible links, newest first.
+ *
+ * Links are loaded from {@link ItemProvider} a page at a time using keyset
+ * pagination on (timestamp, _id), so loading a page costs the same wherever
+ * it is in the list. Pages are always loaded in the background, the main
+ * thread never waits for the database. Rows of a page which isn't loaded
+ * yet are null until it arrives. When the links change, what is shown
+ * stays until the new count and the pages around the one being shown
+ * have loaded, and is then replaced all at once. The ids of all rows are
+ * loaded with the count, so getItemId never waits for a page and checked
+ * items keep their ids. Pages next to the one being shown are
+ * fetched ahead of time, and pages far away are dropped to keep memory
+ * bounded. If the
+ * end of the previous page is not known, for example after a fast scroll, a
+ * page is loaded by offset instead.
+ *
+ * With a search query set, the ranked search results are shown instead.
+ * They are few, so they are loaded all at once.
+ *
+ * Not thread safe. Must only be used from the main thread.
+ */
+public class LinkPager {
+
+	public static final int PAGE_SIZE = 50;
+	// Pages this many pages from the one shown are loaded ahead of time
+	static final int PREFETCH_PAGES = 1;
+	// Pages further away than this from the one shown are dropped
+	static final int KEEP_PAGES = 3;
+
+	public interface Listener {
+		/**
+		 * The data changed, everything shown must be fetched again.
+		 */
+		void onChanged();
+
+		/**
+		 * A page which getItem returned null for has been loaded. The rows
+		 * shown for it must be fetched again.
+		 */
+		void onPageLoaded();
+	}
+
+	/**
+	 * Position of the last row in a page
+	 */
+	private static class Key {
+		final long timestamp;
+		final long id;
+
+		Key(final LinkItem item) {
+			timestamp = item.timestamp;
+			id = item._id;
+		}
+	}
+
+	private final ContentResolver resolver;
+	private final Listener listener;
+	private final Handler handler;
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor();
+	private final SparseArray<LinkItem[]> pages = new SparseArray<LinkItem[]>();
+	private final SparseArray<Key> ends = new SparseArray<Key>();
+	private final Set<Integer> loading = new HashSet<Integer>();
+	// Pages getItem returned null for, the listener is told when they load
+	private final Set<Integer> wanted = new HashSet<Integer>();
+	// Of every row, in order. Their number is the count.
+	private long[] ids = new long[0];
+	private String query = null;
+	// The query of what is shown, until a refresh for query is in
+	private String shownQuery = null;
+	// Page getItem was last asked for, refreshed first
+	private int lastPage = 0;
+	// Bumped when the data changes. Written on the main thread, read by
+	// refreshes to skip ahead to the latest.
+	private volatile int generation = 0;
+	// Generation of what is shown, older loads are thrown away
+	private int shown = 0;
+
+	private final ContentObserver observer;
+
+	public LinkPager(final ContentResolver resolver, final Listener listener) {
+		this.resolver = resolver;
+		this.listener = listener;
+		this.handler = new Handler(Looper.getMainLooper());
+		this.observer = new ContentObserver(handler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				invalidate();
+			}
+		};
+		resolver.registerContentObserver(LinkItem.URI(), true, observer);
+		invalidate();
+	}
+
+	/**
+	 * Stop listening for changes and loading pages.
+	 */
+	public void close() {
+		resolver.unregisterContentObserver(observer);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Show the search results for the query, or all links if null or empty.
+	 */
+	public void setQuery(final String query) {
+		final String newQuery = query == null || query.trim().isEmpty() ? null
+				: query.trim();
+		if (newQuery == null ? this.query == null : newQuery
+				.equals(this.query)) {
+			return;
+		}
+		this.query = newQuery;
+		invalidate();
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public int getCount() {
+		return ids.length;
+	}
+
+	/**
+	 * The _id of the link at the position, known whether its page is loaded
+	 * or not. -1 outside of the list.
+	 */
+	public long getItemId(final int position) {
+		return position >= 0 && position < ids.length ? ids[position] : -1;
+	}
+
+	/**
+	 * Returns the link at the position, or null if its page is still
+	 * loading. The listener's onPageLoaded is called once it has. Also null
+	 * if the link was removed since the count was taken.
+	 */
+	public LinkItem getItem(final int position) {
+		final int page = position / PAGE_SIZE;
+		final LinkItem[] rows = pages.get(page);
+		lastPage = page;
+		if (shownQuery == null) {
+			if (rows == null) {
+				// Not prefetched, or still on its way
+				wanted.add(page);
+				load(page);
+			}
+			prefetchAround(page);
+			evictAround(page);
+		}
+		// Search results are all loaded by refresh
+
+		final int index = position % PAGE_SIZE;
+		if (rows != null && index < rows.length) {
+			return rows[index];
+		}
+		return null;
+	}
+
+	/**
+	 * Loads everything again. What is shown stays until the new data
+	 * replaces it, see refresh.
+	 */
+	public void invalidate() {
+		generation++;
+		refresh(generation);
+	}
+
+	private void storePage(final int page, final LinkItem[] rows) {
+		pages.put(page, rows);
+		if (rows.length > 0) {
+			ends.put(page, new Key(rows[rows.length - 1]));
+		}
+	}
+
+	private void prefetchAround(final int page) {
+		for (int p = page - PREFETCH_PAGES; p <= page + PREFETCH_PAGES; p++) {
+			if (p >= 0 && p * PAGE_SIZE < ids.length && pages.get(p) == null) {
+				load(p);
+			}
+		}
+	}
+
+	/**
+	 * Loads the page of what is shown on the executor, unless it is already
+	 * on its way.
+	 */
+	private void load(final int page) {
+		if (!loading.add(page)) {
+			return;
+		}
+		final Key after = ends.get(page - 1);
+		final int gen = shown;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final LinkItem[] rows = loadPage(page, after);
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (gen != shown) {
+							return;
+						}
+						loading.remove(page);
+						if (pages.get(page) == null) {
+							storePage(page, rows);
+						}
+						if (wanted.remove(page)) {
+							listener.onPageLoaded();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void evictAround(final int page) {
+		for (int i = pages.size() - 1; i >= 0; i--) {
+			if (Math.abs(pages.keyAt(i) - page) > KEEP_PAGES) {
+				// The end key is kept so the page can be reloaded cheaply
+				pages.removeAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Loads the ids, and the pages around the one last shown or all search
+	 * results. Once they are in, they replace what is shown in one go, so
+	 * rows never go blank because the links changed.
+	 */
+	private void refresh(final int gen) {
+		final String search = query;
+		final int around = lastPage;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (gen != generation) {
+					// A newer refresh is queued behind this one
+					return;
+				}
+				final SparseArray<LinkItem[]> newPages = new SparseArray<LinkItem[]>();
+				final long[] newIds;
+				if (search != null) {
+					final LinkItem[] rows = readRows(resolver.query(
+							LinkItem.SEARCH_URI(search), null, null, null, null));
+					newIds = new long[rows.length];
+					for (int i = 0; i < rows.length; i++) {
+						newIds[i] = rows[i]._id;
+					}
+					for (int start = 0; start < rows.length; start += PAGE_SIZE) {
+						final LinkItem[] page = new LinkItem[Math.min(PAGE_SIZE,
+								rows.length - start)];
+						System.arraycopy(rows, start, page, 0, page.length);
+						newPages.put(start / PAGE_SIZE, page);
+					}
+				}
+				else {
+					newIds = loadIds();
+					for (int p = around - PREFETCH_PAGES; p <= around
+							+ PREFETCH_PAGES; p++) {
+						if (p >= 0 && p * PAGE_SIZE < newIds.length) {
+							// By offset, the keys are of the old data
+							newPages.put(p, loadPage(p, null));
+						}
+					}
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						// Newer than what is shown, even if not the latest
+						if (gen <= shown) {
+							return;
+						}
+						shown = gen;
+						shownQuery = search;
+						pages.clear();
+						ends.clear();
+						loading.clear();
+						wanted.clear();
+						for (int i = 0; i < newPages.size(); i++) {
+							storePage(newPages.keyAt(i), newPages.valueAt(i));
+						}
+						ids = newIds;
+						listener.onChanged();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * The ids of the visible links, in the order of the list. Read from the
+	 * same index a count is. Safe to call from any thread.
+	 */
+	private long[] loadIds() {
+		final Cursor c = resolver.query(LinkItem.URI(),
+				new String[] { LinkItem.COL__ID }, LinkItem.SELECTION_VISIBLE,
+				null, LinkItem.SORT_PAGED);
+		if (c == null) {
+			return new long[0];
+		}
+		try {
+			final long[] result = new long[c.getCount()];
+			int i = 0;
+			while (i < result.length && c.moveToNext()) {
+				result[i++] = c.getLong(0);
+			}
+			return result;
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Loads the page that follows the given key. If the key is not known, the
+	 * page is loaded by offset instead. Safe to call from any thread.
+	 */
+	private LinkItem[] loadPage(final int page, final Key after) {
+		final String selection;
+		final String[] args;
+		final String limit;
+		if (page == 0) {
+			selection = LinkItem.SELECTION_VISIBLE;
+			args = null;
+			limit = Integer.toString(PAGE_SIZE);
+		}
+		else if (after != null) {
+			selection = LinkItem.SELECTION_VISIBLE_AFTER;
+			args = new String[] { Long.toString(after.timestamp),
+					Long.toString(after.timestamp), Long.toString(after.id) };
+			limit = Integer.toString(PAGE_SIZE);
+		}
+		else {
+			selection = LinkItem.SELECTION_VISIBLE;
+			args = null;
+			limit = (page * PAGE_SIZE) + "," + PAGE_SIZE;
+		}
+
+		final Uri uri = LinkItem.URI().buildUpon()
+				.appendQueryParameter(ItemProvider.QUERY_LIMIT, limit).build();
+		return readRows(resolver.query(uri, LinkItem.FIELDS, selection, args,
+				LinkItem.SORT_PAGED));
+	}
+
+	private static LinkItem[] readRows(final Cursor c) {
+		if (c == null) {
+			return new LinkItem[0];
+		}
+		final LinkItem[] rows = new LinkItem[c.getCount()];
+		int i = 0;
+		while (c.moveToNext()) {
+			rows[i++] = new LinkItem(c);
+		}
+		c.close();
+		return rows;
+	}
+}
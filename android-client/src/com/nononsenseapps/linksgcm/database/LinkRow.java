@@ -0,0 +1,60 @@
+package com.nononsenseapps.linksgcm.database;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * A reusable view of the Link row a cursor is at, for scans which look at
+ * many rows but keep none of them. Text is copied into CharArrayBuffers,
+ * which only grow when a longer value comes along, so moving to the next
+ * row allocates nothing once the buffers are large enough.
+ *
+ * The view is only valid until the next call to {@link #load(Cursor)}. Use
+ * {@link #toLinkItem()} to keep a row.
+ *
+ * @see DatabaseHandler#forEachLinkItem
+ */
+public class LinkRow {
+	// Shas are 30 chars
+	public final CharArrayBuffer sha = new CharArrayBuffer(32);
+	public final CharArrayBuffer url = new CharArrayBuffer(128);
+	public long id;
+	public long timestamp;
+	public long deleted;
+	public long synced;
+	public long rev;
+
+	/**
+	 * Reads the row the cursor is at. The projection is expected to match
+	 * LinkItem.FIELDS.
+	 */
+	public LinkRow load(final Cursor cursor) {
+		id = cursor.getLong(0);
+		cursor.copyStringToBuffer(1, sha);
+		cursor.copyStringToBuffer(2, url);
+		timestamp = cursor.getLong(3);
+		deleted = cursor.getLong(4);
+		synced = cursor.getLong(5);
+		rev = cursor.getLong(6);
+		return this;
+	}
+
+	/**
+	 * A copy of the row which stays valid.
+	 */
+	public LinkItem toLinkItem() {
+		final LinkItem item = new LinkItem();
+		item._id = id;
+		item.sha = toString(sha);
+		item.url = toString(url);
+		item.timestamp = timestamp;
+		item.deleted = deleted;
+		item.synced = synced;
+		item.rev = rev;
+		return item;
+	}
+
+	private static String toString(final CharArrayBuffer buffer) {
+		return new String(buffer.data, 0, buffer.sizeCopied);
+	}
+}
@@ -0,0 +1,294 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The writes of links, on any {@link Storage}. DatabaseHandler calls these
+ * with its write lock held and sends the change notifications.
+ */
+public class LinkWrites {
+
+	/**
+	 * Binds the item straight to a statement, like applyBatch, instead of
+	 * building ContentValues and SQL for it.
+	 *
+	 * @return true if a row was written
+	 */
+	public static boolean writeItem(final Storage db, final LinkItem item) {
+		int result = 0;
+
+		if (item.getId() > -1) {
+			final Storage.Statement update = db
+					.compileStatement(LinkItem.UPDATE_STATEMENT);
+			try {
+				item.bindTo(update);
+				update.bindLong(7, item.getId());
+				result += update.executeUpdateDelete();
+			}
+			finally {
+				update.close();
+			}
+		}
+		// Update failed or wasn't possible, insert instead
+		else {
+			final Storage.Statement insert = db
+					.compileStatement(LinkItem.INSERT_STATEMENT);
+			try {
+				item.bindTo(insert);
+				// -1 if a unique constraint ignored the row
+				final long id = insert.executeInsert();
+				if (id > 0) {
+					item.setId(id);
+					result++;
+				}
+			}
+			finally {
+				insert.close();
+			}
+		}
+
+		return result > 0;
+	}
+
+	/**
+	 * Writes and deletes a batch of items in a single transaction, see
+	 * DatabaseHandler.applyBatch.
+	 *
+	 * @return the number of rows written or deleted
+	 */
+	public static int applyBatch(final Storage db,
+			final List<LinkItem> upserts, final List<LinkItem> deletes) {
+		int result = 0;
+		Storage.Statement insert = null;
+		Storage.Statement update = null;
+		Storage.Statement delete = null;
+		db.beginTransaction();
+		try {
+			if (upserts != null && !upserts.isEmpty()) {
+				insert = db.compileStatement(LinkItem.INSERT_STATEMENT);
+				update = db.compileStatement(LinkItem.UPDATE_STATEMENT);
+				for (LinkItem item : upserts) {
+					if (item.getId() > -1) {
+						item.bindTo(update);
+						update.bindLong(7, item.getId());
+						result += update.executeUpdateDelete();
+					}
+					else {
+						item.bindTo(insert);
+						// -1 if a unique constraint ignored the row
+						final long id = insert.executeInsert();
+						if (id > 0) {
+							item.setId(id);
+							result++;
+						}
+					}
+				}
+			}
+			if (deletes != null && !deletes.isEmpty()) {
+				delete = db.compileStatement(LinkItem.DELETE_STATEMENT);
+				for (LinkItem item : deletes) {
+					delete.clearBindings();
+					delete.bindLong(1, item.getId());
+					if (item.sha == null) {
+						delete.bindNull(2);
+					}
+					else {
+						delete.bindString(2, item.sha);
+					}
+					result += delete.executeUpdateDelete();
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+			if (insert != null) {
+				insert.close();
+			}
+			if (update != null) {
+				update.close();
+			}
+			if (delete != null) {
+				delete.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Applies links received from the server in a single transaction, see
+	 * DatabaseHandler.mergeRemote.
+	 *
+	 * @return the number of links applied
+	 */
+	public static int mergeRemote(final Storage db, final List<LinkItem> links) {
+		int result = 0;
+		final String[] args = new String[1];
+		final Storage.Statement insert = db
+				.compileStatement(LinkItem.INSERT_STATEMENT);
+		final Storage.Statement update = db
+				.compileStatement(LinkItem.MERGE_UPDATE_STATEMENT);
+		final Storage.Statement deleteUrl = db
+				.compileStatement(LinkItem.MERGE_DELETE_URL_STATEMENT);
+		final Storage.Statement delete = db
+				.compileStatement(LinkItem.DELETE_STATEMENT);
+		db.beginTransaction();
+		try {
+			for (LinkItem item : links) {
+				// Not a link, only deletes can do without a url
+				if (item.sha == null
+						|| (item.url == null && item.deleted == 0)) {
+					continue;
+				}
+
+				args[0] = item.sha;
+				final Storage.Rows c = db.query(LinkItem.MERGE_STATE_QUERY,
+						args);
+				try {
+					if (c.moveToNext()) {
+						final boolean pending = c.getLong(1) != 0;
+						// Servers without revisions send 0, always apply
+						final boolean seen = item.rev > 0
+								&& c.getLong(0) >= item.rev;
+						if (pending || seen) {
+							continue;
+						}
+					}
+					else if (item.deleted != 0) {
+						// Nothing to delete
+						continue;
+					}
+				}
+				finally {
+					c.close();
+				}
+
+				if (item.deleted != 0) {
+					delete.bindLong(1, -1);
+					delete.bindString(2, item.sha);
+					result += delete.executeUpdateDelete();
+					continue;
+				}
+
+				deleteUrl.bindString(1, item.url);
+				deleteUrl.bindString(2, item.sha);
+				deleteUrl.executeUpdateDelete();
+
+				update.clearBindings();
+				update.bindString(1, item.url);
+				if (item.timestamp != 0) {
+					update.bindLong(2, item.timestamp);
+				}
+				update.bindLong(3, item.rev);
+				update.bindString(4, item.sha);
+				if (update.executeUpdateDelete() == 0) {
+					item.synced = 1;
+					item.bindTo(insert);
+					if (insert.executeInsert() < 0) {
+						continue;
+					}
+				}
+				result++;
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+			insert.close();
+			update.close();
+			deleteUrl.close();
+			delete.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Takes everything waiting in the outbox for an upload, see
+	 * DatabaseHandler.getOutbox.
+	 */
+	public static List<LinkOutbox.Entry> takeOutbox(final Storage db) {
+		final List<LinkOutbox.Entry> result = new ArrayList<LinkOutbox.Entry>();
+		db.beginTransaction();
+		try {
+			LinkOutbox.markSending(db);
+			final Storage.Rows c = db.query(LinkOutbox.SENDING_QUERY, null);
+			try {
+				while (c.moveToNext()) {
+					final LinkItem link = new LinkItem();
+					link._id = c.getLong(1);
+					link.sha = c.getString(2);
+					link.url = c.getString(3);
+					link.timestamp = c.getLong(4);
+					link.deleted = c.getLong(5);
+					link.synced = c.getLong(6);
+					link.rev = c.getLong(7);
+					result.add(new LinkOutbox.Entry(c.getLong(0), link));
+				}
+			}
+			finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+		return result;
+	}
+
+	/**
+	 * Removes uploaded entries from the outbox, see
+	 * DatabaseHandler.acknowledge.
+	 *
+	 * @return the number of links marked or removed
+	 */
+	public static int acknowledge(final Storage db,
+			final List<LinkOutbox.Entry> entries) {
+		int result = 0;
+		final String[] args = new String[1];
+		final Storage.Statement remove = db
+				.compileStatement("DELETE FROM LinkOutbox WHERE _id = ?");
+		final Storage.Statement synced = db
+				.compileStatement("UPDATE Link SET synced = 1 WHERE sha = ?");
+		final Storage.Statement delete = db
+				.compileStatement(LinkItem.DELETE_STATEMENT);
+		db.beginTransaction();
+		try {
+			for (LinkOutbox.Entry entry : entries) {
+				remove.bindLong(1, entry.id);
+				remove.executeUpdateDelete();
+
+				args[0] = entry.link.sha;
+				final Storage.Rows waiting = db.query(
+						"SELECT 1 FROM LinkOutbox WHERE sha = ? LIMIT 1", args);
+				try {
+					if (waiting.moveToNext()) {
+						continue;
+					}
+				}
+				finally {
+					waiting.close();
+				}
+				if (entry.link.deleted != 0) {
+					// The tombstone isn't needed any more
+					delete.bindLong(1, -1);
+					delete.bindString(2, entry.link.sha);
+					result += delete.executeUpdateDelete();
+				}
+				else {
+					synced.bindString(1, entry.link.sha);
+					result += synced.executeUpdateDelete();
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+			remove.close();
+			synced.close();
+			delete.close();
+		}
+		return result;
+	}
+}
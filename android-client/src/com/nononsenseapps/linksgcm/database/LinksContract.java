@@ -0,0 +1,19 @@
+package com.nononsenseapps.linksgcm.database;
+
+/**
+ * How ItemProvider is addressed. Kept apart from the provider so the tables
+ * can build their uris without depending on it.
+ */
+public class LinksContract {
+	public static final String AUTHORITY = "com.nononsenseapps.linksgcm.database.AUTHORITY";
+	public static final String SCHEME = "content://";
+	/**
+	 * Optional query parameter on the table uri, with an SQL limit clause:
+	 * "count" or "offset,count".
+	 */
+	public static final String QUERY_LIMIT = "limit";
+	/**
+	 * Query parameter on the search uri with the text to search for.
+	 */
+	public static final String QUERY_SEARCH = "q";
+}
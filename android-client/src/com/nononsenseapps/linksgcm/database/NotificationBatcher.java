@@ -0,0 +1,158 @@
+package com.nononsenseapps.linksgcm.database;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nononsenseapps.linksgcm.sync.SyncScheduler;
+
+/**
+ * Coalesces change notifications. Instead of notifying every row that is
+ * written, the tables of the changed rows are collected and notified once,
+ * either when the outermost batch ends or after a short time window.
+ *
+ * Only changes which were marked with syncToNetwork, e.g. changes made by
+ * the user, request an upload sync. It is requested from SyncScheduler, not
+ * through the notification, so changes are uploaded together.
+ */
+public class NotificationBatcher {
+	/**
+	 * Changes made outside of a batch are held this long before they are
+	 * sent, so bursts result in a single notification.
+	 */
+	static final long WINDOW_MS = 100;
+
+	private static NotificationBatcher instance = null;
+
+	public synchronized static NotificationBatcher getInstance(
+			final Context context) {
+		if (instance == null)
+			instance = new NotificationBatcher(context.getApplicationContext());
+		return instance;
+	}
+
+	private final Context context;
+	private final Handler handler;
+	private final Set<Uri> dirty = new LinkedHashSet<Uri>();
+	private boolean syncToNetwork = false;
+	private int batchDepth = 0;
+	private boolean flushScheduled = false;
+	// Time spent notifying, for sync traces
+	private final AtomicLong notifyNanos = new AtomicLong();
+
+	private final Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (NotificationBatcher.this) {
+				flushScheduled = false;
+				if (batchDepth > 0) {
+					// endBatch will flush
+					return;
+				}
+			}
+			flush();
+		}
+	};
+
+	private NotificationBatcher(final Context context) {
+		this.context = context;
+		this.handler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Start collecting changes. Nothing is sent until the matching
+	 * {@link #endBatch()}. Batches can be nested.
+	 */
+	public synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch. If it was the outermost one, collected changes are sent
+	 * right away.
+	 */
+	public void endBatch() {
+		synchronized (this) {
+			if (batchDepth > 0) {
+				batchDepth--;
+			}
+			if (batchDepth > 0) {
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Mark the table of the uri as changed.
+	 *
+	 * @param syncToNetwork
+	 *            true if this change should be uploaded, i.e. it was made by
+	 *            the user and not by a sync
+	 */
+	public synchronized void notifyChange(final Uri uri,
+			final boolean syncToNetwork) {
+		dirty.add(getTableUri(uri));
+		this.syncToNetwork |= syncToNetwork;
+
+		if (batchDepth == 0 && !flushScheduled) {
+			flushScheduled = true;
+			handler.postDelayed(flushRunnable, WINDOW_MS);
+		}
+	}
+
+	/**
+	 * Sends all collected changes now.
+	 */
+	public void flush() {
+		final Uri[] uris;
+		final boolean sync;
+		synchronized (this) {
+			if (dirty.isEmpty()) {
+				return;
+			}
+			uris = dirty.toArray(new Uri[dirty.size()]);
+			sync = syncToNetwork;
+			dirty.clear();
+			syncToNetwork = false;
+		}
+
+		final long start = System.nanoTime();
+		for (Uri uri : uris) {
+			try {
+				context.getContentResolver().notifyChange(uri, null, false);
+			}
+			catch (UnsupportedOperationException e) {
+				// Catch this for test suite. Mock provider cant notify
+			}
+		}
+		notifyNanos.addAndGet(System.nanoTime() - start);
+		if (sync) {
+			SyncScheduler.requestUpload(context);
+		}
+	}
+
+	/**
+	 * Total time spent sending notifications so far, in nanoseconds.
+	 */
+	public long getNotifyTime() {
+		return notifyNanos.get();
+	}
+
+	/**
+	 * content://authority/table/... becomes content://authority/table
+	 */
+	static Uri getTableUri(final Uri uri) {
+		if (uri.getPathSegments().size() <= 1) {
+			return uri;
+		}
+		return Uri.withAppendedPath(
+				Uri.parse(ItemProvider.SCHEME + uri.getAuthority()), uri
+						.getPathSegments().get(0));
+	}
+}
@@ -0,0 +1,118 @@
+package com.nononsenseapps.linksgcm.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Storage on a database of the app. Only wraps it, make one whenever needed.
+ */
+class SQLiteStorage implements Storage {
+
+	private final SQLiteDatabase db;
+
+	SQLiteStorage(final SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	@Override
+	public void execSQL(final String sql) {
+		db.execSQL(sql);
+	}
+
+	@Override
+	public Statement compileStatement(final String sql) {
+		return new CompiledStatement(db.compileStatement(sql));
+	}
+
+	@Override
+	public Rows query(final String sql, final String[] args) {
+		return new CursorRows(db.rawQuery(sql, args));
+	}
+
+	@Override
+	public void beginTransaction() {
+		db.beginTransaction();
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		db.setTransactionSuccessful();
+	}
+
+	@Override
+	public void endTransaction() {
+		db.endTransaction();
+	}
+
+	private static class CompiledStatement implements Statement {
+		private final SQLiteStatement stmt;
+
+		CompiledStatement(final SQLiteStatement stmt) {
+			this.stmt = stmt;
+		}
+
+		@Override
+		public void bindLong(final int index, final long value) {
+			stmt.bindLong(index, value);
+		}
+
+		@Override
+		public void bindString(final int index, final String value) {
+			stmt.bindString(index, value);
+		}
+
+		@Override
+		public void bindNull(final int index) {
+			stmt.bindNull(index);
+		}
+
+		@Override
+		public void clearBindings() {
+			stmt.clearBindings();
+		}
+
+		@Override
+		public long executeInsert() {
+			return stmt.executeInsert();
+		}
+
+		@Override
+		public int executeUpdateDelete() {
+			return stmt.executeUpdateDelete();
+		}
+
+		@Override
+		public void close() {
+			stmt.close();
+		}
+	}
+
+	private static class CursorRows implements Rows {
+		private final Cursor cursor;
+
+		CursorRows(final Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			return cursor.moveToNext();
+		}
+
+		@Override
+		public long getLong(final int column) {
+			return cursor.getLong(column);
+		}
+
+		@Override
+		public String getString(final int column) {
+			return cursor.getString(column);
+		}
+
+		@Override
+		public void close() {
+			cursor.close();
+		}
+	}
+}
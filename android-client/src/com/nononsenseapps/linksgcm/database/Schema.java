@@ -0,0 +1,81 @@
+package com.nononsenseapps.linksgcm.database;
+
+/**
+ * The tables, indexes and triggers of the database, and the steps from
+ * every earlier version to this one.
+ */
+public class Schema {
+
+	// Database Version
+	// 1: Initial
+	// 2: Indexes on Link
+	// 3: _id in link_visible_idx, for paging
+	// 4: Full-text index LinkFts
+	// 5: Server revision of links
+	// 6: LinkOutbox, link_pending_idx dropped
+	// 7: SyncLog
+	// 8: Link timestamps in milliseconds
+	public static final int VERSION = 8;
+
+	/**
+	 * Creates everything, dropping what is there.
+	 */
+	public static void create(final Storage db) {
+		db.execSQL("DROP TABLE IF EXISTS " + LinkItem.TABLE_NAME);
+		db.execSQL("DROP TABLE IF EXISTS " + LinkItem.FTS_TABLE_NAME);
+		db.execSQL("DROP TABLE IF EXISTS " + LinkOutbox.TABLE_NAME);
+		db.execSQL("DROP TABLE IF EXISTS " + SyncLog.TABLE_NAME);
+		db.execSQL(LinkItem.CREATE_TABLE);
+		db.execSQL(LinkItem.CREATE_FTS_TABLE);
+		db.execSQL(LinkOutbox.CREATE_TABLE);
+		db.execSQL(SyncLog.CREATE_TABLE);
+		createIndexes(db);
+
+		// Create Triggers
+		DatabaseTriggers.create(db);
+	}
+
+	/**
+	 * Upgrades from oldVersion to VERSION. Data is kept.
+	 */
+	public static void upgrade(final Storage db, final int oldVersion) {
+		// Each step upgrades one version, and falls through to the next.
+		// CREATE_VISIBLE_INDEX covers columns added by later steps, so
+		// link_visible_idx is created only once Link is final, in case 7.
+		switch (oldVersion) {
+		case 1:
+		case 2:
+			db.execSQL("DROP INDEX IF EXISTS link_visible_idx");
+		case 3:
+			db.execSQL("DROP TABLE IF EXISTS " + LinkItem.FTS_TABLE_NAME);
+			db.execSQL(LinkItem.CREATE_FTS_TABLE);
+			db.execSQL(LinkItem.POPULATE_FTS_TABLE);
+		case 4:
+			db.execSQL(LinkItem.ADD_REV_COLUMN);
+			db.execSQL("DROP INDEX IF EXISTS link_visible_idx");
+		case 5:
+			// Pending links are found through the outbox now
+			db.execSQL("DROP INDEX IF EXISTS link_pending_idx");
+			db.execSQL(LinkOutbox.CREATE_TABLE);
+			db.execSQL(LinkOutbox.CREATE_SHA_INDEX);
+			db.execSQL(LinkOutbox.POPULATE_TABLE);
+		case 6:
+			db.execSQL(SyncLog.CREATE_TABLE);
+		case 7:
+			// The old table takes its index and triggers with it
+			db.execSQL(LinkItem.RENAME_TO_OLD);
+			db.execSQL(LinkItem.CREATE_TABLE);
+			db.execSQL(LinkItem.COPY_FROM_OLD);
+			db.execSQL(LinkItem.DROP_OLD);
+			db.execSQL(LinkItem.CREATE_VISIBLE_INDEX);
+		}
+
+		// Recreate Triggers
+		DatabaseTriggers.create(db);
+	}
+
+	private static void createIndexes(final Storage db) {
+		db.execSQL(LinkItem.CREATE_VISIBLE_INDEX);
+		db.execSQL(LinkOutbox.CREATE_SHA_INDEX);
+	}
+}
@@ -0,0 +1,63 @@
+package com.nononsenseapps.linksgcm.database;
+
+/**
+ * The SQL the links are stored with. DatabaseHandler backs it with the app's
+ * SQLiteDatabase, see {@link SQLiteStorage}. The jvm module backs it with a
+ * desktop SQLite driver, to test and measure {@link Schema} and
+ * {@link LinkWrites} off the device.
+ *
+ * Same semantics as SQLiteDatabase: bind indexes start at 1, and
+ * transactions nest.
+ */
+public interface Storage {
+
+	/**
+	 * A compiled statement, for running many times with different values.
+	 */
+	interface Statement {
+		void bindLong(int index, long value);
+
+		void bindString(int index, String value);
+
+		void bindNull(int index);
+
+		void clearBindings();
+
+		/**
+		 * @return the id of the inserted row, -1 if none was
+		 */
+		long executeInsert();
+
+		/**
+		 * @return the number of rows changed
+		 */
+		int executeUpdateDelete();
+
+		void close();
+	}
+
+	/**
+	 * The result of a query, read forwards once.
+	 */
+	interface Rows {
+		boolean moveToNext();
+
+		long getLong(int column);
+
+		String getString(int column);
+
+		void close();
+	}
+
+	void execSQL(String sql);
+
+	Statement compileStatement(String sql);
+
+	Rows query(String sql, String[] args);
+
+	void beginTransaction();
+
+	void setTransactionSuccessful();
+
+	void endTransaction();
+}
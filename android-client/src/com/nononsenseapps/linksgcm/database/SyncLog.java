@@ -0,0 +1,107 @@
+package com.nononsenseapps.linksgcm.database;
+
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+/**
+ * Traces of the latest syncs, one row per sync, written by the sync adapter.
+ * Only the latest MAX_ROWS are kept, older ones are removed as new ones are
+ * added.
+ *
+ * Read only through ItemProvider at {@link #URI()}, or dumped with
+ * "adb shell dumpsys activity service
+ * com.nononsenseapps.linksgcm/.sync.SyncService" while the sync service
+ * is running.
+ *
+ * Times are in milliseconds. The phases run in parallel, so they can add up
+ * to more than the total.
+ */
+public class SyncLog {
+	public static final String TABLE_NAME = "SyncLog";
+
+	public static Uri URI() {
+		return Uri.withAppendedPath(
+				Uri.parse(LinksContract.SCHEME + LinksContract.AUTHORITY),
+				TABLE_NAME);
+	}
+
+	public static final int BASEURICODE = 0x2d4f6a1;
+
+	public static void addMatcherUris(UriMatcher sURIMatcher) {
+		sURIMatcher.addURI(LinksContract.AUTHORITY, TABLE_NAME, BASEURICODE);
+	}
+
+	public static final String TYPE_DIR = "vnd.android.cursor.dir/vnd.example."
+			+ TABLE_NAME;
+
+	/**
+	 * Number of syncs kept.
+	 */
+	public static final int MAX_ROWS = 50;
+
+	public static final String COL__ID = "_id";
+	// When the sync started, in milliseconds since the epoch
+	public static final String COL_STARTED = "started";
+	// upload, download, periodic, manual or full
+	public static final String COL_KIND = "kind";
+	// ok, cancelled, no token, http <status>, network or error
+	public static final String COL_RESULT = "result";
+	public static final String COL_TOTAL_MS = "total_ms";
+	public static final String COL_TOKEN_MS = "token_ms";
+	public static final String COL_UPLOAD_MS = "upload_ms";
+	public static final String COL_DOWNLOAD_MS = "download_ms";
+	public static final String COL_PARSE_MS = "parse_ms";
+	public static final String COL_APPLY_MS = "apply_ms";
+	public static final String COL_NOTIFY_MS = "notify_ms";
+	public static final String COL_REQUESTS = "requests";
+	// Bodies as sent over the wire, compressed if they were
+	public static final String COL_BYTES_SENT = "bytes_sent";
+	public static final String COL_BYTES_RECEIVED = "bytes_received";
+	public static final String COL_ROWS_UP = "rows_up";
+	public static final String COL_ROWS_DOWN = "rows_down";
+	public static final String COL_ROWS_APPLIED = "rows_applied";
+	public static final String COL_ROWS_SKIPPED = "rows_skipped";
+
+	public static final String[] FIELDS = { COL__ID, COL_STARTED, COL_KIND,
+			COL_RESULT, COL_TOTAL_MS, COL_TOKEN_MS, COL_UPLOAD_MS,
+			COL_DOWNLOAD_MS, COL_PARSE_MS, COL_APPLY_MS, COL_NOTIFY_MS,
+			COL_REQUESTS, COL_BYTES_SENT, COL_BYTES_RECEIVED, COL_ROWS_UP,
+			COL_ROWS_DOWN, COL_ROWS_APPLIED, COL_ROWS_SKIPPED };
+
+	// Latest first
+	public static final String SORT_LATEST = COL__ID + " DESC";
+
+	public static final String CREATE_TABLE =
+			"CREATE TABLE SyncLog"
+			+ "  (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+			+ "  started INTEGER NOT NULL,"
+			+ "  kind TEXT NOT NULL,"
+			+ "  result TEXT NOT NULL,"
+			+ "  total_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  token_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  upload_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  download_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  parse_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  apply_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  notify_ms INTEGER NOT NULL DEFAULT 0,"
+			+ "  requests INTEGER NOT NULL DEFAULT 0,"
+			+ "  bytes_sent INTEGER NOT NULL DEFAULT 0,"
+			+ "  bytes_received INTEGER NOT NULL DEFAULT 0,"
+			+ "  rows_up INTEGER NOT NULL DEFAULT 0,"
+			+ "  rows_down INTEGER NOT NULL DEFAULT 0,"
+			+ "  rows_applied INTEGER NOT NULL DEFAULT 0,"
+			+ "  rows_skipped INTEGER NOT NULL DEFAULT 0)";
+
+	/**
+	 * Adds a trace and removes those which no longer fit. Call in a
+	 * transaction.
+	 */
+	static void add(final SQLiteDatabase db, final ContentValues values) {
+		final long id = db.insert(TABLE_NAME, null, values);
+		// Ids are never reused, so the latest rows have the highest ids
+		db.execSQL("DELETE FROM SyncLog WHERE _id <= ?",
+				new Object[] { id - MAX_ROWS });
+	}
+}
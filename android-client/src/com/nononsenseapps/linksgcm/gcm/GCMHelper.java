@@ -2,6 +2,8 @@ package com.nononsenseapps.linksgcm.gcm;
 
 import java.io.IOException;
 
+import retrofit.RetrofitError;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
@@ -121,7 +123,24 @@ public class GCMHelper {
 		final LinksServer server = SyncHelper.getRESTAdapter();
 		final RegId item = new RegId();
 		item.regid = regid;
-		server.registerGCM(token, item);
+		try {
+			server.registerGCM(token, item);
+		}
+		catch (RetrofitError e) {
+			if (!SyncHelper.isUnauthorized(e)) {
+				throw e;
+			}
+			// The cached token could have been revoked. Try once more with
+			// a fresh one.
+			SyncHelper.invalidateAuthToken(context,
+					SyncHelper.getSavedAccountName(context), token);
+			final String newToken = SyncHelper.getAuthToken(context,
+					SyncHelper.getSavedAccountName(context));
+			if (newToken == null) {
+				return false;
+			}
+			server.registerGCM(newToken, item);
+		}
 
 		return true;
 	}
@@ -0,0 +1,170 @@
+package com.nononsenseapps.linksgcm.gcm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import com.nononsenseapps.linksgcm.database.DatabaseHandler;
+import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.sync.SyncHelper;
+
+/**
+ * Collects pushed links so a burst of messages is written in a single
+ * transaction.
+ *
+ * The first link added starts a window of WINDOW_MS. When it has passed, an
+ * alarm wakes the device and everything collected is written at once. If
+ * MAX_SIZE links are collected before that, they are written right away.
+ * Only the latest revision per link is kept. Tickles, which only say that
+ * something changed, are collected the same way and result in a single
+ * download sync.
+ *
+ * The inbox lives in memory. A preference records that a flush is pending,
+ * so if the process dies before it, the alarm finds the inbox empty and
+ * requests a download sync instead of the lost links.
+ */
+public class GCMInbox {
+
+	// How long links are collected, counted from the first one
+	static final long WINDOW_MS = 2000;
+	// Flush right away when this many links are waiting
+	static final int MAX_SIZE = 50;
+	// Set while links or a tickle wait for the alarm
+	private static final String KEY_PENDING = "gcm_inbox_pending";
+
+	// Keyed by sha
+	private static final Map<String, LinkItem> links = new LinkedHashMap<String, LinkItem>();
+	// Guarded by links
+	private static boolean downloadRequested = false;
+
+	/**
+	 * Adds a pushed link. Schedules a flush if this is the first one.
+	 *
+	 * @return true if the inbox is full and should be flushed now
+	 */
+	public static boolean add(final Context context, final LinkItem link) {
+		final boolean first;
+		final int size;
+		synchronized (links) {
+			first = isEmpty();
+			// Reinsert so the order is that of the latest messages. GCM
+			// doesn't keep the order, so a message for an older revision
+			// is dropped.
+			final LinkItem previous = links.remove(link.sha);
+			if (previous != null && previous.rev > link.rev) {
+				links.put(link.sha, previous);
+			}
+			else {
+				links.put(link.sha, link);
+			}
+			size = links.size();
+		}
+
+		if (size >= MAX_SIZE) {
+			return true;
+		}
+		if (first) {
+			scheduleFlush(context);
+		}
+		return false;
+	}
+
+	/**
+	 * The server has changes which weren't pushed. A download sync is
+	 * requested on the next flush.
+	 */
+	public static void addTickle(final Context context) {
+		final boolean first;
+		synchronized (links) {
+			first = isEmpty();
+			downloadRequested = true;
+		}
+
+		if (first) {
+			scheduleFlush(context);
+		}
+	}
+
+	// Must hold links
+	private static boolean isEmpty() {
+		return links.isEmpty() && !downloadRequested;
+	}
+
+	/**
+	 * Writes all collected links in a single transaction, and requests a
+	 * download sync if a tickle was received.
+	 *
+	 * @return the number of links that were collected
+	 */
+	public static int flush(final Context context) {
+		final List<LinkItem> received;
+		final boolean download;
+		synchronized (links) {
+			received = new ArrayList<LinkItem>(links.values());
+			links.clear();
+			// Nothing left to flush. Done while holding the lock so an alarm
+			// scheduled by the next add isn't cancelled.
+			final boolean pending = setPending(context, false);
+			getAlarmManager(context).cancel(getFlushIntent(context));
+			// Pending but empty, the process died since the first add
+			download = downloadRequested
+					|| (pending && received.isEmpty());
+			downloadRequested = false;
+		}
+
+		if (!received.isEmpty()) {
+			// Skips links with local changes, and links already received
+			// through a sync
+			DatabaseHandler.getInstance(context).mergeRemote(received);
+		}
+		if (download) {
+			SyncHelper.requestDownloadSync(context);
+		}
+		return received.size();
+	}
+
+	/**
+	 * Stores whether a flush is pending.
+	 *
+	 * @return whether one was pending before
+	 */
+	private static boolean setPending(final Context context,
+			final boolean pending) {
+		final SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(context);
+		final boolean previous = prefs.getBoolean(KEY_PENDING, false);
+		if (previous != pending) {
+			// Committed, the process may die right after
+			prefs.edit().putBoolean(KEY_PENDING, pending).commit();
+		}
+		return previous;
+	}
+
+	private static void scheduleFlush(final Context context) {
+		setPending(context, true);
+		// Wakes the device, the receiver holds a wakelock for the flush
+		getAlarmManager(context).set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+				SystemClock.elapsedRealtime() + WINDOW_MS,
+				getFlushIntent(context));
+	}
+
+	private static AlarmManager getAlarmManager(final Context context) {
+		return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	private static PendingIntent getFlushIntent(final Context context) {
+		final Intent intent = new Intent(context, GCMInboxReceiver.class);
+		intent.setAction(GCMIntentService.ACTION_FLUSH);
+		return PendingIntent.getBroadcast(context, 0, intent,
+				PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+}
@@ -0,0 +1,23 @@
+package com.nononsenseapps.linksgcm.gcm;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * Receives the flush alarm of {@link GCMInbox}. Separate from GCMReceiver
+ * since that one only accepts broadcasts from GCM.
+ */
+public class GCMInboxReceiver extends WakefulBroadcastReceiver {
+	public GCMInboxReceiver() {
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		ComponentName comp = new ComponentName(context.getPackageName(),
+				GCMIntentService.class.getName());
+		// Keep the device awake until the flush is done
+		startWakefulService(context, (intent.setComponent(comp)));
+	}
+}
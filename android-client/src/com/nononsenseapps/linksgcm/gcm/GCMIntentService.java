@@ -1,8 +1,10 @@
 package com.nononsenseapps.linksgcm.gcm;
 
 import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.nononsenseapps.linksgcm.database.DatabaseHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
 import com.nononsenseapps.linksgcm.sync.SyncHelper;
 
 import android.app.IntentService;
@@ -18,12 +20,34 @@ import android.util.Log;
  * helper methods.
  */
 public class GCMIntentService extends IntentService {
+	/**
+	 * Writes the links collected in {@link GCMInbox}.
+	 */
+	public static final String ACTION_FLUSH = "com.nononsenseapps.linksgcm.gcm.FLUSH";
+	/**
+	 * Value of the type field of a message which only says that links
+	 * changed.
+	 */
+	static final String TYPE_TICKLE = "tickle";
+	/**
+	 * Value of the type field of a message with several links, as a JSON
+	 * list in its links field.
+	 */
+	static final String TYPE_LINKS = "links";
+
 	public GCMIntentService() {
 		super("GCMIntentService");
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
+		if (ACTION_FLUSH.equals(intent.getAction())) {
+			final int count = GCMInbox.flush(this);
+			Log.i("linksgcm", "Flushed " + count + " pushed links");
+			GCMInboxReceiver.completeWakefulIntent(intent);
+			return;
+		}
+
 		Bundle extras = intent.getExtras();
 		GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(this);
 		// The getMessageType() intent parameter must be the intent you received
@@ -39,22 +63,70 @@ public class GCMIntentService extends IntentService {
 			 */
 
 			// If it's a regular GCM message, do some work.
-			if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
-				// Write link to database
+			if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)
+					&& TYPE_TICKLE.equals(extras.getString("type"))) {
+				// Sent instead of the links when there are many changes.
+				// Download them after waiting for any more tickles.
+				GCMInbox.addTickle(this);
+				Log.i("linksgcm", "Received tickle");
+			}
+			else if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE
+					.equals(messageType)
+					&& TYPE_LINKS.equals(extras.getString("type"))) {
+				// Links changed together, collected like single ones
+				final LinkMSG[] msgs = parseLinks(extras.getString("links"));
+				if (msgs == null) {
+					// Download them instead
+					GCMInbox.addTickle(this);
+				}
+				else {
+					boolean full = false;
+					for (LinkMSG msg : msgs) {
+						final LinkItem link = msg.toDBItem();
+						link.synced = 1;
+						full |= GCMInbox.add(this, link);
+					}
+					if (full) {
+						GCMInbox.flush(this);
+					}
+				}
+				Log.i("linksgcm", "Received "
+						+ (msgs == null ? "unreadable" : msgs.length)
+						+ " links");
+			}
+			else if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE
+					.equals(messageType)) {
+				// Collect the link, it is written together with any others
+				// arriving shortly
 				final LinkItem link = new LinkItem();
 				link.sha = extras.getString("sha");
-				link.timestamp = extras.getString("timestamp");
 				link.url = extras.getString("url");
 				link.synced = 1;
 				if (Boolean.parseBoolean(extras.getString("deleted", "false"))) {
 					link.deleted = 1;
 				}
-
-				if (link.deleted == 0) {
-					DatabaseHandler.getInstance(this).putItem(link);
+				// Data arrives as strings. Missing from older servers.
+				try {
+					link.rev = Long.parseLong(extras.getString("rev", "0"));
 				}
-				else {
-					DatabaseHandler.getInstance(this).deleteItem(link);
+				catch (NumberFormatException e) {
+					link.rev = 0;
+				}
+				try {
+					link.timestamp = Long.parseLong(extras.getString(
+							"timestampMs", "0"));
+				}
+				catch (NumberFormatException e) {
+					link.timestamp = 0;
+				}
+				if (link.timestamp == 0) {
+					link.timestamp = LinkItem.parseTimestamp(extras
+							.getString("timestamp"));
+				}
+
+				if (GCMInbox.add(this, link)) {
+					// Full, don't wait for the alarm
+					GCMInbox.flush(this);
 				}
 
 				Log.i("linksgcm", "Received: " + extras.toString()
@@ -70,4 +142,19 @@ public class GCMIntentService extends IntentService {
 		// Release the wake lock provided by the WakefulBroadcastReceiver.
 		GCMReceiver.completeWakefulIntent(intent);
 	}
+
+	/**
+	 * The links of a TYPE_LINKS message, or null if they can't be read.
+	 */
+	private static LinkMSG[] parseLinks(final String json) {
+		if (json == null) {
+			return null;
+		}
+		try {
+			return new Gson().fromJson(json, LinkMSG[].class);
+		}
+		catch (JsonParseException e) {
+			return null;
+		}
+	}
 }
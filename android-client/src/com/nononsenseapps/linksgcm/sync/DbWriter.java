@@ -0,0 +1,168 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs database writes of a sync on a thread of its own, in the order they
+ * were queued, so the network threads don't wait for the database.
+ *
+ * The queue is bounded. A producer which gets too far ahead waits for the
+ * writer to catch up, so memory use stays bounded.
+ */
+class DbWriter {
+
+	/**
+	 * Thrown when the sync is cancelled while waiting for the writer.
+	 */
+	static class CancelledException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CancelledException() {
+			super("Sync was cancelled");
+		}
+	}
+
+	// Queued after the last write
+	private static final Runnable STOP = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private final BlockingQueue<Runnable> queue;
+	private final Thread thread;
+	// The first failure, a RuntimeException or an Error
+	private volatile Throwable error = null;
+	private volatile boolean closed = false;
+	// Written by the writer thread only
+	private volatile long busyNanos = 0;
+
+	DbWriter(final int capacity) {
+		queue = new ArrayBlockingQueue<Runnable>(capacity);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "LinksDbWriter");
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Queues a write. Waits if the queue is full. Safe to call from any
+	 * thread.
+	 *
+	 * @throws RuntimeException
+	 *             the exception of an earlier write, if one failed
+	 * @throws Error
+	 *             likewise, if an earlier write threw an Error
+	 */
+	void execute(final Runnable write) {
+		checkError();
+		if (closed) {
+			throw new CancelledException();
+		}
+		try {
+			while (!queue.offer(write, 100, TimeUnit.MILLISECONDS)) {
+				checkError();
+				if (closed) {
+					throw new CancelledException();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancelledException();
+		}
+	}
+
+	/**
+	 * Waits until everything queued has been written.
+	 *
+	 * @throws RuntimeException
+	 *             the exception of a write, if one failed
+	 * @throws Error
+	 *             likewise, if a write threw an Error
+	 */
+	void finish() {
+		execute(STOP);
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancelledException();
+		}
+		checkError();
+	}
+
+	/**
+	 * Stops the writer. Writes still queued are dropped, later ones are
+	 * refused with a CancelledException.
+	 */
+	void close() {
+		closed = true;
+		thread.interrupt();
+	}
+
+	/**
+	 * Time spent running writes, in nanoseconds. Complete once finish has
+	 * returned.
+	 */
+	long getBusyTime() {
+		return busyNanos;
+	}
+
+	private void checkError() {
+		final Throwable e = error;
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		if (e != null) {
+			// Checked, thrown past the compiler
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void loop() {
+		try {
+			while (true) {
+				final Runnable write = queue.take();
+				if (write == STOP) {
+					return;
+				}
+				// After a failure, keep emptying the queue so producers
+				// don't block, but write nothing more
+				if (error == null) {
+					final long start = System.nanoTime();
+					try {
+						write.run();
+					}
+					catch (Throwable e) {
+						// Errors too, or the thread dies and producers
+						// wait for it forever
+						error = e;
+					}
+					busyNanos += System.nanoTime() - start;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Closed
+		}
+		catch (Throwable e) {
+			// Not from a write, the writer can't go on
+			if (error == null) {
+				error = e;
+			}
+		}
+	}
+}
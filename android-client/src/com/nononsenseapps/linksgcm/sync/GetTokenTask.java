@@ -74,10 +74,8 @@ public class GetTokenTask extends AsyncTask<Void, Void, String> {
 			ContentResolver.setIsSyncable(account, ItemProvider.AUTHORITY, 1);
 			ContentResolver.setSyncAutomatically(account,
 					ItemProvider.AUTHORITY, true);
-			// Set sync frequency
-			// Set periodic syncing to once every day
-			ContentResolver.addPeriodicSync(account, ItemProvider.AUTHORITY,
-					new Bundle(), 60 * 60 * 24);
+			// Set sync frequency, adapted to how well push works
+			SyncScheduler.schedulePeriodic(mActivity, account);
 
 			// And trigger an immediate sync
 			// Don't start a new sync if one is already going
@@ -0,0 +1,52 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Compresses request bodies with gzip before handing them to another
+ * client. Small bodies are sent as they are, as compressing them gains
+ * nothing.
+ */
+public class GzipClient implements Client {
+
+	// Bodies smaller than this, in bytes, are not compressed
+	static final int MIN_SIZE = 1024;
+
+	private final Client client;
+
+	public GzipClient(final Client client) {
+		this.client = client;
+	}
+
+	@Override
+	public Response execute(final Request request) throws IOException {
+		final TypedOutput body = request.getBody();
+		if (body == null || (body.length() >= 0 && body.length() < MIN_SIZE)) {
+			return client.execute(request);
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				body.length() > 0 ? (int) body.length() / 4 : 256);
+		final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		body.writeTo(gzip);
+		gzip.close();
+
+		final List<Header> headers = new ArrayList<Header>(
+				request.getHeaders());
+		headers.add(new Header("Content-Encoding", "gzip"));
+		return client.execute(new Request(request.getMethod(), request
+				.getUrl(), headers, new TypedByteArray(body.mimeType(), bytes
+				.toByteArray())));
+	}
+}
@@ -22,8 +22,37 @@ public interface LinksServer {
 	// Server on App Engine will have a Base URL like this
 	//public static final String API_URL = "http://192.168.1.17:8080/_ah/api/links/v1";
 
+	/**
+	 * Compress request bodies. Server-app accepts them, Endpoints on App
+	 * Engine does not, so set it to false for that server.
+	 */
+	public static final boolean GZIP_REQUESTS = true;
+
+	/**
+	 * Timeouts of requests, in seconds
+	 */
+	public static final int CONNECT_TIMEOUT = 15;
+	public static final int READ_TIMEOUT = 30;
+
+	/**
+	 * A page of links. nextPageToken points after the last link in the page
+	 * and can be passed back to continue from there, now or in a later
+	 * sync. hasMore is set if there are more links to fetch right away.
+	 * latestTimestampMs is latestTimestamp in milliseconds, from servers
+	 * which store timestamps as integers.
+	 * latestRev is set by servers with revisions, if revMin was given. Pass
+	 * it as revMin to get only what changed after this page.
+	 * resyncRequired is set, without any links, if deletions since the
+	 * given cursor have been purged on the server. Everything has to be
+	 * listed again, without a cursor.
+	 */
 	public static class LinkItems {
 		String latestTimestamp;
+		Long latestTimestampMs;
+		Long latestRev;
+		boolean resyncRequired;
+		String nextPageToken;
+		boolean hasMore;
 		List<LinkMSG> links;
 	}
 	
@@ -32,24 +61,43 @@ public interface LinksServer {
 	 * But to make it compatible with both servers, I chose
 	 * to make this converter class to handle the deleted field.
 	 * Converting the integer to boolean for the JSON message.
+	 * 
+	 * rev is the server revision of the link. For uploads it is the
+	 * revision the change is based on, which the server uses to resolve
+	 * conflicts. Left out if not known, the change then always wins.
 	 */
 	public static class LinkMSG {
 		String url;
 		String sha;
 		boolean deleted;
+		// Milliseconds since the epoch. Servers without it only send the
+		// timestamp string.
+		Long timestampMs;
 		String timestamp;
+		Long rev;
 		
 		public LinkMSG(LinkItem link) {
 			url = link.url;
 			sha = link.sha;
 			deleted = (link.deleted == 1);
+			if (link.rev > 0) {
+				rev = link.rev;
+			}
 		}
 		
 		public LinkItem toDBItem() {
 			final LinkItem item = new LinkItem();
 			item.url = url;
 			item.sha = sha;
-			item.timestamp = timestamp;
+			if (timestampMs != null) {
+				item.timestamp = timestampMs;
+			}
+			else {
+				item.timestamp = LinkItem.parseTimestamp(timestamp);
+			}
+			if (rev != null) {
+				item.rev = rev;
+			}
 			if (deleted) {
 				item.deleted = 1;
 			}
@@ -57,6 +105,18 @@ public interface LinksServer {
 		}
 	}
 
+	/**
+	 * A batch of uploads. Links with deleted set are deletes,
+	 * everything else is an add.
+	 */
+	public static class LinkBatch {
+		List<LinkMSG> links;
+
+		public LinkBatch(List<LinkMSG> links) {
+			this.links = links;
+		}
+	}
+
 	public static class RegId {
 		public String regid;
 	}
@@ -68,7 +128,10 @@ public interface LinksServer {
 	@GET("/links")
 	LinkItems listLinks(@Header("Authorization") String token,
 			@Query("showDeleted") String showDeleted,
-			@Query("timestampMin") String timestampMin);
+			@Query("timestampMin") String timestampMin,
+			@Query("pageToken") String pageToken,
+			@Query("pageSize") Integer pageSize,
+			@Query("revMin") Long revMin);
 
 	@GET("/links/{sha}")
 	LinkMSG getLink(@Header("Authorization") String token, @Path("sha") String sha);
@@ -81,6 +144,10 @@ public interface LinksServer {
 	LinkMSG addLink(@Header("Authorization") String token, @Body LinkMSG item,
 			@Query("regid") String regid);
 
+	@POST("/links/batch")
+	LinkItems batchLinks(@Header("Authorization") String token,
+			@Body LinkBatch batch, @Query("regid") String regid);
+
 	@POST("/registergcm")
 	Dummy registerGCM(@Header("Authorization") String token, @Body RegId regid);
 }
@@ -0,0 +1,261 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.RetrofitError;
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+import retrofit.mime.TypedInput;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkItems;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
+
+/**
+ * Streaming version of {@link LinksServer#listLinks}. The response is never
+ * held in memory as a whole. Instead it is parsed with a JsonReader and
+ * every link is handed to a {@link LinkHandler} as soon as it has been read.
+ *
+ * Errors are reported as {@link RetrofitError}s, same as for LinksServer.
+ */
+public class LinksStream {
+
+	/**
+	 * Receives the links one by one as they are parsed.
+	 */
+	public interface LinkHandler {
+		void onLink(LinkMSG link);
+	}
+
+	private static final Gson gson = new Gson();
+
+	private final String apiUrl;
+	private final Client client;
+	// Totals of all requests made by this stream, in nanoseconds
+	private long responseNanos = 0;
+	private long parseNanos = 0;
+
+	/**
+	 * @param apiUrl
+	 *            base url of the server, like LinksServer.API_URL
+	 */
+	public LinksStream(final String apiUrl, final Client client) {
+		this.apiUrl = apiUrl;
+		this.client = client;
+	}
+
+	/**
+	 * Time spent waiting for responses, from sending the request until the
+	 * status arrived, in nanoseconds.
+	 */
+	public long getResponseTime() {
+		return responseNanos;
+	}
+
+	/**
+	 * Time spent reading and parsing response bodies, in nanoseconds. The
+	 * body is parsed while it arrives, so this includes its transfer, and
+	 * the time spent in the handler.
+	 */
+	public long getParseTime() {
+		return parseNanos;
+	}
+
+	/**
+	 * Same parameters as {@link LinksServer#listLinks}.
+	 *
+	 * @return the metadata of the response. The links field is always null,
+	 *         the links were given to the handler instead.
+	 */
+	public LinkItems listLinks(final String token, final String showDeleted,
+			final String timestampMin, final String pageToken,
+			final Integer pageSize, final Long revMin,
+			final LinkHandler handler) {
+		final StringBuilder url = new StringBuilder(apiUrl)
+				.append("/links?showDeleted=").append(encode(showDeleted));
+		if (timestampMin != null) {
+			url.append("&timestampMin=").append(encode(timestampMin));
+		}
+		if (pageToken != null) {
+			url.append("&pageToken=").append(encode(pageToken));
+		}
+		if (pageSize != null) {
+			url.append("&pageSize=").append(pageSize);
+		}
+		if (revMin != null) {
+			url.append("&revMin=").append(revMin);
+		}
+
+		final List<Header> headers = new ArrayList<Header>();
+		headers.add(new Header("Authorization", token));
+		final Request request = new Request("GET", url.toString(), headers,
+				null);
+
+		final Response response;
+		final long start = System.nanoTime();
+		try {
+			response = client.execute(request);
+		}
+		catch (IOException e) {
+			throw RetrofitError.networkError(request.getUrl(), e);
+		}
+		finally {
+			responseNanos += System.nanoTime() - start;
+		}
+
+		if (response.getStatus() < 200 || response.getStatus() >= 300) {
+			throw RetrofitError.httpError(request.getUrl(),
+					readErrorBody(response), null, LinkItems.class);
+		}
+		if (response.getBody() == null) {
+			// No content, so nothing changed
+			return new LinkItems();
+		}
+
+		JsonReader reader = null;
+		final long parseStart = System.nanoTime();
+		try {
+			reader = new JsonReader(new InputStreamReader(response.getBody()
+					.in(), "UTF-8"));
+			return parse(reader, handler);
+		}
+		catch (IOException e) {
+			throw RetrofitError.networkError(request.getUrl(), e);
+		}
+		catch (JsonParseException e) {
+			throw RetrofitError.unexpectedError(request.getUrl(), e);
+		}
+		catch (IllegalStateException e) {
+			// Thrown by JsonReader when the structure is not what we expect
+			throw RetrofitError.unexpectedError(request.getUrl(), e);
+		}
+		catch (NumberFormatException e) {
+			// Thrown by JsonReader for a revision or timestamp which isn't one
+			throw RetrofitError.unexpectedError(request.getUrl(), e);
+		}
+		finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				}
+				catch (IOException e) {
+					// Nothing more to read anyway
+				}
+			}
+			parseNanos += System.nanoTime() - parseStart;
+		}
+	}
+
+	/**
+	 * Parses a LinkItems object. Fields can come in any order.
+	 */
+	static LinkItems parse(final JsonReader reader, final LinkHandler handler)
+			throws IOException {
+		final LinkItems result = new LinkItems();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			final String name = reader.nextName();
+			if ("links".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					final LinkMSG msg = gson.fromJson(reader, LinkMSG.class);
+					handler.onLink(msg);
+				}
+				reader.endArray();
+			}
+			else if ("latestTimestamp".equals(name)
+					&& reader.peek() == JsonToken.STRING) {
+				result.latestTimestamp = reader.nextString();
+			}
+			else if ("latestTimestampMs".equals(name)
+					&& (reader.peek() == JsonToken.NUMBER
+						|| reader.peek() == JsonToken.STRING)) {
+				result.latestTimestampMs = reader.nextLong();
+			}
+			else if ("latestRev".equals(name)
+					&& (reader.peek() == JsonToken.NUMBER
+						|| reader.peek() == JsonToken.STRING)) {
+				// Endpoints sends 64 bit integers as strings
+				result.latestRev = reader.nextLong();
+			}
+			else if ("nextPageToken".equals(name)
+					&& reader.peek() == JsonToken.STRING) {
+				result.nextPageToken = reader.nextString();
+			}
+			else if ("resyncRequired".equals(name)
+					&& reader.peek() == JsonToken.BOOLEAN) {
+				result.resyncRequired = reader.nextBoolean();
+			}
+			else if ("hasMore".equals(name)
+					&& reader.peek() == JsonToken.BOOLEAN) {
+				result.hasMore = reader.nextBoolean();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return result;
+	}
+
+	/**
+	 * Reads the body of an error response into memory, like Retrofit does,
+	 * so the connection is released but the error can still be read.
+	 */
+	private static Response readErrorBody(final Response response) {
+		final TypedInput body = response.getBody();
+		if (body == null) {
+			return response;
+		}
+		TypedInput bytes = null;
+		InputStream in = null;
+		try {
+			in = body.in();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			bytes = new TypedByteArray(body.mimeType(), out.toByteArray());
+		}
+		catch (IOException e) {
+			// The status is what matters
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+					// Nothing more to read anyway
+				}
+			}
+		}
+		return new Response(response.getStatus(), response.getReason(),
+				response.getHeaders(), bytes);
+	}
+
+	private static String encode(final String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+}
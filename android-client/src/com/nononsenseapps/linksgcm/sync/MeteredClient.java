@@ -0,0 +1,203 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Counts the requests made through another client, and the bytes of their
+ * bodies as they go over the wire. Request bodies are counted as written,
+ * after any compression by GzipClient. Response bodies are counted before
+ * they are decompressed: gzip is asked for here, which turns off the
+ * transparent decompression of OkHttp, and gzipped bodies are decompressed
+ * once counted. Headers are not counted.
+ *
+ * The counters only grow. Take the difference between two readings to get
+ * what was sent in between.
+ */
+public class MeteredClient implements Client {
+
+	private final Client client;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	public MeteredClient(final Client client) {
+		this.client = client;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public Response execute(final Request request) throws IOException {
+		requests.incrementAndGet();
+		// Unless the caller decompresses responses itself
+		final boolean decompress = find(request.getHeaders(),
+				"Accept-Encoding") == null;
+		final List<Header> headers = new ArrayList<Header>(
+				request.getHeaders());
+		if (decompress) {
+			headers.add(new Header("Accept-Encoding", "gzip"));
+		}
+		final Request metered = new Request(request.getMethod(),
+				request.getUrl(), headers, request.getBody() == null ? null
+						: new MeteredOutput(request.getBody()));
+
+		final Response response = client.execute(metered);
+		if (response.getBody() == null) {
+			return response;
+		}
+		final boolean gzipped = decompress
+				&& "gzip".equalsIgnoreCase(find(response.getHeaders(),
+						"Content-Encoding"));
+		if (!gzipped) {
+			return new Response(response.getStatus(), response.getReason(),
+					response.getHeaders(), new MeteredInput(
+							response.getBody(), false));
+		}
+		// As OkHttp does, the headers describe the compressed body
+		final List<Header> decompressed = new ArrayList<Header>();
+		for (Header header : response.getHeaders()) {
+			if (!"Content-Encoding".equalsIgnoreCase(header.getName())
+					&& !"Content-Length".equalsIgnoreCase(header.getName())) {
+				decompressed.add(header);
+			}
+		}
+		return new Response(response.getStatus(), response.getReason(),
+				decompressed, new MeteredInput(response.getBody(), true));
+	}
+
+	/**
+	 * The value of the first header with the name, or null.
+	 */
+	private static String find(final List<Header> headers, final String name) {
+		for (Header header : headers) {
+			if (name.equalsIgnoreCase(header.getName())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	private class MeteredOutput implements TypedOutput {
+		private final TypedOutput body;
+
+		MeteredOutput(final TypedOutput body) {
+			this.body = body;
+		}
+
+		@Override
+		public String fileName() {
+			return body.fileName();
+		}
+
+		@Override
+		public String mimeType() {
+			return body.mimeType();
+		}
+
+		@Override
+		public long length() {
+			return body.length();
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			body.writeTo(new FilterOutputStream(out) {
+				@Override
+				public void write(final int b) throws IOException {
+					out.write(b);
+					bytesSent.incrementAndGet();
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len)
+						throws IOException {
+					// FilterOutputStream would write a byte at a time
+					out.write(b, off, len);
+					bytesSent.addAndGet(len);
+				}
+			});
+		}
+	}
+
+	private class MeteredInput implements TypedInput {
+		private final TypedInput body;
+		private final boolean gzipped;
+
+		MeteredInput(final TypedInput body, final boolean gzipped) {
+			this.body = body;
+			this.gzipped = gzipped;
+		}
+
+		@Override
+		public String mimeType() {
+			return body.mimeType();
+		}
+
+		@Override
+		public long length() {
+			// Unknown until decompressed
+			return gzipped ? -1 : body.length();
+		}
+
+		@Override
+		public InputStream in() throws IOException {
+			final InputStream counted = count(body.in());
+			return gzipped ? new GZIPInputStream(counted) : counted;
+		}
+
+		private InputStream count(final InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if (b >= 0) {
+						bytesReceived.incrementAndGet();
+					}
+					return b;
+				}
+
+				@Override
+				public int read(final byte[] b, final int off, final int len)
+						throws IOException {
+					final int read = super.read(b, off, len);
+					if (read > 0) {
+						bytesReceived.addAndGet(read);
+					}
+					return read;
+				}
+
+				@Override
+				public long skip(final long n) throws IOException {
+					final long skipped = super.skip(n);
+					bytesReceived.addAndGet(skipped);
+					return skipped;
+				}
+			};
+		}
+	}
+}
@@ -1,10 +1,23 @@
 package com.nononsenseapps.linksgcm.sync;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import retrofit.RetrofitError;
 
 import com.nononsenseapps.linksgcm.database.DatabaseHandler;
 import com.nononsenseapps.linksgcm.database.LinkItem;
+import com.nononsenseapps.linksgcm.database.LinkOutbox;
+import com.nononsenseapps.linksgcm.database.NotificationBatcher;
 import com.nononsenseapps.linksgcm.gcm.GCMHelper;
+import com.nononsenseapps.linksgcm.sync.LinksServer.LinkBatch;
 import com.nononsenseapps.linksgcm.sync.LinksServer.LinkItems;
 import com.nononsenseapps.linksgcm.sync.LinksServer.LinkMSG;
 
@@ -13,6 +26,7 @@ import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -22,6 +36,12 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
 	private static final String TAG = "LinksSyncAdapter";
 	private static final String KEY_LASTSYNC = "key_lastsync";
+	private static final String KEY_SYNCTOKEN = "key_synctoken";
+	private static final String KEY_LASTREV = "key_lastrev";
+	// Set while downloading everything after the server purged deletions
+	private static final String KEY_RESYNC = "key_resync";
+	// Chunks and page commits waiting for the database writer
+	private static final int WRITE_QUEUE_SIZE = 4;
 
 	public SyncAdapter(Context context, boolean autoInitialize) {
 		super(context, autoInitialize);
@@ -35,16 +55,34 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 	@Override
 	public void onPerformSync(Account account, Bundle extras, String authority,
 			ContentProviderClient provider, SyncResult syncResult) {
+		// Recorded whatever happens, so failures show up too
+		final SyncTrace trace = new SyncTrace(getContext(), extras);
+		try {
+			performSync(account, extras, syncResult, trace);
+		}
+		finally {
+			trace.record();
+		}
+	}
+
+	private void performSync(final Account account, final Bundle extras,
+			final SyncResult syncResult, final SyncTrace trace) {
 		try {
 			// Need to get an access token first
+			long start = System.nanoTime();
 			final String token = SyncHelper.getAuthToken(getContext(),
 					account.name);
+			trace.end(SyncTrace.PHASE_TOKEN, start);
 
 			if (token == null) {
 				Log.e(TAG, "Token was null. Aborting sync");
+				trace.setResult("no token");
 				// Sync is rescheduled by SyncHelper
 				return;
 			}
+			Log.d(TAG, "Token cache hits: "
+					+ SyncHelper.getTokenCache().getHits() + ", misses: "
+					+ SyncHelper.getTokenCache().getMisses());
 
 			// Just to make sure. Can happen if sync happens in background first
 			// time
@@ -54,67 +92,39 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 						.commit();
 			}
 			// token should be good. Transmit
-			
-			// Register for GCM if we need to
-			GCMHelper.registerIfNotAlreadyDone(getContext());
-			
-			final LinksServer server = SyncHelper.getRESTAdapter();
-			DatabaseHandler db = DatabaseHandler.getInstance(getContext());
-
-			// Upload stuff
-			for (LinkItem item : db.getAllLinkItems(LinkItem.COL_SYNCED
-					+ " IS 0 OR " + LinkItem.COL_DELETED + " IS 1", null, null)) {
-				if (item.deleted != 0) {
-					// Delete the item
-					server.deleteLink(token, item.sha, GCMHelper.getSavedRegistrationId(getContext()));
-					syncResult.stats.numDeletes++;
-					db.deleteItem(item);
-				}
-				else {
-					server.addLink(token, new LinkMSG(item), GCMHelper.getSavedRegistrationId(getContext()));
-					syncResult.stats.numInserts++;
-					item.synced = 1;
-					db.putItem(item);
-				}
+			try {
+				sync(extras, token, syncResult, trace);
 			}
-
-			// Download stuff - but only if this is not an upload-only sync
-			if (!extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, false)) {
-				// Check if we synced before
-				final String lastSync = PreferenceManager
-						.getDefaultSharedPreferences(getContext()).getString(
-								KEY_LASTSYNC, null);
-
-				final LinkItems items;
-				if (lastSync != null && !lastSync.isEmpty()) {
-					items = server.listLinks(token, "true", lastSync);
+			catch (RetrofitError e) {
+				if (!SyncHelper.isUnauthorized(e)) {
+					throw e;
 				}
-				else {
-					items = server.listLinks(token, "false", null);
-				}
-
-				if (items != null && items.links != null) {
-					for (LinkMSG msg : items.links) {
-						Log.d(TAG, "got url:" + msg.url + ", sha: " + msg.sha);
-						final LinkItem item = msg.toDBItem();
-						if (msg.deleted) {
-							Log.d(TAG, "Deleting:" + msg.url);
-							db.deleteItem(item);
-						}
-						else {
-							Log.d(TAG, "Adding url:" + item.url);
-							item.synced = 1;
-							db.putItem(item);
-						}
-					}
+				// The cached token could have been revoked. Try once more
+				// with a fresh one.
+				SyncHelper.invalidateAuthToken(getContext(), account.name,
+						token);
+				start = System.nanoTime();
+				final String newToken = SyncHelper.getAuthToken(getContext(),
+						account.name);
+				trace.end(SyncTrace.PHASE_TOKEN, start);
+				if (newToken == null) {
+					throw e;
 				}
+				sync(extras, newToken, syncResult, trace);
+			}
 
-				// Save sync timestamp
-				PreferenceManager.getDefaultSharedPreferences(getContext())
-						.edit().putString(KEY_LASTSYNC, items.latestTimestamp)
-						.commit();
+			trace.setResult("ok");
+			SyncScheduler.onSuccess(getContext());
+			if (extras.getBoolean(SyncScheduler.KEY_PERIODIC, false)) {
+				// Whatever it downloaded, push didn't deliver
+				SyncScheduler.onPeriodicSync(getContext(), account,
+						syncResult.stats.numEntries);
 			}
 		}
+		catch (DbWriter.CancelledException e) {
+			Log.d(TAG, "Sync cancelled");
+			trace.setResult("cancelled");
+		}
 		catch (RetrofitError e) {
 			Log.d(TAG, "" + e);
 			final int status;
@@ -126,6 +136,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			else {
 				status = 999;
 			}
+			trace.setResult(status == 999 ? "network" : "http " + status);
 			// An HTTP error was encountered.
 			switch (status) {
 			case 401: // Unauthorized
@@ -138,8 +149,404 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 				break;
 			default: // Default is to consider it a networking problem
 				syncResult.stats.numIoExceptions++;
+				// Hold back further syncs, as long as the server asks for
+				syncResult.delayUntil = SyncScheduler.onFailure(getContext(),
+						e);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Uploads pending changes and downloads new ones.
+	 * 
+	 * The upload runs on a thread of its own while the download runs on this
+	 * one, and all database writes are made by a DbWriter. So a sync takes
+	 * about as long as the slower of the two, and the next page is fetched
+	 * while the last one is being written.
+	 * 
+	 * If a downloaded link has local changes which are not yet uploaded, or
+	 * were uploaded during this sync, the local version wins. The server
+	 * has, or will get, the local version, and sends it back on the next
+	 * sync. Conflicting changes from several devices are resolved by the
+	 * server when they are uploaded, using the revision each change is
+	 * based on, and the result is applied from the upload's response.
+	 */
+	private void sync(final Bundle extras, final String token,
+			final SyncResult syncResult, final SyncTrace trace) {
+		// Register for GCM if we need to
+		GCMHelper.registerIfNotAlreadyDone(getContext());
+
+		final DatabaseHandler db = DatabaseHandler.getInstance(getContext());
+		final DbWriter writer = new DbWriter(WRITE_QUEUE_SIZE);
+		ExecutorService uploader = null;
+		writer.start();
+		try {
+			// Upload stuff - but only if this is not a download-only sync
+			final List<LinkOutbox.Entry> pending;
+			if (!extras.getBoolean(SyncHelper.KEY_DOWNLOAD_ONLY, false)) {
+				pending = db.getOutbox();
+			}
+			else {
+				pending = new ArrayList<LinkOutbox.Entry>();
+			}
+			final Set<String> uploading = new HashSet<String>();
+			for (LinkOutbox.Entry entry : pending) {
+				uploading.add(entry.link.sha);
+			}
+
+			Future<?> upload = null;
+			if (!pending.isEmpty()) {
+				final int batchSize = Math.max(1, extras.getInt(
+						SyncHelper.KEY_UPLOAD_BATCH_SIZE,
+						SyncHelper.UPLOAD_BATCH_SIZE));
+				uploader = Executors.newSingleThreadExecutor();
+				upload = uploader.submit(new Runnable() {
+					@Override
+					public void run() {
+						final long start = System.nanoTime();
+						try {
+							upload(token, pending, batchSize, db, writer,
+									syncResult, trace);
+						}
+						finally {
+							trace.end(SyncTrace.PHASE_UPLOAD, start);
+						}
+					}
+				});
+			}
+
+			// Download stuff - but only if this is not an upload-only sync
+			if (!extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, false)) {
+				final LinksStream stream = SyncHelper.getLinksStream();
+				// Links are applied in chunks while the response is read
+				final DownloadApplier applier = new DownloadApplier(db,
+						writer, uploading, syncResult, trace,
+						SyncHelper.DOWNLOAD_CHUNK_SIZE);
+				try {
+					download(token, stream, applier, db, writer, syncResult,
+							trace);
+				}
+				finally {
+					trace.add(SyncTrace.PHASE_DOWNLOAD,
+							stream.getResponseTime());
+					trace.add(SyncTrace.PHASE_PARSE, stream.getParseTime()
+							- applier.getBlockedTime());
+				}
+			}
+
+			if (upload != null) {
+				waitFor(upload);
+			}
+			// Everything is in the database
+			writer.finish();
+			// Show it right away
+			NotificationBatcher.getInstance(getContext()).flush();
+		}
+		finally {
+			// Stops the upload if the download failed, before it posts
+			// more writes
+			if (uploader != null) {
+				uploader.shutdownNow();
+			}
+			trace.add(SyncTrace.PHASE_APPLY, writer.getBusyTime());
+			writer.close();
+		}
+	}
+
+	/**
+	 * Sends the outbox to the server a batch at a time, in order. Runs on
+	 * the upload thread.
+	 */
+	private void upload(final String token,
+			final List<LinkOutbox.Entry> pending,
+			final int batchSize, final DatabaseHandler db,
+			final DbWriter writer, final SyncResult syncResult,
+			final SyncTrace trace) {
+		final LinksServer server = SyncHelper.getRESTAdapter();
+		final String regid = GCMHelper.getSavedRegistrationId(getContext());
+		for (int start = 0; start < pending.size(); start += batchSize) {
+			final List<LinkOutbox.Entry> chunk = pending.subList(start,
+					Math.min(start + batchSize, pending.size()));
+			final List<LinkMSG> msgs = new ArrayList<LinkMSG>(chunk.size());
+			final List<LinkItem> stored = new ArrayList<LinkItem>();
+			int deletes = 0;
+			for (LinkOutbox.Entry entry : chunk) {
+				msgs.add(new LinkMSG(entry.link));
+				if (entry.link.deleted != 0) {
+					deletes++;
+				}
+			}
+			final int numDeletes = deletes;
+
+			final LinkItems result = server.batchLinks(token, new LinkBatch(
+					msgs), regid);
+			// The links as the server resolved them. Can differ from what
+			// was sent if another device changed them too.
+			if (result != null && result.links != null) {
+				for (LinkMSG msg : result.links) {
+					stored.add(msg.toDBItem());
+				}
+			}
+			// Results of the whole batch are written in one transaction
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					db.acknowledge(chunk);
+					db.mergeRemote(stored);
+					trace.count(SyncTrace.ROWS_UP, chunk.size());
+					synchronized (syncResult) {
+						syncResult.stats.numInserts += chunk.size()
+								- numDeletes;
+						syncResult.stats.numDeletes += numDeletes;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Downloads what changed on the server, a page at a time. Runs on the
+	 * sync thread.
+	 */
+	private void download(final String token, final LinksStream stream,
+			final DownloadApplier applier, final DatabaseHandler db,
+			final DbWriter writer, final SyncResult syncResult,
+			final SyncTrace trace) {
+		// Check if we synced before. The revision is the latest change
+		// already downloaded, only later changes are fetched. Servers
+		// without revisions use the page token, where the last committed
+		// page ended, and older servers still only know about the
+		// timestamp. Without a revision, everything is downloaded once
+		// to learn the revisions.
+		final SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(getContext());
+		String pageToken = prefs.getString(KEY_SYNCTOKEN, null);
+		String lastSync = prefs.getString(KEY_LASTSYNC, null);
+		long lastRev = prefs.getLong(KEY_LASTREV, 0);
+		boolean syncedBefore = lastRev > 0 || pageToken != null
+				|| (lastSync != null && !lastSync.isEmpty());
+
+		// A resync which was interrupted starts over
+		boolean resync = prefs.getBoolean(KEY_RESYNC, false);
+		if (resync) {
+			syncedBefore = false;
+			pageToken = null;
+			lastSync = null;
+			lastRev = 0;
+			applier.trackSeen();
+		}
+		LinkItems page;
+		while (true) {
+			page = stream.listLinks(token, syncedBefore ? "true" : "false",
+					pageToken == null ? lastSync : null, pageToken,
+					SyncHelper.DOWNLOAD_PAGE_SIZE, lastRev, applier);
+
+			if (page.resyncRequired && !resync) {
+				// The server has purged deletions this device hasn't seen.
+				// Download everything, and remove what wasn't in it.
+				Log.d(TAG, "Resync required");
+				resync = true;
+				syncedBefore = false;
+				pageToken = null;
+				lastSync = null;
+				lastRev = 0;
+				applier.trackSeen();
+				final SharedPreferences.Editor editor = prefs.edit()
+						.putBoolean(KEY_RESYNC, true);
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						editor.commit();
+					}
+				});
+				continue;
+			}
+			applier.flush();
+
+			// Remember where the page ended, so an interrupted sync can
+			// continue from here. Queued after the page's links, so it is
+			// saved only once they are in the database.
+			final SharedPreferences.Editor editor = prefs.edit();
+			if (page.nextPageToken != null) {
+				pageToken = page.nextPageToken;
+				editor.putString(KEY_SYNCTOKEN, pageToken);
+			}
+			// Missing if nothing has changed. Servers take either form
+			// back as timestampMin.
+			if (page.latestTimestampMs != null) {
+				editor.putString(KEY_LASTSYNC,
+						Long.toString(page.latestTimestampMs));
+			}
+			else if (page.latestTimestamp != null) {
+				editor.putString(KEY_LASTSYNC, page.latestTimestamp);
+			}
+			if (page.latestRev != null) {
+				lastRev = page.latestRev;
+				editor.putLong(KEY_LASTREV, lastRev);
+			}
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					editor.commit();
+				}
+			});
+
+			if (!page.hasMore || page.nextPageToken == null) {
 				break;
 			}
 		}
+
+		if (resync) {
+			// Links up to the last revision which weren't listed have been
+			// deleted. Later ones could have arrived by push since.
+			final Set<String> seen = applier.getSeen();
+			final long maxRev = lastRev;
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					final int removed = db.removeUnseen(seen, maxRev);
+					prefs.edit().putBoolean(KEY_RESYNC, false).commit();
+					trace.count(SyncTrace.ROWS_APPLIED, removed);
+					synchronized (syncResult) {
+						syncResult.stats.numDeletes += removed;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for the upload, and rethrows any error it had.
+	 */
+	private static void waitFor(final Future<?> upload) {
+		try {
+			upload.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbWriter.CancelledException();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Collects downloaded links and queues them for writing one chunk at a
+	 * time, so memory use does not depend on the size of the response.
+	 */
+	private static class DownloadApplier implements LinksStream.LinkHandler {
+		private final DatabaseHandler db;
+		private final DbWriter writer;
+		private final Set<String> uploading;
+		private final SyncResult syncResult;
+		private final SyncTrace trace;
+		private final int chunkSize;
+		private List<LinkItem> links = new ArrayList<LinkItem>();
+		// Shas downloaded, if tracked
+		private Set<String> seen = null;
+		// Time spent waiting for the writer to take a chunk
+		private long blockedNanos = 0;
+
+		DownloadApplier(final DatabaseHandler db, final DbWriter writer,
+				final Set<String> uploading, final SyncResult syncResult,
+				final SyncTrace trace, final int chunkSize) {
+			this.db = db;
+			this.writer = writer;
+			this.uploading = uploading;
+			this.syncResult = syncResult;
+			this.trace = trace;
+			this.chunkSize = chunkSize;
+		}
+
+		/**
+		 * Time flush spent waiting for the writer, in nanoseconds.
+		 */
+		long getBlockedTime() {
+			return blockedNanos;
+		}
+
+		/**
+		 * Remembers the shas of the links downloaded from here on.
+		 */
+		void trackSeen() {
+			seen = new HashSet<String>();
+		}
+
+		Set<String> getSeen() {
+			return seen;
+		}
+
+		@Override
+		public void onLink(final LinkMSG msg) {
+			if (seen != null && !msg.deleted) {
+				seen.add(msg.sha);
+			}
+			trace.count(SyncTrace.ROWS_DOWN, 1);
+			links.add(msg.toDBItem());
+			if (links.size() >= chunkSize) {
+				flush();
+			}
+		}
+
+		/**
+		 * Queues any links still waiting for writing.
+		 */
+		void flush() {
+			if (links.isEmpty()) {
+				return;
+			}
+			final List<LinkItem> chunk = links;
+			links = new ArrayList<LinkItem>();
+
+			final long start = System.nanoTime();
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					// Checked here, to see changes made since the upload
+					// started
+					final Set<String> pending = db.getPendingShas();
+					pending.addAll(uploading);
+					final int local = removeLocal(chunk, pending);
+					// Links already known at the same revision are
+					// skipped as well
+					final int applied = db.mergeRemote(chunk);
+					final int skipped = local + chunk.size() - applied;
+
+					Log.d(TAG, "Applied " + applied + " links, skipped "
+							+ skipped);
+					trace.count(SyncTrace.ROWS_APPLIED, applied);
+					trace.count(SyncTrace.ROWS_SKIPPED, skipped);
+					synchronized (syncResult) {
+						syncResult.stats.numUpdates += applied;
+						syncResult.stats.numEntries += applied;
+						syncResult.stats.numSkippedEntries += skipped;
+					}
+				}
+			});
+			blockedNanos += System.nanoTime() - start;
+		}
+
+		/**
+		 * Removes the links which have local changes.
+		 * 
+		 * @return number of links removed
+		 */
+		private static int removeLocal(final List<LinkItem> items,
+				final Set<String> local) {
+			int removed = 0;
+			final Iterator<LinkItem> it = items.iterator();
+			while (it.hasNext()) {
+				if (local.contains(it.next().sha)) {
+					it.remove();
+					removed++;
+				}
+			}
+			return removed;
+		}
 	}
 }
@@ -0,0 +1,21 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the end of the upload window of {@link SyncScheduler}.
+ */
+public class SyncAlarmReceiver extends BroadcastReceiver {
+	public SyncAlarmReceiver() {
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (SyncScheduler.ACTION_UPLOAD.equals(intent.getAction())) {
+			// The sync manager keeps the device awake from here
+			SyncHelper.requestUploadSync(context);
+		}
+	}
+}
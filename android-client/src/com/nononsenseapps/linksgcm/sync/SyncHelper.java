@@ -2,7 +2,7 @@ package com.nononsenseapps.linksgcm.sync;
 
 import java.io.IOException;
 
-import retrofit.RestAdapter;
+import retrofit.RetrofitError;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -23,10 +23,54 @@ public class SyncHelper {
 	public static final String SCOPE = "oauth2:https://www.googleapis.com/auth/userinfo.email";
 	static final String TAG = "Links";
 
+	/**
+	 * Sync extra which overrides the number of links sent per upload request.
+	 */
+	public static final String KEY_UPLOAD_BATCH_SIZE = "key_upload_batch_size";
+	public static final int UPLOAD_BATCH_SIZE = 100;
+	/**
+	 * Downloaded links are written to the database in transactions of this
+	 * size.
+	 */
+	public static final int DOWNLOAD_CHUNK_SIZE = 200;
+	/**
+	 * Number of links requested per page when downloading.
+	 */
+	public static final int DOWNLOAD_PAGE_SIZE = 500;
+	/**
+	 * Sync extra which skips the upload. Used when the server says there
+	 * are changes to download.
+	 */
+	public static final String KEY_DOWNLOAD_ONLY = "key_download_only";
+
+	private static Transport transport = null;
+
+	/**
+	 * Requests go to LinksServer.API_URL through one shared client, so
+	 * connections to the server are kept alive and reused between requests
+	 * and syncs.
+	 */
+	static synchronized Transport getTransport() {
+		if (transport == null) {
+			transport = new Transport(LinksServer.API_URL,
+					Transport.newHttpClient());
+		}
+		return transport;
+	}
+
+	/**
+	 * Counts what goes through the transport.
+	 */
+	static MeteredClient getMeter() {
+		return getTransport().getMeter();
+	}
+
 	public static LinksServer getRESTAdapter() {
-		RestAdapter restAdapter = new RestAdapter.Builder().setServer(
-				LinksServer.API_URL).build();
-		return restAdapter.create(LinksServer.class);
+		return getTransport().getServer();
+	}
+
+	public static LinksStream getLinksStream() {
+		return getTransport().newStream();
 	}
 
 	public static String getSavedAccountName(final Context context) {
@@ -43,28 +87,65 @@ public class SyncHelper {
 		return getAuthToken(context, accountName);
 	}
 
+	private static final TokenCache tokenCache = new TokenCache(
+			new TokenCache.Fetcher() {
+				@Override
+				public String fetch(final Context context,
+						final String accountName, final String scope) {
+					try {
+						return GoogleAuthUtil.getTokenWithNotification(
+								context, accountName, scope, null,
+								ItemProvider.AUTHORITY, null);
+					}
+					catch (UserRecoverableNotifiedException userRecoverableException) {
+						// Unable to authenticate, but the user can fix this.
+						Log.e(TAG, "Could not fetch token: "
+								+ userRecoverableException.getMessage());
+					}
+					catch (GoogleAuthException fatalException) {
+						Log.e(TAG,
+								"Unrecoverable error "
+										+ fatalException.getMessage());
+					}
+					catch (IOException e) {
+						Log.e(TAG, e.getMessage());
+					}
+					return null;
+				}
+			});
+
 	/**
-	 * Only use this in a background thread, i.e. the syncadapter.
+	 * Only use this in a background thread, i.e. the syncadapter. Cached
+	 * tokens are returned right away.
 	 */
 	public static String getAuthToken(final Context context,
 			final String accountName) {
-		try {
-			return "Bearer " + GoogleAuthUtil.getTokenWithNotification(context,
-					accountName, SCOPE, null, ItemProvider.AUTHORITY, null);
-		}
-		catch (UserRecoverableNotifiedException userRecoverableException) {
-			// Unable to authenticate, but the user can fix this.
-			Log.e(TAG,
-					"Could not fetch token: "
-							+ userRecoverableException.getMessage());
-		}
-		catch (GoogleAuthException fatalException) {
-			Log.e(TAG, "Unrecoverable error " + fatalException.getMessage());
-		}
-		catch (IOException e) {
-			Log.e(TAG, e.getMessage());
+		final String token = tokenCache.get(context, accountName, SCOPE);
+		if (token == null) {
+			return null;
 		}
-		return null;
+		return "Bearer " + token;
+	}
+
+	/**
+	 * Call when the server responds with 401 to a token from getAuthToken.
+	 * The next call to getAuthToken will fetch a new token.
+	 */
+	public static void invalidateAuthToken(final Context context,
+			final String accountName, final String authToken) {
+		tokenCache.invalidate(context, accountName, SCOPE,
+				authToken.substring("Bearer ".length()));
+	}
+
+	/**
+	 * True if the server did not accept the token.
+	 */
+	public static boolean isUnauthorized(final RetrofitError e) {
+		return e.getResponse() != null && e.getResponse().getStatus() == 401;
+	}
+
+	static TokenCache getTokenCache() {
+		return tokenCache;
 	}
 
 	public static Account getAccount(final Context context,
@@ -99,6 +180,38 @@ public class SyncHelper {
 		}
 	}
 
+	/**
+	 * Download the changes on the server. Requested even if a sync is
+	 * running, as that one might have missed them.
+	 */
+	public static void requestDownloadSync(final Context context) {
+		final String email = getSavedAccountName(context);
+
+		if (email != null) {
+			final Account account = getAccount(context, email);
+			final Bundle options = new Bundle();
+			options.putBoolean(KEY_DOWNLOAD_ONLY, true);
+			ContentResolver.requestSync(account, ItemProvider.AUTHORITY,
+					options);
+		}
+	}
+
+	/**
+	 * Upload local changes. Called by SyncScheduler at the end of the
+	 * upload window.
+	 */
+	public static void requestUploadSync(final Context context) {
+		final String email = getSavedAccountName(context);
+
+		if (email != null) {
+			final Account account = getAccount(context, email);
+			final Bundle options = new Bundle();
+			options.putBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, true);
+			ContentResolver.requestSync(account, ItemProvider.AUTHORITY,
+					options);
+		}
+	}
+
 	public static void requestSync(final Context context) {
 		final String email = getSavedAccountName(context);
 
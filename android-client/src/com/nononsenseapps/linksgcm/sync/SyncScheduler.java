@@ -0,0 +1,221 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+
+import android.accounts.Account;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.nononsenseapps.linksgcm.R;
+import com.nononsenseapps.linksgcm.database.ItemProvider;
+import com.nononsenseapps.linksgcm.gcm.GCMHelper;
+
+/**
+ * Decides when to sync, so the radio is woken as seldom as possible without
+ * changes taking longer to arrive.
+ *
+ * Local changes start an upload window, and everything changed within it is
+ * uploaded together when it ends. The window is longer on battery or on a
+ * metered network, where waking the radio costs more. It is set in
+ * config.xml.
+ *
+ * Changes on the server arrive by push. The periodic sync only catches what
+ * push missed, so its period doubles every time it finds nothing new, and
+ * drops to MIN_PERIOD when it finds something push didn't deliver, or
+ * without push.
+ *
+ * After a failed sync, the next one waits as long as the server asked for
+ * with Retry-After, or exponentially longer for every failure in a row.
+ */
+public class SyncScheduler {
+
+	static final String ACTION_UPLOAD = "com.nononsenseapps.linksgcm.sync.UPLOAD";
+	/**
+	 * Sync extra set on periodic syncs.
+	 */
+	static final String KEY_PERIODIC = "key_periodic";
+
+	// Periods of the periodic sync, in seconds
+	static final long MIN_PERIOD = 6 * 60 * 60;
+	static final long DEFAULT_PERIOD = 24 * 60 * 60;
+	static final long MAX_PERIOD = 3 * 24 * 60 * 60;
+
+	// Delay after failed syncs, in seconds
+	static final long MIN_BACKOFF = 30;
+	static final long MAX_BACKOFF = 60 * 60;
+
+	private static final String KEY_PERIOD = "key_sync_period";
+	private static final String KEY_FAILURES = "key_sync_failures";
+
+	/**
+	 * A local change should be uploaded. Starts the upload window, unless
+	 * one is already running.
+	 */
+	public static void requestUpload(final Context context) {
+		if (getUploadIntent(context, PendingIntent.FLAG_NO_CREATE) != null) {
+			// The change is part of the running window
+			return;
+		}
+
+		final int window = context.getResources().getInteger(
+				isCostly(context) ? R.integer.sync_upload_window_costly
+						: R.integer.sync_upload_window);
+		final AlarmManager alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		// Wakes the device, the upload must not wait for the user
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+				SystemClock.elapsedRealtime() + window * 1000L,
+				getUploadIntent(context, 0));
+	}
+
+	/**
+	 * One shot, so it is gone once the alarm has gone off and the next
+	 * change starts a new window.
+	 */
+	private static PendingIntent getUploadIntent(final Context context,
+			final int flags) {
+		final Intent intent = new Intent(context, SyncAlarmReceiver.class);
+		intent.setAction(ACTION_UPLOAD);
+		return PendingIntent.getBroadcast(context, 0, intent,
+				PendingIntent.FLAG_ONE_SHOT | flags);
+	}
+
+	/**
+	 * True if the device is on battery or on a metered network.
+	 */
+	static boolean isCostly(final Context context) {
+		// Sticky, so no receiver is needed
+		final Intent battery = context.registerReceiver(null,
+				new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null
+				|| battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+			return true;
+		}
+
+		final ConnectivityManager cm = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo info = cm.getActiveNetworkInfo();
+		if (info == null) {
+			return true;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return cm.isActiveNetworkMetered();
+		}
+		return info.getType() != ConnectivityManager.TYPE_WIFI
+				&& info.getType() != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	/**
+	 * Sets up the periodic sync with the current period. Call when sync is
+	 * enabled for the account.
+	 */
+	public static void schedulePeriodic(final Context context,
+			final Account account) {
+		// Installed by older versions
+		ContentResolver.removePeriodicSync(account, ItemProvider.AUTHORITY,
+				new Bundle());
+		setPeriod(account, getPrefs(context).getLong(KEY_PERIOD,
+				DEFAULT_PERIOD));
+	}
+
+	/**
+	 * Adapts the period after a periodic sync.
+	 *
+	 * @param missed
+	 *            number of downloaded changes which hadn't arrived by push
+	 */
+	static void onPeriodicSync(final Context context, final Account account,
+			final long missed) {
+		final SharedPreferences prefs = getPrefs(context);
+		final long period = prefs.getLong(KEY_PERIOD, DEFAULT_PERIOD);
+		final long next;
+		if (missed > 0 || GCMHelper.getSavedRegistrationId(context).isEmpty()) {
+			next = MIN_PERIOD;
+		}
+		else {
+			next = Math.min(MAX_PERIOD, 2 * period);
+		}
+
+		if (next != period) {
+			Log.d(SyncHelper.TAG, "Periodic sync every " + next + " s");
+			prefs.edit().putLong(KEY_PERIOD, next).commit();
+			setPeriod(account, next);
+		}
+	}
+
+	private static void setPeriod(final Account account, final long period) {
+		final Bundle extras = new Bundle();
+		extras.putBoolean(KEY_PERIODIC, true);
+		// Replaces the period if already added
+		ContentResolver.addPeriodicSync(account, ItemProvider.AUTHORITY,
+				extras, period);
+	}
+
+	/**
+	 * Resets the back-off after a sync which succeeded.
+	 */
+	static void onSuccess(final Context context) {
+		final SharedPreferences prefs = getPrefs(context);
+		if (prefs.getInt(KEY_FAILURES, 0) != 0) {
+			prefs.edit().putInt(KEY_FAILURES, 0).commit();
+		}
+	}
+
+	/**
+	 * Records a failed sync.
+	 *
+	 * @return when the next sync may run, in seconds since the epoch as
+	 *         SyncResult.delayUntil wants it
+	 */
+	static long onFailure(final Context context, final RetrofitError e) {
+		final SharedPreferences prefs = getPrefs(context);
+		final int failures = prefs.getInt(KEY_FAILURES, 0) + 1;
+		prefs.edit().putInt(KEY_FAILURES, failures).commit();
+
+		long delay = getRetryAfter(e);
+		if (delay <= 0) {
+			delay = Math.min(MAX_BACKOFF,
+					MIN_BACKOFF << Math.min(failures - 1, 20));
+		}
+		return System.currentTimeMillis() / 1000 + delay;
+	}
+
+	/**
+	 * The Retry-After of the response in seconds, or 0 if it has none.
+	 */
+	private static long getRetryAfter(final RetrofitError e) {
+		if (e.getResponse() == null || e.getResponse().getHeaders() == null) {
+			return 0;
+		}
+		for (Header header : e.getResponse().getHeaders()) {
+			if ("Retry-After".equalsIgnoreCase(header.getName())) {
+				try {
+					return Long.parseLong(header.getValue().trim());
+				}
+				catch (NumberFormatException ex) {
+					// An HTTP date, not worth parsing
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static SharedPreferences getPrefs(final Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context);
+	}
+}
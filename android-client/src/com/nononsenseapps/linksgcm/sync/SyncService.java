@@ -1,5 +1,8 @@
 package com.nononsenseapps.linksgcm.sync;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
@@ -43,4 +46,14 @@ public class SyncService extends Service {
 		 */
 		return sSyncAdapter.getSyncAdapterBinder();
 	}
+
+	/**
+	 * Prints the traces of the latest syncs. Run
+	 * "adb shell dumpsys activity service
+	 * com.nononsenseapps.linksgcm/.sync.SyncService" to see them.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		SyncTrace.dump(this, writer);
+	}
 }
@@ -0,0 +1,181 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.nononsenseapps.linksgcm.database.DatabaseHandler;
+import com.nononsenseapps.linksgcm.database.NotificationBatcher;
+import com.nononsenseapps.linksgcm.database.SyncLog;
+
+/**
+ * Collects where the time of one sync went, and how much it moved, and
+ * records it in the SyncLog when the sync is done. Phases and counts are
+ * added from the sync, upload and writer threads.
+ *
+ * The phases are:
+ * - token: getting an access token
+ * - upload: sending the outbox, on the upload thread
+ * - download: waiting for responses to list requests
+ * - parse: reading and parsing their bodies, without the time spent waiting
+ * for the writer
+ * - apply: database writes, on the writer thread
+ * - notify: sending change notifications
+ */
+class SyncTrace {
+	static final int PHASE_TOKEN = 0;
+	static final int PHASE_UPLOAD = 1;
+	static final int PHASE_DOWNLOAD = 2;
+	static final int PHASE_PARSE = 3;
+	static final int PHASE_APPLY = 4;
+	static final int PHASE_NOTIFY = 5;
+
+	static final int ROWS_UP = 0;
+	static final int ROWS_DOWN = 1;
+	static final int ROWS_APPLIED = 2;
+	static final int ROWS_SKIPPED = 3;
+
+	private static final String[] PHASE_COLUMNS = { SyncLog.COL_TOKEN_MS,
+			SyncLog.COL_UPLOAD_MS, SyncLog.COL_DOWNLOAD_MS,
+			SyncLog.COL_PARSE_MS, SyncLog.COL_APPLY_MS, SyncLog.COL_NOTIFY_MS };
+	private static final String[] ROW_COLUMNS = { SyncLog.COL_ROWS_UP,
+			SyncLog.COL_ROWS_DOWN, SyncLog.COL_ROWS_APPLIED,
+			SyncLog.COL_ROWS_SKIPPED };
+
+	private final Context context;
+	private final String kind;
+	private final long started = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	// Counters which only grow, read at the start
+	private final long startRequests;
+	private final long startBytesSent;
+	private final long startBytesReceived;
+	private final long startNotify;
+
+	private final long[] phaseNanos = new long[PHASE_COLUMNS.length];
+	private final long[] rows = new long[ROW_COLUMNS.length];
+	private String result = "error";
+
+	SyncTrace(final Context context, final Bundle extras) {
+		this.context = context;
+		this.kind = getKind(extras);
+		final MeteredClient meter = SyncHelper.getMeter();
+		startRequests = meter.getRequests();
+		startBytesSent = meter.getBytesSent();
+		startBytesReceived = meter.getBytesReceived();
+		startNotify = NotificationBatcher.getInstance(context).getNotifyTime();
+	}
+
+	private static String getKind(final Bundle extras) {
+		if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)) {
+			return "manual";
+		}
+		if (extras.getBoolean(SyncScheduler.KEY_PERIODIC, false)) {
+			return "periodic";
+		}
+		if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, false)) {
+			return "upload";
+		}
+		if (extras.getBoolean(SyncHelper.KEY_DOWNLOAD_ONLY, false)) {
+			return "download";
+		}
+		return "full";
+	}
+
+	/**
+	 * Adds the time since start, a value of System.nanoTime(), to the
+	 * phase.
+	 */
+	void end(final int phase, final long start) {
+		add(phase, System.nanoTime() - start);
+	}
+
+	synchronized void add(final int phase, final long nanos) {
+		phaseNanos[phase] += nanos;
+	}
+
+	synchronized void count(final int rowType, final long count) {
+		rows[rowType] += count;
+	}
+
+	synchronized void setResult(final String result) {
+		this.result = result;
+	}
+
+	/**
+	 * Records the trace. Call once, after the sync, when all threads are
+	 * done with it. Never throws, a trace is not worth failing a sync for.
+	 */
+	void record() {
+		final ContentValues values = new ContentValues();
+		final MeteredClient meter = SyncHelper.getMeter();
+		synchronized (this) {
+			add(PHASE_NOTIFY, NotificationBatcher.getInstance(context)
+					.getNotifyTime() - startNotify);
+			values.put(SyncLog.COL_STARTED, started);
+			values.put(SyncLog.COL_KIND, kind);
+			values.put(SyncLog.COL_RESULT, result);
+			values.put(SyncLog.COL_TOTAL_MS, toMillis(System.nanoTime()
+					- startNanos));
+			for (int i = 0; i < PHASE_COLUMNS.length; i++) {
+				values.put(PHASE_COLUMNS[i], toMillis(phaseNanos[i]));
+			}
+			for (int i = 0; i < ROW_COLUMNS.length; i++) {
+				values.put(ROW_COLUMNS[i], rows[i]);
+			}
+			values.put(SyncLog.COL_REQUESTS, meter.getRequests()
+					- startRequests);
+			values.put(SyncLog.COL_BYTES_SENT, meter.getBytesSent()
+					- startBytesSent);
+			values.put(SyncLog.COL_BYTES_RECEIVED, meter.getBytesReceived()
+					- startBytesReceived);
+		}
+
+		Log.d(SyncHelper.TAG, "Sync trace " + values);
+		try {
+			DatabaseHandler.getInstance(context).addSyncTrace(values);
+		}
+		catch (RuntimeException e) {
+			Log.e(SyncHelper.TAG, "Could not record sync trace: " + e);
+		}
+	}
+
+	private static long toMillis(final long nanos) {
+		return nanos / 1000000;
+	}
+
+	/**
+	 * Prints the recorded traces, latest first, one per line.
+	 */
+	static void dump(final Context context, final PrintWriter writer) {
+		final SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss", Locale.US);
+		final Cursor c = DatabaseHandler.getInstance(context)
+				.getSyncLogCursor(null, null, null, null, null);
+		try {
+			writer.println("Latest syncs (times in ms):");
+			while (c.moveToNext()) {
+				writer.print("  ");
+				writer.print(format.format(new Date(c.getLong(1))));
+				for (int i = 2; i < c.getColumnCount(); i++) {
+					writer.print(' ');
+					writer.print(c.getColumnName(i));
+					writer.print('=');
+					writer.print(c.getString(i));
+				}
+				writer.println();
+			}
+		}
+		finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+
+/**
+ * Caches access tokens per account and scope, so a sync doesn't have to
+ * wait for Google Play services to hand out a token.
+ *
+ * GoogleAuthUtil doesn't tell when a token was issued, and may hand out one
+ * it cached itself, so the time of a fetch says nothing about how long the
+ * token is valid. Google Play services replaces its tokens before they
+ * expire, so it is asked again instead: a token is served for MAX_AGE_MS
+ * after Google Play services last returned it. One used after CHECK_MS is
+ * still returned, but Google Play services is asked again in the
+ * background. If it returns another token, the old one is cleared.
+ */
+public class TokenCache {
+
+	static final long CHECK_MS = 5 * 60 * 1000;
+	static final long MAX_AGE_MS = 10 * 60 * 1000;
+
+	/**
+	 * Fetches a token the slow way. Called on a background thread.
+	 */
+	public interface Fetcher {
+		/**
+		 * @return the token, or null if none could be had
+		 */
+		String fetch(Context context, String accountName, String scope);
+	}
+
+	private static class Entry {
+		final String token;
+		// When Google Play services last returned it, in elapsedRealtime
+		final long checked;
+
+		Entry(final String token, final long checked) {
+			this.token = token;
+			this.checked = checked;
+		}
+	}
+
+	private final Fetcher fetcher;
+	// Keyed by account and scope, guarded by itself
+	private final Map<String, Entry> tokens = new HashMap<String, Entry>();
+	private final Set<String> refreshing = new HashSet<String>();
+	private final ExecutorService refresher = Executors
+			.newSingleThreadExecutor();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public TokenCache(final Fetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * Returns a cached token if one is valid, otherwise fetches one. Blocks
+	 * on a miss, so only use this in a background thread.
+	 */
+	public String get(final Context context, final String accountName,
+			final String scope) {
+		final String key = key(accountName, scope);
+		final long now = SystemClock.elapsedRealtime();
+		final Entry entry;
+		synchronized (tokens) {
+			entry = tokens.get(key);
+		}
+
+		if (entry != null && now - entry.checked < MAX_AGE_MS) {
+			hits.incrementAndGet();
+			if (now - entry.checked >= CHECK_MS) {
+				refreshInBackground(context.getApplicationContext(),
+						accountName, scope);
+			}
+			return entry.token;
+		}
+
+		misses.incrementAndGet();
+		return fetch(context, accountName, scope);
+	}
+
+	/**
+	 * The server didn't accept the token. It is forgotten, here and by
+	 * Google Play services, so the next get fetches a new one.
+	 */
+	public void invalidate(final Context context, final String accountName,
+			final String scope, final String token) {
+		synchronized (tokens) {
+			final Entry entry = tokens.get(key(accountName, scope));
+			if (entry != null && entry.token.equals(token)) {
+				tokens.remove(key(accountName, scope));
+			}
+		}
+		clearToken(context, token);
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Asks Google Play services for the token. If it returns another one
+	 * than the cached token, that one was replaced and is cleared.
+	 */
+	private String fetch(final Context context, final String accountName,
+			final String scope) {
+		final long fetched = SystemClock.elapsedRealtime();
+		final String token = fetcher.fetch(context, accountName, scope);
+		if (token != null) {
+			final Entry old;
+			synchronized (tokens) {
+				old = tokens.put(key(accountName, scope), new Entry(token,
+						fetched));
+			}
+			if (old != null && !old.token.equals(token)) {
+				clearToken(context, old.token);
+			}
+		}
+		return token;
+	}
+
+	private void refreshInBackground(final Context context,
+			final String accountName, final String scope) {
+		final String key = key(accountName, scope);
+		synchronized (tokens) {
+			if (!refreshing.add(key)) {
+				return;
+			}
+		}
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fetch(context, accountName, scope);
+				}
+				finally {
+					synchronized (tokens) {
+						refreshing.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+	private static void clearToken(final Context context, final String token) {
+		try {
+			GoogleAuthUtil.clearToken(context, token);
+		}
+		catch (GoogleAuthException e) {
+			Log.e(SyncHelper.TAG, "Could not clear token: " + e.getMessage());
+		}
+		catch (IOException e) {
+			Log.e(SyncHelper.TAG, "Could not clear token: " + e.getMessage());
+		}
+	}
+
+	private static String key(final String accountName, final String scope) {
+		return accountName + " " + scope;
+	}
+}
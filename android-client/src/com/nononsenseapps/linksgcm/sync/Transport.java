@@ -0,0 +1,86 @@
+package com.nononsenseapps.linksgcm.sync;
+
+import java.util.concurrent.TimeUnit;
+
+import retrofit.RestAdapter;
+import retrofit.client.Client;
+import retrofit.client.OkClient;
+
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Where requests to the links server go, and the clients they go through:
+ * compression (see {@link GzipClient}), then metering (see
+ * {@link MeteredClient}), then HTTP. The app has one, to
+ * LinksServer.API_URL, see SyncHelper. The jvm module makes its own to an
+ * in-process server.
+ */
+public class Transport {
+
+	private final String apiUrl;
+	private final MeteredClient meter;
+	private final Client client;
+	private LinksServer server = null;
+
+	/**
+	 * @param httpClient
+	 *            sends the requests. Share it between transports to the
+	 *            same server, it keeps the connections alive.
+	 */
+	public Transport(final String apiUrl, final Client httpClient) {
+		this.apiUrl = apiUrl;
+		// Below GzipClient, to count compressed bodies
+		this.meter = new MeteredClient(httpClient);
+		this.client = LinksServer.GZIP_REQUESTS ? new GzipClient(meter)
+				: meter;
+	}
+
+	/**
+	 * OkHttp with the timeouts in LinksServer. Responses are decompressed
+	 * by MeteredClient, not by OkHttp, so they are counted compressed.
+	 */
+	public static Client newHttpClient() {
+		final OkHttpClient okHttpClient = new OkHttpClient();
+		okHttpClient.setConnectTimeout(LinksServer.CONNECT_TIMEOUT,
+				TimeUnit.SECONDS);
+		okHttpClient.setReadTimeout(LinksServer.READ_TIMEOUT, TimeUnit.SECONDS);
+		return new OkClient(okHttpClient);
+	}
+
+	public String getApiUrl() {
+		return apiUrl;
+	}
+
+	/**
+	 * The client all requests go through.
+	 */
+	public Client getClient() {
+		return client;
+	}
+
+	/**
+	 * Counts what goes through getClient.
+	 */
+	public MeteredClient getMeter() {
+		return meter;
+	}
+
+	/**
+	 * Built once, creating the adapter is costly.
+	 */
+	public synchronized LinksServer getServer() {
+		if (server == null) {
+			RestAdapter restAdapter = new RestAdapter.Builder()
+					.setServer(apiUrl).setClient(client).build();
+			server = restAdapter.create(LinksServer.class);
+		}
+		return server;
+	}
+
+	/**
+	 * For downloads, which are parsed as they arrive.
+	 */
+	public LinksStream newStream() {
+		return new LinksStream(apiUrl, client);
+	}
+}
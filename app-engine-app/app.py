@@ -1,9 +1,10 @@
-import os, binascii
-from datetime import datetime
+import os, binascii, base64
+from datetime import datetime, timedelta
 
 import endpoints
 #from google.appengine.ext import endpoints
-from google.appengine.ext import ndb
+from google.appengine.ext import ndb, deferred
+from google.appengine.datastore.datastore_query import Cursor
 from protorpc import messages
 from protorpc import message_types
 from protorpc import remote
@@ -18,9 +19,38 @@ def datetime_to_string(datetime_object):
     2013-09-23 23:23:12.123456'''
     return datetime_object.isoformat(sep=' ')
 
+_EPOCH = datetime(1970, 1, 1)
+
+def datetime_to_millis(datetime_object):
+    '''Converts a datetime object to milliseconds since the epoch'''
+    delta = datetime_object - _EPOCH
+    return ((delta.days * 86400 + delta.seconds) * 1000 +
+            delta.microseconds // 1000)
+
+def encode_page_token(link):
+    '''Returns an opaque token pointing just after the given link'''
+    return base64.urlsafe_b64encode('{}|{}'.format(
+        datetime_to_string(link.timestamp), link.key.id()))
+
+def decode_page_token(token):
+    '''Returns the (datetime, sha) pair in the token, or None
+    if the token is not valid'''
+    try:
+        timestamp, sha = base64.urlsafe_b64decode(str(token)).split('|', 1)
+    except (TypeError, ValueError):
+        return None
+    timestamp = parse_timestamp(timestamp)
+    if timestamp is None:
+        return None
+    return timestamp, sha
+
 def parse_timestamp(timestamp):
     '''Parses a timestamp string.
-    Supports two formats, examples:
+    Supports three formats, examples:
+
+    In milliseconds since the epoch
+    >>> parse_timestamp("1380460902000")
+    datetime object
 
     In second precision
     >>> parse_timestamp("2013-09-29 13:21:42")
@@ -35,6 +65,12 @@ def parse_timestamp(timestamp):
     None
     '''
     result = None
+    try:
+        # Milliseconds since the epoch
+        return _EPOCH + timedelta(milliseconds=int(timestamp))
+    except (ValueError, OverflowError):
+        pass
+
     try:
         # Microseconds
         result = datetime.strptime(timestamp, '%Y-%m-%d %H:%M:%S.%f')
@@ -53,7 +89,10 @@ class Link(messages.Message):
     url = messages.StringField(1, required=True)
     sha = messages.StringField(2)
     deleted = messages.BooleanField(3, default=False)
+    # Only with COMPAT_TIMESTAMPS, for clients without timestampMs
     timestamp = messages.StringField(4)
+    rev = messages.IntegerField(5)
+    timestampMs = messages.IntegerField(6)
 
 POST_REQUEST = endpoints.ResourceContainer(
     Link,
@@ -65,7 +104,38 @@ class LinkModel(ndb.Model):
     url = ndb.StringProperty(required=True)
     deleted =  ndb.BooleanProperty(required=True, default=False)
     userid = ndb.UserProperty(required=True)
-    timestamp = ndb.DateTimeProperty(required=True, auto_now=True)
+    # Set by _write_link on every change. Not auto_now, so that giving
+    # links their revision (see assign_revisions) keeps their time.
+    timestamp = ndb.DateTimeProperty(required=True)
+    # Links stored before there were revisions have none, and read as
+    # 0 until assign_revisions has run.
+    rev = ndb.IntegerProperty(required=True, default=0)
+
+class LinkRevModel(ndb.Model):
+    '''The latest revision of a user's links, keyed by the user's email.
+    Every change of a link gets the next one.'''
+    rev = ndb.IntegerProperty(required=True, default=0)
+    # Set once every link of the user has a revision
+    migrated = ndb.BooleanProperty(default=False)
+    # When assign_revisions was last started
+    migrating = ndb.DateTimeProperty()
+
+class LinkHorizonModel(ndb.Model):
+    '''The newest deleted link purged for a user, keyed by the user's
+    email. Devices which synced before it may have missed deletions.'''
+    rev = ndb.IntegerProperty(required=True, default=0)
+    timestamp = ndb.DateTimeProperty()
+    # When a purge was last started
+    purged = ndb.DateTimeProperty()
+
+# Deleted links are kept TOMBSTONE_TTL so devices can download the
+# deletion, then removed. A user's links are purged at most once every
+# PURGE_INTERVAL, PURGE_BATCH links per task.
+TOMBSTONE_TTL = timedelta(days=30)
+PURGE_INTERVAL = timedelta(hours=1)
+PURGE_BATCH = 500
+# Links given a revision per task, see assign_revisions
+MIGRATE_BATCH = 200
 
 # Used to request a link to be deleted.
 # Has no body, only URL parameter
@@ -77,18 +147,247 @@ DELETE_REQUEST = endpoints.ResourceContainer(
 class LinkList(messages.Message):
     latestTimestamp = messages.StringField(2)
     links = messages.MessageField(Link, 1, repeated=True)
+    nextPageToken = messages.StringField(3)
+    hasMore = messages.BooleanField(4, default=False)
+    latestRev = messages.IntegerField(5)
+    resyncRequired = messages.BooleanField(6, default=False)
+    latestTimestampMs = messages.IntegerField(7)
+
+# Used to add and delete several links in one request
+BATCH_REQUEST = endpoints.ResourceContainer(
+    LinkList,
+    regid=messages.StringField(3))
 
 # Used to request the list with query parameters
 LIST_REQUEST = endpoints.ResourceContainer(
     message_types.VoidMessage,
     showDeleted=messages.BooleanField(2, default=False),
-    timestampMin=messages.StringField(3))
+    timestampMin=messages.StringField(3),
+    pageToken=messages.StringField(4),
+    pageSize=messages.IntegerField(5, variant=messages.Variant.INT32),
+    revMin=messages.IntegerField(6))
+
+# Largest number of links returned in one page
+MAX_PAGE_SIZE = 1000
+
+# Timestamps are sent as milliseconds since the epoch, in timestampMs and
+# latestTimestampMs. With COMPAT_TIMESTAMPS, clients from before that also
+# get them as strings in timestamp. latestTimestamp is always sent, it is
+# also what clients without revisions pass back as timestampMin.
+COMPAT_TIMESTAMPS = True
 
 # Add a device id to the user, database model in app_gcm.py
 class GCMRegId(messages.Message):
     regid = messages.StringField(1, required=True)
 
 
+def store_link(user, item):
+    '''Applies a link sent by a client. Returns the stored link, None
+    if there was nothing to delete, and a list of the links that
+    changed. Each change gets a new revision, unchanged links keep
+    theirs so they are not synced again.
+
+    The client sends the revision its change is based on as rev. If
+    that is older than the stored one, another device has changed the
+    link in between, and every device must come to the same result:
+
+    - A stale delete loses against the other change, the link is kept.
+    - A stale add or edit wins over a delete, the link is restored
+      rather than lost.
+    - Otherwise the latest change to arrive wins.
+
+    Clients that don't send rev always win. A url which is already
+    stored under another sha stays under that sha, the client adopts it
+    from the response.'''
+    link = None
+    if item.sha is not None:
+        link = ndb.Key(LinkModel, item.sha).get()
+        if link is not None and link.userid != user:
+            raise endpoints.BadRequestException('Invalid sha')
+
+    if item.deleted:
+        if link is None:
+            return None, []
+        link, changed = _write_link(user, link.key, link.url, True, item.rev)
+        return link, [link] if changed else []
+
+    # Queries can't run in a transaction
+    other = LinkModel.query(LinkModel.userid == user,
+                            LinkModel.url == item.url).get()
+    if other is not None and other.sha != item.sha:
+        # The link becomes the one already having the url
+        result = []
+        if link is not None and not link.deleted:
+            link, changed = _write_link(user, link.key, link.url, True, None)
+            result.append(link)
+        other, changed = _write_link(user, other.key, other.url, False, None)
+        if changed:
+            result.append(other)
+        return other, result
+
+    sha = item.sha
+    if sha is None:
+        sha = binascii.b2a_hex(os.urandom(15))
+    link, changed = _write_link(user, ndb.Key(LinkModel, sha), item.url,
+                                False, item.rev)
+    return link, [link] if changed else []
+
+@ndb.transactional(xg=True)
+def _write_link(user, key, url, deleted, base):
+    '''Returns the link and whether it changed'''
+    link = key.get()
+    if link is None:
+        link = LinkModel(key=key, sha=key.id(), url=url, deleted=deleted,
+                         userid=user)
+    else:
+        if link.url == url and link.deleted == deleted:
+            return link, False
+        stale = base is not None and base < link.rev
+        if deleted and (link.deleted or stale):
+            return link, False
+        link.url = url
+        link.deleted = deleted
+
+    counter = _next_rev(user)
+    link.rev = counter.rev
+    link.timestamp = datetime.utcnow()
+    ndb.put_multi([counter, link])
+    return link, True
+
+def _next_rev(user):
+    '''Returns the user's counter, advanced to the next revision. Put it
+    in the same transaction as what gets the revision.'''
+    counter_key = ndb.Key(LinkRevModel, user.email())
+    counter = counter_key.get()
+    if counter is None:
+        counter = LinkRevModel(key=counter_key)
+    counter.rev += 1
+    return counter
+
+def schedule_migration(user):
+    '''Starts assign_revisions for the user, unless it has completed or
+    was started within PURGE_INTERVAL.'''
+    # Outside a transaction, that is every request once done
+    counter = ndb.Key(LinkRevModel, user.email()).get()
+    if counter is not None and counter.migrated:
+        return
+    if _start_migration(user):
+        deferred.defer(assign_revisions, user)
+
+@ndb.transactional
+def _start_migration(user):
+    counter_key = ndb.Key(LinkRevModel, user.email())
+    counter = counter_key.get()
+    if counter is None:
+        counter = LinkRevModel(key=counter_key)
+    elif counter.migrated:
+        return False
+    now = datetime.utcnow()
+    if (counter.migrating is not None and
+        now - counter.migrating < PURGE_INTERVAL):
+        return False
+    counter.migrating = now
+    counter.put()
+    return True
+
+def assign_revisions(user, cursor=None):
+    '''Gives the user's links stored before there were revisions one
+    each. Queries on rev don't find them until then. The revisions are
+    new ones, so devices download the links with their next sync. Runs
+    as a deferred task, MIGRATE_BATCH links at a time.'''
+    q = LinkModel.query(LinkModel.userid == user)
+    start = Cursor(urlsafe=cursor) if cursor else None
+    links, next_cursor, more = q.fetch_page(MIGRATE_BATCH,
+                                            start_cursor=start)
+    for link in links:
+        if not link.rev:
+            _assign_rev(user, link.key)
+    if more and next_cursor is not None:
+        # Continue in a new task
+        deferred.defer(assign_revisions, user, next_cursor.urlsafe())
+    else:
+        _finish_migration(user)
+
+@ndb.transactional(xg=True)
+def _assign_rev(user, key):
+    link = key.get()
+    # Changed since, and given a revision then
+    if link is None or link.rev:
+        return
+    counter = _next_rev(user)
+    link.rev = counter.rev
+    ndb.put_multi([counter, link])
+
+@ndb.transactional
+def _finish_migration(user):
+    counter_key = ndb.Key(LinkRevModel, user.email())
+    counter = counter_key.get()
+    if counter is None:
+        counter = LinkRevModel(key=counter_key)
+    counter.migrated = True
+    counter.put()
+
+def schedule_purge(user, horizon):
+    '''Starts a purge of the user's old deleted links, unless one was
+    started within PURGE_INTERVAL.'''
+    now = datetime.utcnow()
+    if (horizon is not None and horizon.purged is not None and
+        now - horizon.purged < PURGE_INTERVAL):
+        return
+    if horizon is None:
+        horizon = LinkHorizonModel(id=user.email())
+    horizon.purged = now
+    horizon.put()
+    deferred.defer(purge_tombstones, user)
+
+def purge_tombstones(user):
+    '''Removes the user's deleted links older than TOMBSTONE_TTL.
+    The horizon is raised first, so a device is never told it is up
+    to date when it has missed a deletion. Runs as a deferred task.'''
+    cutoff = datetime.utcnow() - TOMBSTONE_TTL
+    q = LinkModel.query(LinkModel.userid == user,
+                        LinkModel.deleted == True,
+                        LinkModel.timestamp < cutoff)
+    links = q.fetch(PURGE_BATCH)
+    if not links:
+        return
+    _raise_horizon(user, max(link.rev for link in links),
+                   max(link.timestamp for link in links))
+    ndb.delete_multi([link.key for link in links])
+    if len(links) == PURGE_BATCH:
+        # Continue in a new task
+        deferred.defer(purge_tombstones, user)
+
+@ndb.transactional
+def _raise_horizon(user, rev, timestamp):
+    horizon = ndb.Key(LinkHorizonModel, user.email()).get()
+    if horizon is None:
+        horizon = LinkHorizonModel(id=user.email())
+    horizon.rev = max(horizon.rev, rev)
+    if horizon.timestamp is None or horizon.timestamp < timestamp:
+        horizon.timestamp = timestamp
+    horizon.put()
+
+def behind_horizon(horizon, rev_min, timestamp_min):
+    '''True if a client which has synced up to rev_min, or up to
+    timestamp_min for clients without revisions, may have missed
+    deletions which are now purged.'''
+    if horizon is None or horizon.timestamp is None:
+        return False
+    if rev_min is not None:
+        return rev_min < horizon.rev
+    if timestamp_min is not None:
+        return timestamp_min < horizon.timestamp
+    return False
+
+def to_message(link):
+    message = Link(url=link.url, sha=link.sha, deleted=link.deleted,
+                   timestampMs=datetime_to_millis(link.timestamp),
+                   rev=link.rev)
+    if COMPAT_TIMESTAMPS:
+        message.timestamp = datetime_to_string(link.timestamp)
+    return message
+
 # Client id for webapps
 CLIENT_ID = '86425096293.apps.googleusercontent.com'
 # Client id for devices (android apps)
@@ -113,26 +412,16 @@ class LinkApi(remote.Service):
         if current_user is None:
             raise endpoints.UnauthorizedException('Invalid token.')
 
-        # Generate an ID if one wasn't included
-        sha = request.sha
-        if sha is None:
-            sha = binascii.b2a_hex(os.urandom(15))
-        # Construct object to save
-        link = LinkModel(key=ndb.Key(LinkModel, sha),
-                         sha=sha,
-                         url=request.url,
-                         deleted=request.deleted,
-                         userid=current_user)
-        # And save it
-        link.put()
+        link, changed = store_link(current_user, request)
+        if link is None:
+            raise endpoints.NotFoundException('No such item')
 
         # Notify through GCM
-        send_link(link, request.regid)
+        for changed_link in changed:
+            send_link(changed_link, request.regid)
 
         # Return a complete link
-        return Link(url = link.url,
-                    sha = link.sha,
-                    timestamp = datetime_to_string(link.timestamp))
+        return to_message(link)
 
     @endpoints.method(DELETE_REQUEST, message_types.VoidMessage,
                       name = 'link.delete',
@@ -143,16 +432,14 @@ class LinkApi(remote.Service):
         if current_user is None:
             raise endpoints.UnauthorizedException('Invalid token.')
 
-        link_key = ndb.Key(LinkModel, request.sha)
-        link = link_key.get()
-        if link is not None:
-            link.deleted = True
-            link.put()
-        else:
+        link, changed = store_link(current_user,
+                                   Link(sha=request.sha, deleted=True))
+        if link is None:
             raise endpoints.NotFoundException('No such item')
 
         # Notify through GCM
-        send_link(link, request.regid)
+        for changed_link in changed:
+            send_link(changed_link, request.regid)
 
         return message_types.VoidMessage()
 
@@ -165,43 +452,146 @@ class LinkApi(remote.Service):
         if current_user is None:
             raise endpoints.UnauthorizedException('Invalid token.')
 
-        # Build the query
+        # Build the query. Links are ordered on (timestamp, key) so links
+        # sharing the same timestamp are neither skipped nor repeated
+        # between pages. With revMin, only links changed after that
+        # revision are listed, in revision order.
         q = LinkModel.query(LinkModel.userid == current_user)
-        q = q.order(LinkModel.timestamp)
+        if request.revMin is not None:
+            q = q.filter(LinkModel.rev > request.revMin)
+            q = q.order(LinkModel.rev)
+        else:
+            q = q.order(LinkModel.timestamp, LinkModel.key)
 
         # Filter on delete
         if not request.showDeleted:
             q = q.filter(LinkModel.deleted == False)
 
-        # Filter on timestamp
-        if (request.timestampMin is not None and
+        # Continue after the token, or filter on timestamp
+        cursor = None
+        if request.revMin is not None:
+            # The revision is the cursor
+            pass
+        elif request.pageToken:
+            cursor = decode_page_token(request.pageToken)
+            if cursor is None:
+                raise endpoints.BadRequestException('Invalid pageToken')
+            q = q.filter(LinkModel.timestamp >= cursor[0])
+        elif (request.timestampMin is not None and
             parse_timestamp(request.timestampMin) is not None):
             q = q.filter(LinkModel.timestamp >\
                          parse_timestamp(request.timestampMin))
 
+        # Old deleted links are purged. A client with a cursor from
+        # before that may have missed deletions, and has to list
+        # everything again without a cursor.
+        horizon = ndb.Key(LinkHorizonModel, current_user.email()).get()
+        schedule_purge(current_user, horizon)
+        # Links without a revision aren't listed by revMin until then
+        schedule_migration(current_user)
+        if request.showDeleted:
+            timestamp_min = None
+            if cursor is not None:
+                timestamp_min = cursor[0]
+            elif request.timestampMin is not None:
+                timestamp_min = parse_timestamp(request.timestampMin)
+            if behind_horizon(horizon, request.revMin, timestamp_min):
+                return LinkList(resyncRequired=True, hasMore=False)
+
+        page_size = None
+        if request.pageSize is not None:
+            if request.pageSize < 1:
+                raise endpoints.BadRequestException('Invalid pageSize')
+            page_size = min(MAX_PAGE_SIZE, request.pageSize)
+
         # Get the links
         links = []
         latest_time = None
+        last_link = None
+        has_more = False
         for link in q:
             ts = link.timestamp
+            # Skip what the client already got on the cursor's timestamp
+            if (cursor is not None and ts == cursor[0] and
+                link.key.id() <= cursor[1]):
+                continue
+
+            if page_size is not None and len(links) >= page_size:
+                has_more = True
+                break
+
             # Find the latest time
-            if latest_time is None:
+            if latest_time is None or ts > latest_time:
                 latest_time = ts
-            else:
-                delta = ts - latest_time
-                if delta.total_seconds() > 0:
-                    latest_time = ts
 
             # Append to results
-            links.append(Link(url=link.url, sha=link.sha,
-                              deleted=link.deleted,
-                              timestamp=datetime_to_string(ts)))
+            links.append(to_message(link))
+            last_link = link
 
         if latest_time is None:
             latest_time = datetime(1970, 1, 1, 0, 0)
 
+        # Stay put if nothing new was found
+        page_token = request.pageToken
+        if last_link is not None:
+            page_token = encode_page_token(last_link)
+
+        latest_rev = request.revMin
+        if request.revMin is not None and last_link is not None:
+            latest_rev = last_link.rev
+
         return LinkList(links=links,
-                        latestTimestamp=datetime_to_string(latest_time))
+                        latestTimestamp=datetime_to_string(latest_time),
+                        latestTimestampMs=datetime_to_millis(latest_time),
+                        nextPageToken=page_token,
+                        hasMore=has_more,
+                        latestRev=latest_rev)
+
+    @endpoints.method(BATCH_REQUEST, LinkList,
+                      name = 'link.batch',
+                      path = 'links/batch',
+                      http_method = 'POST')
+    def batch_links(self, request):
+        '''Adds and deletes several links at once. Links with
+        deleted set are deleted, all others are added. Conflicts are
+        resolved as described in store_link. Returns the links as they
+        are now stored.'''
+        current_user = endpoints.get_current_user()
+        if current_user is None:
+            raise endpoints.UnauthorizedException('Invalid token.')
+
+        for item in request.links:
+            if item.deleted and item.sha is None:
+                raise endpoints.BadRequestException('Must specify a sha')
+
+        stored = []
+        changed = []
+        for item in request.links:
+            link, changed_links = store_link(current_user, item)
+            if link is None:
+                # Nothing to delete
+                continue
+            stored.append(link)
+            changed.extend(changed_links)
+
+        # Notify through GCM
+        notified = set()
+        for link in changed:
+            if link.sha not in notified:
+                notified.add(link.sha)
+                send_link(link, request.regid)
+
+        # The latest version of every link involved, once
+        latest = {}
+        for link in stored + changed:
+            if link.sha not in latest or latest[link.sha].rev < link.rev:
+                latest[link.sha] = link
+        links = []
+        for link in stored + changed:
+            if link.sha in latest:
+                links.append(to_message(latest.pop(link.sha)))
+
+        return LinkList(links=links)
 
     @endpoints.method(GCMRegId, message_types.VoidMessage,
                       name = 'gcm.register',
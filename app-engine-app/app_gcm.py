@@ -1,20 +1,43 @@
 from __future__ import print_function, division
 from threading import Thread
 from functools import wraps
+from datetime import datetime
+import time
 from gcm import GCM
 
-from google.appengine.ext import ndb
+from google.appengine.api import memcache, taskqueue
+from google.appengine.ext import ndb, deferred
 
 gcm = GCM('Your API key here')
 
+# Users who get more than TICKLE_THRESHOLD pushes within TICKLE_WINDOW
+# seconds are sent a collapsible 'tickle' instead of every link. It is sent
+# at the end of a TICKLE_DELAY second slot, and the devices download what
+# changed.
+TICKLE_THRESHOLD = 10
+TICKLE_WINDOW = 60
+TICKLE_DELAY = 10
+# Pending tickles replace each other in GCM
+TICKLE = dict(type='tickle')
+TICKLE_COLLAPSE_KEY = 'links_changed'
+
 class GCMRegIdModel(ndb.Model):
     regid = ndb.StringProperty(required=True)
     userid = ndb.UserProperty(required=True)
 
+_EPOCH = datetime(1970, 1, 1)
+
+def _to_millis(datetime_object):
+    delta = datetime_object - _EPOCH
+    return ((delta.days * 86400 + delta.seconds) * 1000 +
+            delta.microseconds // 1000)
+
 def to_dict(link):
     return dict(sha=link.sha,
                 url=link.url,
                 timestamp=link.timestamp.isoformat(sep=" "),
+                timestampMs=_to_millis(link.timestamp),
+                rev=link.rev,
                 deleted=link.deleted)
 
 
@@ -23,7 +46,13 @@ def send_link(link, excludeid=None):
 
     Does not run in a separate thread because App-Engine did not
     seem to support that.
+
+    If the user gets too many pushes, a tickle is sent instead.
     '''
+    if _should_tickle(link.userid):
+        _schedule_tickle(link.userid)
+        return
+
     # Get devices
     reg_ids = []
     query = GCMRegIdModel.query(GCMRegIdModel.userid == link.userid)
@@ -43,6 +72,43 @@ def send_link(link, excludeid=None):
     _send(link.userid, reg_ids, to_dict(link))
 
 
+def _should_tickle(userid):
+    '''Counts a push to the user. Returns True if the user has had
+    more than TICKLE_THRESHOLD pushes in the current window.'''
+    window = int(time.time() // TICKLE_WINDOW)
+    count = memcache.incr('pushes:%s:%d' % (userid.user_id() or
+                                            userid.email(), window),
+                          initial_value=0)
+    # None if memcache is down, send the link as usual then
+    return count is not None and count > TICKLE_THRESHOLD
+
+
+def _schedule_tickle(userid):
+    '''Sends a tickle at the end of the current slot. Tasks are named
+    after the slot, so there is at most one per user and slot.'''
+    now = time.time()
+    slot = int(now // TICKLE_DELAY)
+    name = 'tickle-%s-%d' % (userid.user_id() or
+                             str(abs(hash(userid.email()))), slot)
+    try:
+        deferred.defer(_send_tickle, userid, _name=name,
+                       _countdown=(slot + 1) * TICKLE_DELAY - now)
+    except (taskqueue.TaskAlreadyExistsError,
+            taskqueue.TombstonedTaskError):
+        # Already covered
+        pass
+
+
+def _send_tickle(userid):
+    # The origin devices are not known, all devices get it
+    reg_ids = [reg_model.regid for reg_model in
+               GCMRegIdModel.query(GCMRegIdModel.userid == userid)]
+    if len(reg_ids) < 1:
+        return
+
+    _send(userid, reg_ids, TICKLE, collapse_key=TICKLE_COLLAPSE_KEY)
+
+
 def _remove_regid(regid):
     ndb.Key(GCMRegIdModel, regid).delete()
 
@@ -55,10 +121,11 @@ def _replace_regid(userid, oldid, newid):
     device.put()
 
 
-def _send(userid, rids, data):
+def _send(userid, rids, data, collapse_key=None):
     '''Send the data using GCM'''
     response = gcm.json_request(registration_ids=rids,
                                 data=data,
+                                collapse_key=collapse_key,
                                 delay_while_idle=True)
 
     # A device has switched registration id
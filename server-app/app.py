@@ -1,58 +1,167 @@
-import os, binascii
-from dateutil import parser as dateparser
+import os, binascii, base64
 from bottle import run, get, post, delete, install, HTTPError, request
+from bottle import default_app
 from bottle_sqlite import SQLitePlugin
-from dbsetup import init_db
+from dbsetup import init_db, NOW_MS
 from google_auth import gauth
-from app_conf import DBNAME
-from app_gcm import send_link
+from app_conf import DBNAME, MAX_PAGE_SIZE, COMPAT_TIMESTAMPS
+from app_gcm import send_link, start_workers, get_metrics
+from timestamps import timestamp_to_string, parse_timestamp
+from gzip_middleware import GzipMiddleware
+from tombstones import behind_horizon, start_purger
 
 init_db(DBNAME)
+start_purger(DBNAME)
+start_workers()
 install(SQLitePlugin(dbfile=DBNAME))
 
 install(gauth)
 
 def to_dict(row):
-    return dict(sha=row['sha'],
-                url=row['url'],
-                timestamp=row['timestamp'],
-                # Convert integer to boolean
-                deleted=(1 == row['deleted']))
+    result = dict(sha=row['sha'],
+                  url=row['url'],
+                  timestampMs=row['timestamp'],
+                  rev=row['rev'],
+                  # Convert integer to boolean
+                  deleted=(1 == row['deleted']))
+    if COMPAT_TIMESTAMPS:
+        result['timestamp'] = timestamp_to_string(row['timestamp'])
+    return result
 
+def next_rev(db, userid):
+    '''Every change of a user's links gets the next revision of that
+    user, from the revisions table. Updating the counter locks the
+    database until the request commits, so concurrent changes get
+    different revisions.'''
+    db.execute('INSERT OR IGNORE INTO revisions (userid, rev) VALUES (?, 0)',
+               [userid])
+    db.execute('UPDATE revisions SET rev = rev + 1 WHERE userid IS ?',
+               [userid])
+    return db.execute('SELECT rev FROM revisions WHERE userid IS ?',
+                      [userid]).fetchone()[0]
+
+
+def encode_page_token(row):
+    '''Returns an opaque token pointing just after the given row'''
+    return base64.urlsafe_b64encode('{}|{}'.format(row['timestamp'],
+                                                   row['_id']))
+
+def decode_page_token(token):
+    '''Returns the (timestamp, _id) pair in the token, or None
+    if the token is not valid. Tokens from before timestamps were
+    integers have the timestamp as a string.'''
+    try:
+        timestamp, _id = base64.urlsafe_b64decode(str(token)).rsplit('|', 1)
+        timestamp = parse_timestamp(timestamp)
+        if timestamp is None:
+            return None
+        return timestamp, int(_id)
+    except (TypeError, ValueError):
+        return None
 
 @get('/')
 @get('/links')
 def list_links(db, userid):
-    '''Return a complete list of all links'''
+    '''Return a complete list of all links.
+
+    Supports paging with pageSize and pageToken. The response always
+    includes a nextPageToken pointing after the last returned link.
+    Passing it back later continues from there, which makes it usable
+    as a delta sync cursor as well. hasMore is true if the page was full
+    and there are more links to fetch right away.
+
+    With revMin, only links changed after that revision are returned,
+    in revision order, and latestRev is the revision to pass next time.
+    That is the preferred way to sync, a link is then sent again only
+    if it has changed.
+
+    Deleted links are purged after a while. If showDeleted is set and
+    the client's cursor is from before that, it may have missed
+    deletions. Only resyncRequired is then returned, and the client
+    should list everything again without a cursor.'''
     args = [userid]
 
     deleted_part = ' AND deleted IS 0'
-    if ('showDeleted' in request.query and
-        'true' == request.query['showDeleted']):
+    show_deleted = ('showDeleted' in request.query and
+                    'true' == request.query['showDeleted'])
+    if show_deleted:
         deleted_part = ''
 
-    timestamp_part = ''
-    if 'timestampMin' in request.query:
-        timestamp_part = ' AND timestamp > ?'
-        args.append(request.query['timestampMin'])
+    # Rows are ordered on (timestamp, _id) so links sharing the same
+    # timestamp are neither skipped nor repeated between pages.
+    cursor_part = ''
+    order_part = ' ORDER BY timestamp, _id'
+    page_token = None
+    rev_min = None
+    if 'revMin' in request.query:
+        try:
+            rev_min = int(request.query['revMin'])
+        except ValueError:
+            return HTTPError(400, "Invalid revMin")
+        cursor_part = ' AND rev > ?'
+        order_part = ' ORDER BY rev'
+        args.append(rev_min)
+    elif 'pageToken' in request.query and request.query['pageToken']:
+        page_token = request.query['pageToken']
+        cursor = decode_page_token(page_token)
+        if cursor is None:
+            return HTTPError(400, "Invalid pageToken")
+        cursor_part = ' AND (timestamp > ? OR (timestamp IS ? AND _id > ?))'
+        args.extend([cursor[0], cursor[0], cursor[1]])
+    elif 'timestampMin' in request.query:
+        timestamp_min = parse_timestamp(request.query['timestampMin'])
+        if timestamp_min is None:
+            return HTTPError(400, "Invalid timestampMin")
+        cursor_part = ' AND timestamp > ?'
+        args.append(timestamp_min)
+
+    if show_deleted:
+        timestamp_min = None
+        if page_token is not None:
+            timestamp_min = cursor[0]
+        elif 'timestampMin' in request.query:
+            timestamp_min = args[-1]
+        if behind_horizon(db, userid, rev_min, timestamp_min):
+            return dict(resyncRequired=True, hasMore=False, links=[])
+
+    page_size = None
+    if 'pageSize' in request.query:
+        try:
+            page_size = min(MAX_PAGE_SIZE, int(request.query['pageSize']))
+        except ValueError:
+            return HTTPError(400, "Invalid pageSize")
+        if page_size < 1:
+            return HTTPError(400, "Invalid pageSize")
 
-    latest_time = None
-    links = []
     stmt = 'SELECT * from links WHERE userid IS ?'
-    stmt += deleted_part + timestamp_part
-    for row in db.execute(stmt,
-                          args):
-        links.append(to_dict(row))
-        # Keep track of the latest timestamp here
-        if latest_time is None:
-            latest_time = row['timestamp']
-        else:
-            delta = dateparser.parse(row['timestamp']) - dateparser.parse(latest_time)
-            if delta.total_seconds() > 0:
-                latest_time = row['timestamp']
-
-    return dict(latestTimestamp=latest_time,
-                links=links)
+    stmt += deleted_part + cursor_part + order_part
+    if page_size is not None:
+        # Fetch one extra to know if there are more
+        stmt += ' LIMIT ?'
+        args.append(page_size + 1)
+
+    rows = db.execute(stmt, args).fetchall()
+    has_more = page_size is not None and len(rows) > page_size
+    if has_more:
+        rows = rows[:page_size]
+
+    links = [to_dict(row) for row in rows]
+    # Timestamps are integers, so no parsing to find the latest
+    latest_time = max(row['timestamp'] for row in rows) if rows else None
+
+    # Stay put if nothing new was found
+    if rows:
+        page_token = encode_page_token(rows[-1])
+
+    result = dict(latestTimestampMs=latest_time,
+                  nextPageToken=page_token,
+                  hasMore=has_more,
+                  links=links)
+    if COMPAT_TIMESTAMPS:
+        result['latestTimestamp'] = timestamp_to_string(latest_time)
+    if rev_min is not None:
+        result['latestRev'] = rows[-1]['rev'] if rows else rev_min
+    return result
 
 @get('/links/<sha>')
 def get_link(db, sha, userid):
@@ -70,15 +179,18 @@ def get_link(db, sha, userid):
 def delete_link(db, sha, userid):
     '''Deletes a specific link from the list.
     On success, returns an empty response'''
-    db.execute('UPDATE links SET deleted = 1, timestamp = CURRENT_TIMESTAMP \
-    WHERE sha IS ? AND userid is ?', [sha, userid])
+    row = db.execute('SELECT * from links WHERE sha IS ? AND userid IS ?',
+                     [sha, userid]).fetchone()
 
-    if db.total_changes > 0:
+    if row is not None and store_link(db, userid, row, dict(sha=sha,
+                                                          deleted=True)):
         # Regid is optional to provide from the client
         # If present, it will not receive a GCM msg
         regid = None
         if 'regid' in request.query:
             regid = request.query['regid']
+        # Before the push, which reads it from another connection
+        db.commit()
         send_link(userid, sha, regid)
 
     return {}
@@ -94,26 +206,175 @@ def add_link(db, userid):
         or len(request.json['url']) < 1):
         return HTTPError(400, "Must specify a url")
 
+    link = request.json
     # Sha is optional, generate if not present
-    if 'sha' not in request.json:
-        request.json['sha'] = binascii.b2a_hex(os.urandom(15))
+    if link.get('sha') is None:
+        link['sha'] = binascii.b2a_hex(os.urandom(15))
 
-    args = [userid,
-            request.json['url'],
-            request.json['sha']]
-    stmt = 'INSERT INTO links (userid, url, sha) VALUES(?, ?, ?)'
+    changed = store_link(db, userid, find_link(db, userid, link), link)
+    row = find_stored_link(db, userid, link)
 
-    db.execute(stmt, args)
+    # Regid is optional to provide from the client
+    # If present, it will not receive a GCM msg
+    regid = None
+    if 'regid' in request.query:
+        regid = request.query['regid']
+    # Before the pushes, which read the links from another connection
+    db.commit()
+    for sha in changed:
+        send_link(userid, sha, regid)
+
+    return to_dict(row)
+
+
+@post('/links/batch')
+def batch_links(db, userid):
+    '''Adds and deletes several links in one request. Links
+    with deleted set to true are deleted, all others are added.
+    Conflicts are resolved as described in store_link.
+    On success, returns the entries as they are now stored. Links
+    which were already stored under another sha are returned with
+    the stored sha.'''
+    if 'application/json' not in request.content_type:
+        return HTTPError(415, "Only json is accepted")
+    if ('links' not in request.json or
+        not isinstance(request.json['links'], list)):
+        return HTTPError(400, "Must specify a list of links")
+
+    # Validate everything before writing anything
+    for link in request.json['links']:
+        if (not link.get('deleted', False) and
+            (link.get('url') is None or len(link['url']) < 1)):
+            return HTTPError(400, "Must specify a url")
+        if link.get('deleted', False) and link.get('sha') is None:
+            return HTTPError(400, "Must specify a sha to delete")
+
+    # Regid is optional to provide from the client
+    # If present, it will not receive a GCM msg
+    regid = None
+    if 'regid' in request.query:
+        regid = request.query['regid']
+
+    changed = []
+    stored = []
+    for link in request.json['links']:
+        # Sha is optional, generate if not present
+        if link.get('sha') is None:
+            link['sha'] = binascii.b2a_hex(os.urandom(15))
+        row = find_link(db, userid, link)
+        if row is None and link.get('deleted', False):
+            # Nothing to delete
+            continue
+        changed.extend(store_link(db, userid, row, link))
+        stored.append(link)
+
+    # Look them up after all writes, a later link may have changed
+    # an earlier one
+    links = []
+    shas = set()
+    for link in stored:
+        row = find_stored_link(db, userid, link)
+        if row is not None and row['sha'] not in shas:
+            shas.add(row['sha'])
+            links.append(to_dict(row))
+    # Links changed as a side effect of a conflict
+    for sha in changed:
+        if sha not in shas:
+            shas.add(sha)
+            links.append(to_dict(find_link(db, userid, dict(sha=sha))))
+
+    # Before the pushes, which read the links from another connection
+    db.commit()
+    for sha in set(changed):
+        send_link(userid, sha, regid)
+
+    return dict(links=links)
+
+
+def find_link(db, userid, link):
+    '''Returns the stored row of the link, by sha or else by url.
+    None if there is no such link.'''
+    row = db.execute('SELECT * from links WHERE sha IS ? AND userid IS ?',
+                     [link['sha'], userid]).fetchone()
+    if row is None and link.get('url') is not None:
+        row = db.execute('SELECT * from links WHERE url IS ? AND userid IS ?',
+                         [link['url'], userid]).fetchone()
+    return row
 
-    if db.total_changes > 0:
-        # Regid is optional to provide from the client
-        # If present, it will not receive a GCM msg
-        regid = None
-        if 'regid' in request.query:
-            regid = request.query['regid']
-        send_link(userid, request.json['sha'], regid)
 
-    return get_link(db, request.json['sha'], userid)
+def find_stored_link(db, userid, link):
+    '''Returns the row now holding the link after store_link,
+    which for an added link may have another sha.'''
+    if link.get('deleted', False) or link.get('url') is None:
+        return db.execute('SELECT * from links WHERE sha IS ? AND userid IS ?',
+                          [link['sha'], userid]).fetchone()
+    return db.execute('SELECT * from links WHERE url IS ? AND userid IS ?',
+                      [link['url'], userid]).fetchone()
+
+
+def store_link(db, userid, row, link):
+    '''Applies a link sent by a client to its stored row, found with
+    find_link. Returns the shas of the links that changed, which may be
+    more than one. Each change gets a new
+    revision, unchanged links keep theirs so they are not synced again.
+
+    The client sends the revision its change is based on as rev. If
+    that is older than the stored one, another device has changed the
+    link in between, and every device must come to the same result:
+
+    - A stale delete loses against the other change, the link is kept.
+    - A stale add or edit wins over a delete, the link is restored
+      rather than lost.
+    - Otherwise the latest change to arrive wins.
+
+    Clients that don't send rev always win. A url which is already
+    stored under another sha stays under that sha, the client adopts it
+    from the response. Links are never replaced, as that would make the
+    replaced sha disappear from other devices without a trace.'''
+    if row is None:
+        db.execute('INSERT INTO links (userid, url, sha, timestamp, rev) \
+        VALUES(?, ?, ?, ' + NOW_MS + ', ?)',
+                   [userid, link['url'], link['sha'], next_rev(db, userid)])
+        return [link['sha']]
+
+    base = link.get('rev')
+    stale = base is not None and base < row['rev']
+
+    if link.get('deleted', False):
+        if row['deleted'] or stale:
+            return []
+        _update_link(db, userid, row['_id'], row['url'], 1)
+        return [row['sha']]
+
+    if row['url'] == link['url']:
+        # Adding what is already stored is a no-op
+        if not row['deleted']:
+            return []
+        _update_link(db, userid, row['_id'], row['url'], 0)
+        return [row['sha']]
+
+    # The url was edited. If another link already has the new url,
+    # the edited link becomes that link.
+    other = db.execute('SELECT * from links WHERE url IS ? AND userid IS ?',
+                       [link['url'], userid]).fetchone()
+    if other is not None:
+        changed = []
+        if not row['deleted']:
+            _update_link(db, userid, row['_id'], row['url'], 1)
+            changed.append(row['sha'])
+        if other['deleted']:
+            _update_link(db, userid, other['_id'], other['url'], 0)
+            changed.append(other['sha'])
+        return changed
+
+    _update_link(db, userid, row['_id'], link['url'], 0)
+    return [row['sha']]
+
+
+def _update_link(db, userid, _id, url, deleted):
+    db.execute('UPDATE links SET url = ?, deleted = ?, \
+    timestamp = ' + NOW_MS + ', rev = ? WHERE _id IS ?',
+               [url, deleted, next_rev(db, userid), _id])
 
 
 @post('/registergcm')
@@ -135,6 +396,16 @@ def register_gcm(db, userid):
     else:
         return HTTPError(500, "Adding regid to DB failed")
 
+@get('/gcm/metrics')
+def gcm_metrics(userid):
+    '''Returns the push counters and backlog, see
+    app_gcm.get_metrics. They cover all users, so they are only served
+    to requests from the server itself.'''
+    if request.remote_addr not in ('127.0.0.1', '::1'):
+        return HTTPError(403, "Only served locally")
+    return get_metrics()
+
 if __name__ == '__main__':
     # Restart server automatically when this file changes
-    run(host='0.0.0.0', port=5500, reloader=True, debug=True)
+    run(app=GzipMiddleware(default_app()),
+        host='0.0.0.0', port=5500, reloader=True, debug=True)
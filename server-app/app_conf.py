@@ -4,3 +4,32 @@ from app_conf import DBNAME'''
 
 DBNAME = 'test.db'
 GCM_API_KEY = 'Your key here'
+# Largest number of links returned in one page by list_links
+MAX_PAGE_SIZE = 1000
+# Users who get more than TICKLE_THRESHOLD pushes within TICKLE_WINDOW
+# seconds are sent a collapsible 'tickle' instead of every link. The tickle
+# is sent TICKLE_DELAY seconds after the first change, and the devices
+# download what changed.
+TICKLE_THRESHOLD = 10
+TICKLE_WINDOW = 60
+TICKLE_DELAY = 10
+# Pushes are sent by GCM_WORKERS threads from a queue of at most
+# GCM_QUEUE_SIZE users. Changes by a user within GCM_COALESCE_WINDOW
+# seconds are sent together in one message, or as a tickle if they don't
+# fit in one.
+GCM_WORKERS = 4
+GCM_QUEUE_SIZE = 1000
+GCM_COALESCE_WINDOW = 0.5
+# Where GCM requests go. None for Google's server. Point it at fake_gcm.py,
+# 'http://localhost:5501/gcm/send', to test without sending anything.
+GCM_URL = None
+# Deleted links are kept TOMBSTONE_TTL seconds so devices can download the
+# deletion, then removed. Devices which haven't synced since are told to
+# download everything again. Checked every PURGE_INTERVAL seconds.
+TOMBSTONE_TTL = 30 * 24 * 3600
+PURGE_INTERVAL = 3600
+# Timestamps are milliseconds since the epoch, sent as timestampMs and
+# latestTimestampMs. With COMPAT_TIMESTAMPS, clients from before that
+# also get them as 'YYYY-MM-DD HH:MM:SS' strings in timestamp and
+# latestTimestamp.
+COMPAT_TIMESTAMPS = True
@@ -1,86 +1,279 @@
 from __future__ import print_function, division
-from threading import Thread
-from functools import wraps
+from threading import Thread, Condition
+from collections import deque
+from itertools import count
+from Queue import Queue
+import heapq
+import json
+import time
 import sqlite3 as sql
 from gcm import GCM
-from app_conf import GCM_API_KEY, DBNAME
+from app_conf import GCM_API_KEY, GCM_URL, DBNAME, COMPAT_TIMESTAMPS
+from app_conf import TICKLE_THRESHOLD, TICKLE_WINDOW, TICKLE_DELAY
+from app_conf import GCM_WORKERS, GCM_QUEUE_SIZE, GCM_COALESCE_WINDOW
 from dbsetup import init_db
+from timestamps import timestamp_to_string
 
 init_db(DBNAME)
 
-gcm = GCM(GCM_API_KEY)
+if GCM_URL is None:
+    gcm = GCM(GCM_API_KEY)
+else:
+    gcm = GCM(GCM_API_KEY, url=GCM_URL)
+
+# Largest number of registration ids GCM takes in one request
+MAX_REGIDS = 1000
+# Largest data payload GCM takes, in bytes
+MAX_PAYLOAD = 4096
+
+# Several links changed together. links is the list of them as JSON, in
+# the order of their revisions.
+LINKS_TYPE = 'links'
+
+# Tells the devices to download changes. Pending tickles replace each
+# other in GCM, so an offline device gets only one.
+TICKLE = dict(type='tickle')
+TICKLE_COLLAPSE_KEY = 'links_changed'
+
+# Jobs for the workers
+SEND_LINKS = 'links'
+SEND_TICKLE = 'tickle'
+
+# Guards everything below. The dispatcher waits on it for timers.
+_cond = Condition()
+# userid -> times of recent pushes
+_push_times = {}
+# When users without recent pushes are next removed from _push_times
+_next_prune = 0.0
+# userid -> time of the first change covered by the tickle waiting to be
+# sent
+_tickle_pending = {}
+# userid -> (time of the first change, {sha: excludeid}) of changes
+# waiting for their window to end
+_links_pending = {}
+# Heap of (due, seq, job, userid), put on the queue when due
+_timers = []
+_seq = count()
+_metrics = dict(pushes=0, regids=0, errors=0, coalesced=0,
+                send_ms_total=0.0, send_ms_max=0.0,
+                delay_ms_total=0.0, delay_ms_max=0.0)
+
+# (job, userid) for the workers. Bounded, the dispatcher waits when it is
+# full while new changes pile up on the users' pending ones.
+_queue = Queue(GCM_QUEUE_SIZE)
 
 def to_dict(row):
-    return dict(sha=row['sha'],
-                url=row['url'],
-                timestamp=row['timestamp'],
-                # Convert integer to boolean
-                deleted=(1 == row['deleted']))
-
-
-def async(func):
-    """
-    Runs the decorated function in a separate thread.
-    Returns the thread.
-
-    Example:
-    @async
-    def dowork():
-        print('Hello from another thread')
-
-    t = dowork()
-    t.join()
-    """
-    @wraps(func)
-    def async_func(*args, **kwargs):
-        t = Thread(target = func, args = args, kwargs = kwargs)
+    result = dict(sha=row['sha'],
+                  url=row['url'],
+                  timestampMs=row['timestamp'],
+                  rev=row['rev'],
+                  # Convert integer to boolean
+                  deleted=(1 == row['deleted']))
+    if COMPAT_TIMESTAMPS:
+        result['timestamp'] = timestamp_to_string(row['timestamp'])
+    return result
+
+
+def start_workers():
+    '''Starts the dispatcher and GCM_WORKERS workers which send what
+    send_link queues. Call once.'''
+    threads = [Thread(target=_dispatch)]
+    threads.extend(Thread(target=_work) for i in range(GCM_WORKERS))
+    for t in threads:
+        t.daemon = True
         t.start()
-        return t
+    return threads
 
-    return async_func
 
-@async
 def send_link(userid, sha, excludeid=None):
-    '''This method runs in a separate thread as to not block
-    the main app with this networking IO.
+    '''Queues the link specified by the sha for the users devices,
+    except excludeid, the origin device. Returns at once.
 
-    Transmits the link specified by the sha to the users devices.
+    Call once the change is committed, the worker reads the link from
+    the database. It is sent GCM_COALESCE_WINDOW seconds later, together
+    with the other links the user changed until then. If the user gets
+    too many pushes, or the links don't fit in one message, a tickle is
+    sent instead.
     '''
-    db = _get_db()
-    with db:
-        c = db.cursor()
-        # Get link
-        link = db.execute('SELECT * FROM links WHERE\
-        userid IS ? AND sha IS ?', [userid, sha]).fetchone()
+    now = time.time()
+    with _cond:
+        if userid in _tickle_pending:
+            # Covered by the tickle
+            _metrics['coalesced'] += 1
+            return
+        if _should_tickle(userid, now):
+            _schedule_tickle(userid, now)
+            return
 
-        if link is None:
+        pending = _links_pending.get(userid)
+        if pending is None:
+            _links_pending[userid] = (now, {sha: excludeid})
+            _schedule(now + GCM_COALESCE_WINDOW, SEND_LINKS, userid)
             return
+        shas = pending[1]
+        # Changed from two devices, both need it
+        if sha in shas and shas[sha] != excludeid:
+            excludeid = None
+        shas[sha] = excludeid
+        _metrics['coalesced'] += 1
 
-        data = to_dict(link)
-        print("Sending data:", data)
 
-        # Get devices
-        regrows = db.execute('SELECT * FROM gcm WHERE userid IS ?', [userid])\
-                 .fetchall()
+def get_metrics():
+    '''Counters of the pushes since the server started, and the
+    current backlog.'''
+    with _cond:
+        result = dict(_metrics)
+        result['users_waiting'] = len(_links_pending) + len(_tickle_pending)
+    result['queue_depth'] = _queue.qsize()
+    result['workers'] = GCM_WORKERS
+    pushes = result['pushes']
+    # Send is the GCM request, delay from the first change to the push
+    result['send_ms_avg'] = result.pop('send_ms_total') / pushes \
+                            if pushes else 0.0
+    result['delay_ms_avg'] = result.pop('delay_ms_total') / pushes \
+                             if pushes else 0.0
+    return result
 
-        if len(regrows) < 1:
-            return
 
-        reg_ids = []
-        for row in regrows:
-            reg_ids.append(row['regid'])
+def _should_tickle(userid, now):
+    '''Records a push to the user. Returns True if the user has had
+    more than TICKLE_THRESHOLD pushes within TICKLE_WINDOW seconds.
+    Call with _cond held.'''
+    _prune_push_times(now)
+    times = _push_times.setdefault(userid, deque())
+    times.append(now)
+    while times[0] < now - TICKLE_WINDOW:
+        times.popleft()
+    return len(times) > TICKLE_THRESHOLD
+
+
+def _prune_push_times(now):
+    '''Forgets the users without pushes in the last TICKLE_WINDOW
+    seconds, at most once per window. Call with _cond held.'''
+    global _next_prune
+    if now < _next_prune:
+        return
+    _next_prune = now + TICKLE_WINDOW
+    idle = [userid for userid, times in _push_times.items()
+            if times[-1] < now - TICKLE_WINDOW]
+    for userid in idle:
+        del _push_times[userid]
+
+
+def _schedule_tickle(userid, now):
+    '''Sends a tickle in TICKLE_DELAY seconds, unless one is
+    already waiting. Changes until then are covered by it.
+    Call with _cond held.'''
+    if userid in _tickle_pending:
+        return
+    _tickle_pending[userid] = now
+    _schedule(now + TICKLE_DELAY, SEND_TICKLE, userid)
+
+
+def _schedule(due, job, userid):
+    '''Call with _cond held.'''
+    heapq.heappush(_timers, (due, next(_seq), job, userid))
+    _cond.notify()
+
 
-        # Dont send to origin device, if specified
+def _dispatch():
+    '''Moves jobs to the queue when they are due.'''
+    while True:
+        with _cond:
+            now = time.time()
+            while not _timers or _timers[0][0] > now:
+                _cond.wait(_timers[0][0] - now if _timers else None)
+                now = time.time()
+            due, seq, job, userid = heapq.heappop(_timers)
+        _queue.put((job, userid))
+
+
+def _work():
+    '''Sends the jobs on the queue, with a database connection of its
+    own.'''
+    db = _get_db()
+    while True:
+        job, userid = _queue.get()
         try:
-            reg_ids.remove(excludeid)
-        except ValueError:
-            pass # not in list, or None
+            if job == SEND_TICKLE:
+                with _cond:
+                    # Changes from here on need another tickle
+                    since = _tickle_pending.pop(userid, None)
+                if since is not None:
+                    _send_tickle(db, userid, since)
+            else:
+                _send_links(db, userid)
+        except Exception as e:
+            # The devices get the changes on their next sync anyway
+            with _cond:
+                _metrics['errors'] += 1
+            print("Push to", userid, "failed:", e)
+
+
+def _send_links(db, userid):
+    '''Transmits the pending links of the user to the users devices,
+    all of them in one message. Devices don't get the links they sent
+    themselves, so those with the same links share a message.'''
+    with _cond:
+        since, shas = _links_pending.pop(userid, (None, None))
+        if shas is None or userid in _tickle_pending:
+            # Sent already, or covered by a tickle
+            return
+
+    with db:
+        links = {}
+        for sha in shas:
+            link = db.execute('SELECT * FROM links WHERE\
+            userid IS ? AND sha IS ?', [userid, sha]).fetchone()
+            if link is not None:
+                links[sha] = to_dict(link)
+        regids = [row['regid'] for row in
+                  db.execute('SELECT regid FROM gcm WHERE userid IS ?',
+                             [userid])]
+
+    # Devices by the links they get
+    groups = {}
+    for regid in regids:
+        wanted = frozenset(sha for sha in links if shas[sha] != regid)
+        if wanted:
+            groups.setdefault(wanted, []).append(regid)
+
+    for wanted, reg_ids in groups.items():
+        data = _links_message([links[sha] for sha in wanted])
+        if data is None:
+            # The devices download them instead
+            _send(db, userid, reg_ids, TICKLE, since,
+                  collapse_key=TICKLE_COLLAPSE_KEY)
+        else:
+            _send(db, userid, reg_ids, data, since)
+
 
+def _links_message(links):
+    '''The data of a message with the links, or None if it is larger
+    than GCM takes. A single link is sent as its fields, like before
+    there were several.'''
+    if len(links) == 1:
+        data = links[0]
+    else:
+        links = sorted(links, key=lambda link: link['rev'])
+        data = dict(type=LINKS_TYPE,
+                    links=json.dumps(links, separators=(',', ':')))
+    if len(json.dumps(data, separators=(',', ':'))) > MAX_PAYLOAD:
+        return None
+    return data
+
+
+def _send_tickle(db, userid, since):
+    with db:
+        regrows = db.execute('SELECT regid FROM gcm WHERE userid IS ?',
+                             [userid]).fetchall()
+    # The origin devices are not known, all devices get it
+    reg_ids = [row['regid'] for row in regrows]
     if len(reg_ids) < 1:
         return
 
-    print("Sending to:", len(reg_ids))
-    _send(userid, reg_ids, data)
+    _send(db, userid, reg_ids, TICKLE, since,
+          collapse_key=TICKLE_COLLAPSE_KEY)
 
 
 def _get_db():
@@ -89,38 +282,53 @@ def _get_db():
     return db
 
 
-def _remove_regid(userid, regid):
-    db = _get_db()
+def _remove_regid(db, userid, regid):
     with db:
-        c = db.cursor()
-        c.execute('DELETE FROM gcm WHERE userid IS ? AND regid IS ?',
-                  [userid, regid])
+        db.execute('DELETE FROM gcm WHERE userid IS ? AND regid IS ?',
+                   [userid, regid])
 
 
-def _replace_regid(userid, oldid, newid):
-    db = _get_db()
+def _replace_regid(db, userid, oldid, newid):
     with db:
-        c = db.cursor()
-        c.execute('UPDATE gcm SET regid=? WHERE userid IS ? AND regid IS ?',
-                  [newid, userid, oldid])
-
-
-def _send(userid, rids, data):
-    '''Send the data using GCM'''
-    response = gcm.json_request(registration_ids=rids,
-                                data=data,
-                                delay_while_idle=True)
-    # A device has switched registration id
-    if 'canonical' in response:
-        for reg_id, canonical_id in response['canonical'].items():
-            # Repace reg_id with canonical_id in your database
-            _replace_regid(userid, reg_id, canonical_id)
-
-    # Handling errors
-    if 'errors' in response:
-        for error, reg_ids in response['errors'].items():
-            # Check for errors and act accordingly
-            if error is 'NotRegistered':
-                # Remove reg_ids from database
-                for regid in reg_ids:
-                    _remove_regid(userid, regid)
+        db.execute('UPDATE gcm SET regid=? WHERE userid IS ? AND regid IS ?',
+                   [newid, userid, oldid])
+
+
+def _record_send(start, since, regids):
+    now = time.time()
+    send_ms = (now - start) * 1000
+    delay_ms = (now - since) * 1000
+    with _cond:
+        _metrics['pushes'] += 1
+        _metrics['regids'] += regids
+        _metrics['send_ms_total'] += send_ms
+        _metrics['send_ms_max'] = max(_metrics['send_ms_max'], send_ms)
+        _metrics['delay_ms_total'] += delay_ms
+        _metrics['delay_ms_max'] = max(_metrics['delay_ms_max'], delay_ms)
+
+
+def _send(db, userid, rids, data, since, collapse_key=None):
+    '''Send the data using GCM, as many requests as it takes.
+    since is the time of the first change sent.'''
+    for i in range(0, len(rids), MAX_REGIDS):
+        chunk = rids[i:i + MAX_REGIDS]
+        start = time.time()
+        response = gcm.json_request(registration_ids=chunk,
+                                    data=data,
+                                    collapse_key=collapse_key,
+                                    delay_while_idle=True)
+        _record_send(start, since, len(chunk))
+        # A device has switched registration id
+        if 'canonical' in response:
+            for reg_id, canonical_id in response['canonical'].items():
+                # Repace reg_id with canonical_id in your database
+                _replace_regid(db, userid, reg_id, canonical_id)
+
+        # Handling errors
+        if 'errors' in response:
+            for error, reg_ids in response['errors'].items():
+                # Check for errors and act accordingly
+                if error == 'NotRegistered':
+                    # Remove reg_ids from database
+                    for regid in reg_ids:
+                        _remove_regid(db, userid, regid)
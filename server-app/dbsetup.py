@@ -2,6 +2,11 @@ import sqlite3 as sql
 import sys
 from app_conf import DBNAME
 
+# Now in milliseconds since the epoch, as an SQL expression. Timestamps
+# are always set with it, tables created before they were integers
+# still have a text default.
+NOW_MS = "CAST(ROUND((julianday('now') - 2440587.5) * 86400000) AS INTEGER)"
+
 _CREATE_TABLE = \
 """CREATE TABLE IF NOT EXISTS links
   (_id INTEGER PRIMARY KEY,
@@ -9,12 +14,49 @@ _CREATE_TABLE = \
   sha TEXT NOT NULL,
   url TEXT NOT NULL,
   deleted INTEGER NOT NULL DEFAULT 0,
-  timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  timestamp INTEGER NOT NULL DEFAULT 0,
+  rev INTEGER NOT NULL DEFAULT 0,
 
   UNIQUE(userid, url) ON CONFLICT REPLACE,
   UNIQUE(userid, sha) ON CONFLICT REPLACE)
 """
 
+# Serves the paged (timestamp, _id) ordering of list_links
+_CREATE_LINKS_INDEX = \
+"""CREATE INDEX IF NOT EXISTS links_userid_timestamp
+  ON links (userid, timestamp, _id)
+"""
+
+# Serves the revision ordering of list_links
+_CREATE_REV_INDEX = \
+"""CREATE INDEX IF NOT EXISTS links_userid_rev
+  ON links (userid, rev)
+"""
+
+# Serves the purge of old deleted links
+_CREATE_DELETED_INDEX = \
+"""CREATE INDEX IF NOT EXISTS links_deleted_timestamp
+  ON links (deleted, timestamp)
+"""
+
+# The newest deleted link purged per user. Devices which synced
+# before it may have missed deletions.
+_CREATE_HORIZONS_TABLE = \
+"""CREATE TABLE IF NOT EXISTS horizons
+  (userid TEXT PRIMARY KEY,
+  rev INTEGER NOT NULL DEFAULT 0,
+  timestamp INTEGER NOT NULL)
+"""
+
+# The latest revision given out per user. Every change of a link gets
+# the next one. It never goes back, also when the links with the latest
+# revisions are purged, so a revision is never given out twice.
+_CREATE_REVISIONS_TABLE = \
+"""CREATE TABLE IF NOT EXISTS revisions
+  (userid TEXT PRIMARY KEY,
+  rev INTEGER NOT NULL DEFAULT 0)
+"""
+
 _CREATE_GCM_TABLE = \
 """CREATE TABLE IF NOT EXISTS gcm
   (_id INTEGER PRIMARY KEY,
@@ -30,8 +72,51 @@ def init_db(filename=DBNAME):
     with con:
         cur = con.cursor()
         cur.execute(_CREATE_TABLE)
+        _add_rev_column(cur)
+        cur.execute(_CREATE_LINKS_INDEX)
+        cur.execute(_CREATE_REV_INDEX)
+        cur.execute(_CREATE_DELETED_INDEX)
+        cur.execute(_CREATE_HORIZONS_TABLE)
+        _convert_timestamps(cur)
+        cur.execute(_CREATE_REVISIONS_TABLE)
+        _init_revisions(cur)
         cur.execute(_CREATE_GCM_TABLE)
 
+def _add_rev_column(cur):
+    '''Upgrades a database created before links had revisions.
+    Existing links get their _id as revision, which is unique and
+    increasing, so each user's links are still ordered by revision.'''
+    columns = [row[1] for row in cur.execute('PRAGMA table_info(links)')]
+    if 'rev' in columns:
+        return
+    cur.execute('ALTER TABLE links ADD COLUMN rev INTEGER NOT NULL DEFAULT 0')
+    cur.execute('UPDATE links SET rev = _id')
+
+def _convert_timestamps(cur):
+    '''Upgrades a database created when timestamps were text, to
+    milliseconds since the epoch. The declared column types stay, they
+    store integers just as well. user_version records that it is done.'''
+    if cur.execute('PRAGMA user_version').fetchone()[0] >= 1:
+        return
+    for table in ('links', 'horizons'):
+        cur.execute('UPDATE ' + table + ' SET timestamp = COALESCE(' +
+                    "CAST(ROUND((julianday(timestamp) - 2440587.5) * "
+                    "86400000) AS INTEGER), 0) WHERE typeof(timestamp) = 'text'")
+    cur.execute('PRAGMA user_version = 1')
+
+def _init_revisions(cur):
+    '''Upgrades a database created when the next revision was found
+    from the links themselves. Each user continues after the latest
+    revision of their links, or of the purged ones, whichever is
+    higher.'''
+    if cur.execute('PRAGMA user_version').fetchone()[0] >= 2:
+        return
+    cur.execute('''INSERT OR IGNORE INTO revisions (userid, rev)
+    SELECT userid, MAX(rev) FROM
+    (SELECT userid, rev FROM links UNION ALL SELECT userid, rev FROM horizons)
+    GROUP BY userid''')
+    cur.execute('PRAGMA user_version = 2')
+
 if __name__ == '__main__':
     if len(sys.argv) > 1:
         init_db(sys.argv[1])
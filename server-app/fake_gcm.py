@@ -0,0 +1,79 @@
+'''A stand-in for the GCM server, to test pushes without sending
+anything. Run it and set GCM_URL in app_conf to
+'http://localhost:5501/gcm/send':
+
+    python fake_gcm.py
+
+Every registration id gets a message id, except ids starting with
+'unregistered', which get a NotRegistered error, and ids starting with
+'old', which get the id without 'old' as their canonical id.
+
+GET /gcm/messages lists what was sent, DELETE /gcm/messages clears it.
+'''
+from __future__ import print_function
+from threading import Lock
+from itertools import count
+import time
+from bottle import Bottle, run, request, HTTPError
+
+# Largest number of registration ids GCM takes in one request
+MAX_REGIDS = 1000
+# Seconds each request takes, like a real round trip
+DELAY = 0.05
+
+app = Bottle()
+
+_lock = Lock()
+_ids = count(1)
+_messages = []
+
+
+@app.post('/gcm/send')
+def send():
+    '''Answers like GCM does to a JSON request.'''
+    if not request.headers.get('Authorization', '').startswith('key='):
+        return HTTPError(401, "Missing key")
+    if request.json is None:
+        return HTTPError(400, "Only json is accepted")
+    reg_ids = request.json.get('registration_ids') or []
+    if len(reg_ids) < 1 or len(reg_ids) > MAX_REGIDS:
+        return HTTPError(400, "Between 1 and {} registration ids"
+                         .format(MAX_REGIDS))
+
+    time.sleep(DELAY)
+    results = []
+    with _lock:
+        for regid in reg_ids:
+            if regid.startswith('unregistered'):
+                results.append(dict(error='NotRegistered'))
+            elif regid.startswith('old'):
+                results.append(dict(message_id=str(next(_ids)),
+                                    registration_id=regid[len('old'):]))
+            else:
+                results.append(dict(message_id=str(next(_ids))))
+        _messages.append(request.json)
+
+    failure = len([r for r in results if 'error' in r])
+    canonical = len([r for r in results if 'registration_id' in r])
+    return dict(multicast_id=next(_ids),
+                success=len(results) - failure,
+                failure=failure,
+                canonical_ids=canonical,
+                results=results)
+
+
+@app.get('/gcm/messages')
+def list_messages():
+    with _lock:
+        return dict(messages=list(_messages))
+
+
+@app.delete('/gcm/messages')
+def clear_messages():
+    with _lock:
+        del _messages[:]
+    return {}
+
+
+if __name__ == '__main__':
+    run(app=app, host='localhost', port=5501, debug=True)
@@ -0,0 +1,86 @@
+"""Gzip compression of request and response bodies"""
+import zlib
+from io import BytesIO
+
+# Responses smaller than this, in bytes, are not compressed
+MIN_SIZE = 1024
+# Largest accepted request body after decompression
+MAX_BODY_SIZE = 10 * 1024 * 1024
+
+
+class GzipMiddleware(object):
+    """WSGI middleware which decompresses request bodies sent with
+    Content-Encoding: gzip, and compresses responses for clients
+    which accept it.
+
+    Use like so:
+    run(app=GzipMiddleware(default_app()))"""
+
+    def __init__(self, app):
+        self.app = app
+
+    def __call__(self, environ, start_response):
+        if environ.get('HTTP_CONTENT_ENCODING', '').lower() == 'gzip':
+            body = _gunzip(environ['wsgi.input'],
+                           int(environ.get('CONTENT_LENGTH') or 0))
+            if body is None:
+                start_response('400 Bad Request',
+                               [('Content-Type', 'text/plain')])
+                return ['Invalid or too large gzip body']
+            environ['wsgi.input'] = BytesIO(body)
+            environ['CONTENT_LENGTH'] = str(len(body))
+            del environ['HTTP_CONTENT_ENCODING']
+
+        if 'gzip' not in environ.get('HTTP_ACCEPT_ENCODING', ''):
+            return self.app(environ, start_response)
+
+        # Buffer the response to see if it is worth compressing
+        response = []
+        chunks = []
+        def _start_response(status, headers, exc_info=None):
+            response[:] = [status, headers, exc_info]
+            # For apps which write instead of returning the body. In
+            # order with what they return, so it goes in the same buffer.
+            return chunks.append
+
+        result = self.app(environ, _start_response)
+        try:
+            for data in result:
+                chunks.append(data)
+        finally:
+            if hasattr(result, 'close'):
+                result.close()
+        body = b''.join(chunks)
+
+        status, headers, exc_info = response
+        encoded = any(name.lower() == 'content-encoding'
+                      for name, value in headers)
+        if len(body) >= MIN_SIZE and not encoded:
+            body = _gzip(body)
+            headers = [(name, value) for name, value in headers
+                       if name.lower() != 'content-length']
+            headers.append(('Content-Encoding', 'gzip'))
+            headers.append(('Content-Length', str(len(body))))
+            headers.append(('Vary', 'Accept-Encoding'))
+
+        start_response(status, headers, exc_info)
+        return [body]
+
+
+def _gunzip(stream, length):
+    '''Returns the decompressed body, or None if it is not valid gzip
+    or larger than MAX_BODY_SIZE'''
+    # 16 + MAX_WBITS expects a gzip header
+    decompressor = zlib.decompressobj(16 + zlib.MAX_WBITS)
+    try:
+        body = decompressor.decompress(stream.read(length), MAX_BODY_SIZE)
+    except zlib.error:
+        return None
+    if decompressor.unconsumed_tail:
+        return None
+    return body
+
+
+def _gzip(data):
+    compressor = zlib.compressobj(6, zlib.DEFLATED, 16 + zlib.MAX_WBITS)
+    return compressor.compress(data) + compressor.flush()
@@ -0,0 +1,31 @@
+'''Timestamps are stored and sent as milliseconds since the epoch.
+Clients from before that send and expect 'YYYY-MM-DD HH:MM:SS'
+strings in UTC, these convert between the two.'''
+from datetime import datetime
+import calendar
+from dateutil import parser as dateparser
+
+
+def timestamp_to_string(timestamp):
+    '''Milliseconds since the epoch as 'YYYY-MM-DD HH:MM:SS', the
+    format timestamps had before they were integers. None stays None.'''
+    if timestamp is None:
+        return None
+    return datetime.utcfromtimestamp(timestamp // 1000).strftime(
+        '%Y-%m-%d %H:%M:%S')
+
+
+def parse_timestamp(value):
+    '''Milliseconds since the epoch, from either that number or a
+    timestamp string from before timestamps were integers. None if it is
+    neither.'''
+    try:
+        return int(value)
+    except ValueError:
+        pass
+    try:
+        parsed = dateparser.parse(value)
+    except (ValueError, OverflowError):
+        return None
+    return (calendar.timegm(parsed.utctimetuple()) * 1000 +
+            parsed.microsecond // 1000)
@@ -0,0 +1,69 @@
+'''Removes deleted links once devices have had TOMBSTONE_TTL seconds
+to download the deletion. The newest removed link of every user is
+remembered as the user's horizon. A device which last synced before
+the horizon may have missed deletions, and is told to download
+everything again, see list_links.'''
+from __future__ import print_function
+from threading import Thread
+import time
+import sqlite3 as sql
+from app_conf import DBNAME, TOMBSTONE_TTL, PURGE_INTERVAL
+
+_RAISE_HORIZONS = \
+"""INSERT OR REPLACE INTO horizons (userid, rev, timestamp)
+  SELECT links.userid,
+  MAX(MAX(links.rev), COALESCE(horizons.rev, 0)),
+  MAX(MAX(links.timestamp), COALESCE(horizons.timestamp, 0))
+  FROM links LEFT JOIN horizons ON horizons.userid IS links.userid
+  WHERE links.deleted = 1 AND links.timestamp < ?
+  GROUP BY links.userid
+"""
+
+_PURGE = 'DELETE FROM links WHERE deleted = 1 AND timestamp < ?'
+
+
+def purge(db):
+    '''Removes deleted links older than TOMBSTONE_TTL and raises the
+    horizons of their users, in one transaction. Returns the number of
+    links removed.'''
+    with db:
+        # Timestamps are milliseconds since the epoch
+        cutoff = int(time.time() * 1000) - TOMBSTONE_TTL * 1000
+        db.execute(_RAISE_HORIZONS, [cutoff])
+        return db.execute(_PURGE, [cutoff]).rowcount
+
+
+def behind_horizon(db, userid, rev_min=None, timestamp_min=None):
+    '''True if a client which has synced up to rev_min, or up to
+    timestamp_min for clients without revisions, may have missed
+    deletions which are now purged.'''
+    horizon = db.execute('SELECT * FROM horizons WHERE userid IS ?',
+                         [userid]).fetchone()
+    if horizon is None:
+        return False
+    if rev_min is not None:
+        return rev_min < horizon['rev']
+    if timestamp_min is not None:
+        return timestamp_min < horizon['timestamp']
+    return False
+
+
+def start_purger(dbname=DBNAME):
+    '''Purges every PURGE_INTERVAL seconds on a background thread.'''
+    def loop():
+        while True:
+            db = sql.connect(dbname)
+            try:
+                removed = purge(db)
+                if removed > 0:
+                    print("Purged deleted links:", removed)
+            except sql.Error as e:
+                print("Purge failed:", e)
+            finally:
+                db.close()
+            time.sleep(PURGE_INTERVAL)
+
+    t = Thread(target=loop)
+    t.daemon = True
+    t.start()
+    return t